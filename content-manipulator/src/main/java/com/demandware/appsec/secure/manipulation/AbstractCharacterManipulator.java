@@ -1,6 +1,7 @@
 package com.demandware.appsec.secure.manipulation;
 
 import java.io.IOException;
+import java.nio.charset.CharsetEncoder;
 
 import com.demandware.appsec.secure.manipulation.impl.ManipulationUtils;
 
@@ -13,6 +14,15 @@ import com.demandware.appsec.secure.manipulation.impl.ManipulationUtils;
 public abstract class AbstractCharacterManipulator
     extends AbstractManipulator
 {
+    // characters below this are looked up in the correction table, which covers ASCII and Latin-1
+    private static final int TABLE_SIZE = 256;
+
+    // what each character below TABLE_SIZE becomes, null if it is unchanged; built on first use, racing threads at
+    // worst build equal copies
+    private volatile String[] corrections;
+
+    // the length of the longest correction of any character, 0 until worked out on first use
+    private volatile int maxCorrectionLength;
 
     protected AbstractCharacterManipulator( IManipulateOption manipulatorOption )
     {
@@ -23,26 +33,316 @@ public abstract class AbstractCharacterManipulator
     protected void encodeInternal( String input, Appendable output )
         throws IOException
     {
-        for ( int i = 0; i < input.length(); i++ )
+        manipulateRange( input, 0, input.length(), output, false );
+    }
+
+    @Override
+    protected void filterInternal( String input, Appendable output )
+        throws IOException
+    {
+        manipulateRange( input, 0, input.length(), output, true );
+    }
+
+    /**
+     * Characters for which {@link #isCharsetDependent(char)} is true are written unchanged if the charset can represent
+     * them. Otherwise they are escaped as usual, except that a surrogate pair becomes a single
+     * {@link #getCharacterReference(int)} instead of two escaped halves.
+     */
+    @Override
+    protected void encodeInternal( String input, Appendable output, CharsetEncoder charset )
+        throws IOException
+    {
+        boolean allOfUnicode = charset.charset().name().startsWith( "UTF-" );
+        int length = input.length();
+        // start of the current run of characters that need no changes
+        int runStart = 0;
+        for ( int i = 0; i < length; i++ )
         {
             char c = input.charAt( i );
-            output.append( getCorrectCharacter( c ) );
+            String corr;
+            if ( c >= 0x80 && isCharsetDependent( c ) )
+            {
+                if ( Character.isHighSurrogate( c ) && i + 1 < length
+                    && Character.isLowSurrogate( input.charAt( i + 1 ) ) )
+                {
+                    if ( allOfUnicode || charset.canEncode( input.subSequence( i, i + 2 ) ) )
+                    {
+                        i++;
+                        continue;
+                    }
+                    corr = getCharacterReference( input.codePointAt( i ) );
+                    if ( runStart < i )
+                    {
+                        output.append( input, runStart, i );
+                    }
+                    output.append( corr );
+                    i++;
+                    runStart = i + 1;
+                    continue;
+                }
+                if ( !Character.isSurrogate( c ) && charset.canEncode( c ) )
+                {
+                    continue;
+                }
+            }
+
+            corr = getCorrectCharacter( c );
+            if ( !ManipulationUtils.isSame( c, corr ) )
+            {
+                if ( runStart < i )
+                {
+                    output.append( input, runStart, i );
+                }
+                output.append( corr );
+                runStart = i + 1;
+            }
+        }
+
+        if ( runStart < length )
+        {
+            output.append( input, runStart, length );
         }
     }
 
+    /**
+     * Characters are manipulated independently of each other, so chunks need no state carried between them
+     */
+    @Override
+    protected ChunkedManipulation newChunkedEncoder()
+    {
+        return new CharacterChunkedManipulation( false );
+    }
+
     @Override
-    protected void filterInternal( String input, Appendable output )
+    protected ChunkedManipulation newChunkedFilter()
+    {
+        return new CharacterChunkedManipulation( true );
+    }
+
+    /**
+     * Characters are manipulated independently of each other, so any cut works; surrogate pairs are kept together
+     */
+    @Override
+    protected boolean canSplitAt( CharSequence input, int index )
+    {
+        return !( Character.isHighSurrogate( input.charAt( index - 1 ) )
+            && Character.isLowSurrogate( input.charAt( index ) ) );
+    }
+
+    /**
+     * Encodes or filters the given range of the input, appending runs of characters that need no changes in bulk
+     * 
+     * @param input the sequence to manipulate
+     * @param start index of the first character to manipulate
+     * @param end index after the last character to manipulate
+     * @param output the object to append the manipulated range to
+     * @param shouldFilter true if filtering, false if encoding
+     * @throws IOException should the append method fail
+     */
+    private void manipulateRange( CharSequence input, int start, int end, Appendable output, boolean shouldFilter )
         throws IOException
     {
-        for ( int i = 0; i < input.length(); i++ )
+        // start of the current run of characters that need no changes
+        int runStart = start;
+        for ( int i = start; i < end; i++ )
+        {
+            String corr = correctionFor( input.charAt( i ) );
+            if ( corr != null )
+            {
+                if ( runStart < i )
+                {
+                    output.append( input, runStart, i );
+                }
+                if ( !shouldFilter )
+                {
+                    output.append( corr );
+                }
+                runStart = i + 1;
+            }
+        }
+
+        if ( runStart < end )
+        {
+            output.append( input, runStart, end );
+        }
+    }
+
+    /**
+     * Scans the input with the same correction table encoding uses, stopping at the first character that changes
+     */
+    @Override
+    protected int indexOfFirstUnsafe( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return -1;
+        }
+        int length = input.length();
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( correctionFor( input.charAt( i ) ) != null )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds up the length of each character's correction, taken from the same table encoding uses
+     */
+    @Override
+    protected long encodedLength( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return 0;
+        }
+        int length = input.length();
+        long total = length;
+        for ( int i = 0; i < length; i++ )
+        {
+            String corr = correctionFor( input.charAt( i ) );
+            if ( corr != null )
+            {
+                total += corr.length() - 1;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Counts the characters that need no correction, since filtering drops all the others
+     */
+    @Override
+    protected long filteredLength( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return 0;
+        }
+        int length = input.length();
+        long total = length;
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( correctionFor( input.charAt( i ) ) != null )
+            {
+                total--;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Filtering drops every character that needs a correction, so it never adds to the output. Encoding is bound by the
+     * longest correction of any character, found once by going through all of them.
+     */
+    @Override
+    protected int maxExpansion( boolean shouldFilter )
+    {
+        if ( shouldFilter )
+        {
+            return 1;
+        }
+        int max = this.maxCorrectionLength;
+        if ( max == 0 )
+        {
+            max = 1;
+            for ( int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++ )
+            {
+                String corr = correctionFor( (char) c );
+                if ( corr != null )
+                {
+                    max = Math.max( max, corr.length() );
+                }
+            }
+            this.maxCorrectionLength = max;
+        }
+        return max;
+    }
+
+    /**
+     * What the character becomes, looked up in the correction table where it covers the character. Shared with
+     * {@link NumberEncoder}, which writes numbers one character at a time.
+     * 
+     * @param c a character to possibly modify
+     * @return the correction for the character, or null if it is unchanged
+     */
+    String correctionFor( char c )
+    {
+        if ( c < TABLE_SIZE )
+        {
+            return corrections()[c];
+        }
+        String corr = getCorrectCharacter( c );
+        return ManipulationUtils.isSame( c, corr ) ? null : corr;
+    }
+
+    private String[] corrections()
+    {
+        String[] table = this.corrections;
+        if ( table == null )
         {
-            Character c = input.charAt( i );
-            String corr = getCorrectCharacter( c );
-            if ( ManipulationUtils.isSame( c, corr ) )
+            table = new String[TABLE_SIZE];
+            for ( char c = 0; c < TABLE_SIZE; c++ )
             {
-                output.append( c );
+                String corr = getCorrectCharacter( c );
+                table[c] = ManipulationUtils.isSame( c, corr ) ? null : corr;
             }
+            this.corrections = table;
         }
+        return table;
+    }
+
+    private final class CharacterChunkedManipulation
+        extends ChunkedManipulation
+    {
+        private final boolean shouldFilter;
+
+        CharacterChunkedManipulation( boolean shouldFilter )
+        {
+            this.shouldFilter = shouldFilter;
+        }
+
+        @Override
+        public void manipulate( CharSequence input, int start, int end, Appendable output )
+            throws IOException
+        {
+            manipulateRange( input, start, end, output, this.shouldFilter );
+        }
+
+        @Override
+        public void finish( Appendable output )
+        {
+            // nothing is ever held back
+        }
+    }
+
+    /**
+     * Whether a non-ASCII character is only escaped because the output might not be able to represent it, e.g. markup
+     * contexts where any representable character is safe to write as-is. Such characters are written unchanged when
+     * encoding for a charset that can represent them. The default is false for every character.
+     * 
+     * @param input a non-ASCII character
+     * @return true if the character may be written unchanged when the output charset can represent it
+     */
+    protected boolean isCharsetDependent( char input )
+    {
+        return false;
+    }
+
+    /**
+     * Given a code point that {@link #isCharsetDependent(char)} allows but the output charset cannot represent, return
+     * its escaped form. This is used for supplementary characters, which {@link #getCorrectCharacter(Character)} only
+     * ever sees as two separate surrogates.
+     * 
+     * @param codePoint a code point the output charset cannot represent
+     * @return the escaped form of the code point
+     */
+    protected String getCharacterReference( int codePoint )
+    {
+        return getCorrectCharacter( Character.highSurrogate( codePoint ) )
+            + getCorrectCharacter( Character.lowSurrogate( codePoint ) );
     }
 
     /**
@@ -9,8 +9,21 @@
 package com.demandware.appsec.secure.manipulation;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Base implementation of a Manipulator (handles both filtering and encoding). Provides common functionality for
@@ -22,12 +35,18 @@ import java.io.Writer;
 public abstract class AbstractManipulator
 {
 
+    // number of decoded characters handed to a ChunkedManipulation at a time when transcoding UTF-8 input
+    private static final int TRANSCODE_CHUNK_SIZE = 4096;
+
     /**
      * The "flavor" of a Manipulator. This option allows Manipulators to provide more granular control over a specific
      * context.
      */
     protected final IManipulateOption manipulatorOption;
 
+    // built on first use, racing threads at worst build equal copies
+    private volatile NumberEncoder numberEncoder;
+
     /**
      * Every Manipulator must have a corresponding ManipulateOption which contains various options for sub-configuration
      * of a Manipulator
@@ -146,14 +165,1095 @@ public abstract class AbstractManipulator
     }
 
     /**
-     * Given a character, do any defined, necessary encodings to the input string and append it to the output object
+     * A primary target for a Manipulator. filter removes any offending characters from the given string within the
+     * given size limit
+     * 
+     * @param input the string to filter
+     * @param limit the limits on input and output size
+     * @return the filtered string, truncated if the limit's policy allows, or null if the input is null
+     * @throws SizeLimitExceededException if a limit is exceeded and the policy is to throw
+     * @throws IllegalArgumentException if the limit is null
+     */
+    protected String filterLimited( String input, SizeLimit limit )
+    {
+        if ( limit == null )
+        {
+            throw new IllegalArgumentException( "SizeLimit cannot be null" );
+        }
+        if ( input == null )
+        {
+            return null;
+        }
+        return limit.apply( this, input, true );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents within the
+     * given size limit, stopping as soon as the output limit is reached
      * 
      * @param input the string to encode
-     * @param output the object to append the encoded version of the string to
-     * @throws IOException if any IOExceptions occur in the subclass
+     * @param limit the limits on input and output size
+     * @return the encoded string, truncated if the limit's policy allows, or null if the input is null
+     * @throws SizeLimitExceededException if a limit is exceeded and the policy is to throw
+     * @throws IllegalArgumentException if the limit is null
      */
-    protected abstract void encodeInternal( String input, Appendable output )
-        throws IOException;
+    protected String encodeLimited( String input, SizeLimit limit )
+    {
+        if ( limit == null )
+        {
+            throw new IllegalArgumentException( "SizeLimit cannot be null" );
+        }
+        if ( input == null )
+        {
+            return null;
+        }
+        return limit.apply( this, input, false );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and
+     * collects the result in fixed-size segments, so no single array larger than a segment is ever needed however
+     * large the output gets
+     * 
+     * @param input the string to encode
+     * @return the encoded string in segments or null, if the input is null
+     */
+    protected SegmentedCharSequence encodeSegmented( String input )
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        SegmentedCharSequence segmented = new SegmentedCharSequence();
+        try
+        {
+            encodeInternal( input, segmented );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as in-memory segments shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return segmented;
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and records
+     * where the encoded string runs ahead of the input, so that an edit to the input can later be re-encoded on its
+     * own with {@link #reencode(MappedEncoding, int, int, CharSequence)}
+     *
+     * @param input the string to encode
+     * @return the encoded string with its offset map, or null if the input is null
+     */
+    protected MappedEncoding encodeMapped( String input )
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+        return IncrementalEncoding.encode( this, input );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters of an edited input to their "safe"
+     * equivalents, encoding only the edited range, widened to where the input can be cut, and copying the rest from
+     * the previous result
+     *
+     * @param previous the result of encoding the input before the edit
+     * @param start the index of the first character of the previous input that was replaced
+     * @param end the index after the last character of the previous input that was replaced
+     * @param replacement what replaced the range, empty for a deletion
+     * @return the encoded new input with its offset map
+     * @throws IllegalArgumentException if previous or replacement is null, or previous was encoded by another
+     *             Manipulator
+     * @throws IndexOutOfBoundsException if the range is not within the previous input
+     */
+    protected MappedEncoding reencode( MappedEncoding previous, int start, int end, CharSequence replacement )
+    {
+        if ( previous == null || replacement == null )
+        {
+            throw new IllegalArgumentException( "MappedEncoding and replacement cannot be null" );
+        }
+        if ( previous.getManipulator() != this )
+        {
+            throw new IllegalArgumentException( "MappedEncoding was encoded by a different Manipulator" );
+        }
+        return IncrementalEncoding.reencode( this, previous, start, end, replacement );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and writes
+     * them to the output, writing each trusted raw fragment unchanged where its offset falls in the input. The input
+     * between two offsets is encoded as if it were a string of its own, just as encoding each piece and concatenating
+     * them with the fragments would give, but in one pass without any substrings. If the provided input is null, no
+     * content is written
+     *
+     * @param input the sequence to encode
+     * @param offsets the input index each fragment goes before, in ascending order; equal offsets keep the order of
+     *            their fragments
+     * @param rawInserts the fragments to write unchanged, one per offset
+     * @param output where the encoded input and fragments go
+     * @throws IOException if the output throws an IOException
+     * @throws IllegalArgumentException if the output, the arrays or any fragment is null, the arrays differ in length
+     *             or the offsets are not in ascending order
+     * @throws IndexOutOfBoundsException if an offset is outside the input
+     */
+    protected void encodeWithInsertions( CharSequence input, int[] offsets, CharSequence[] rawInserts,
+        Appendable output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( output == null || offsets == null || rawInserts == null )
+        {
+            throw new IllegalArgumentException( "Appendable, offsets and inserts cannot be null" );
+        }
+        if ( offsets.length != rawInserts.length )
+        {
+            throw new IllegalArgumentException( "There must be one insert per offset" );
+        }
+        for ( int i = 0; i < offsets.length; i++ )
+        {
+            if ( offsets[i] < 0 || offsets[i] > input.length() )
+            {
+                throw new IndexOutOfBoundsException( "Offset " + offsets[i] + " is outside an input of length "
+                    + input.length() );
+            }
+            if ( i > 0 && offsets[i] < offsets[i - 1] )
+            {
+                throw new IllegalArgumentException( "Offsets must be in ascending order" );
+            }
+            if ( rawInserts[i] == null )
+            {
+                throw new IllegalArgumentException( "Inserts cannot be null" );
+            }
+        }
+
+        int start = 0;
+        for ( int i = 0; i <= offsets.length; i++ )
+        {
+            int end = i < offsets.length ? offsets[i] : input.length();
+            if ( end > start )
+            {
+                // each piece is finished on its own, so nothing held back, e.g. a CDATA ], pairs up across a fragment
+                ChunkedManipulation manipulation = newChunkedEncoder();
+                manipulation.manipulate( input, start, end, output );
+                manipulation.finish( output );
+                start = end;
+            }
+            if ( i < offsets.length )
+            {
+                output.append( rawInserts[i] );
+            }
+        }
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters in the given region of the builder to
+     * their "safe" equivalents in place, moving what follows the region once to make room
+     *
+     * @param builder the builder holding the region
+     * @param start index of the first character to encode
+     * @param end index after the last character to encode
+     * @return the index after the encoded region
+     * @throws IllegalArgumentException if the builder is null
+     * @throws IndexOutOfBoundsException if the region is not within the builder
+     */
+    protected int encodeInPlace( StringBuilder builder, int start, int end )
+    {
+        if ( builder == null )
+        {
+            throw new IllegalArgumentException( "StringBuilder cannot be null" );
+        }
+        return InPlaceManipulation.manipulate( this, builder, start, end, false );
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given region of the
+     * builder in place, moving what follows the region once to close the gap
+     *
+     * @param builder the builder holding the region
+     * @param start index of the first character to filter
+     * @param end index after the last character to filter
+     * @return the index after the filtered region
+     * @throws IllegalArgumentException if the builder is null
+     * @throws IndexOutOfBoundsException if the region is not within the builder
+     */
+    protected int filterInPlace( StringBuilder builder, int start, int end )
+    {
+        if ( builder == null )
+        {
+            throw new IllegalArgumentException( "StringBuilder cannot be null" );
+        }
+        return InPlaceManipulation.manipulate( this, builder, start, end, true );
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given region of the array
+     * in place, compacting what is kept to the front of the region. The characters after the returned index up to
+     * the end of the region are left as they were.
+     *
+     * @param chars the array holding the region
+     * @param start index of the first character to filter
+     * @param end index after the last character to filter
+     * @return the index after the filtered characters
+     * @throws IllegalArgumentException if the array is null
+     * @throws IndexOutOfBoundsException if the region is not within the array
+     */
+    protected int filterInPlace( char[] chars, int start, int end )
+    {
+        if ( chars == null )
+        {
+            throw new IllegalArgumentException( "char[] cannot be null" );
+        }
+        return InPlaceManipulation.filter( this, chars, start, end );
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from each of the given strings,
+     * reusing one scratch buffer for all of them. A string that needs no filtering is returned as the same instance,
+     * a null string stays null. The output may be the input array itself.
+     *
+     * @param input the strings to filter
+     * @param output where the filtered strings go, at the same indices, at least as long as the input
+     * @throws IllegalArgumentException if either array is null or the output is shorter than the input
+     */
+    protected void filterAll( String[] input, String[] output )
+    {
+        manipulateAll( input, output, true );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters in each of the given strings to their
+     * "safe" equivalents, reusing one scratch buffer for all of them. A string that needs no encoding is returned as
+     * the same instance, a null string stays null. The output may be the input array itself.
+     *
+     * @param input the strings to encode
+     * @param output where the encoded strings go, at the same indices, at least as long as the input
+     * @throws IllegalArgumentException if either array is null or the output is shorter than the input
+     */
+    protected void encodeAll( String[] input, String[] output )
+    {
+        manipulateAll( input, output, false );
+    }
+
+    private void manipulateAll( String[] input, String[] output, boolean shouldFilter )
+    {
+        if ( input == null || output == null )
+        {
+            throw new IllegalArgumentException( "String[] cannot be null" );
+        }
+        if ( output.length < input.length )
+        {
+            throw new IllegalArgumentException( "Output array is shorter than the input" );
+        }
+
+        StringBuilder scratch = new StringBuilder();
+        try
+        {
+            for ( int i = 0; i < input.length; i++ )
+            {
+                output[i] = manipulate( input[i], scratch, shouldFilter );
+            }
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from each of the given strings,
+     * reusing one scratch buffer for all of them and collecting the results straight into a list sized for them. A
+     * string that needs no filtering is returned as the same instance, a null string stays null.
+     *
+     * @param input the strings to filter
+     * @return the filtered strings in the same order
+     * @throws IllegalArgumentException if the list is null
+     */
+    protected List<String> filterAll( List<String> input )
+    {
+        return manipulateAll( input, true );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters in each of the given strings to their
+     * "safe" equivalents, reusing one scratch buffer for all of them and collecting the results straight into a list
+     * sized for them. A string that needs no encoding is returned as the same instance, a null string stays null.
+     *
+     * @param input the strings to encode
+     * @return the encoded strings in the same order
+     * @throws IllegalArgumentException if the list is null
+     */
+    protected List<String> encodeAll( List<String> input )
+    {
+        return manipulateAll( input, false );
+    }
+
+    private List<String> manipulateAll( List<String> input, boolean shouldFilter )
+    {
+        if ( input == null )
+        {
+            throw new IllegalArgumentException( "List cannot be null" );
+        }
+
+        List<String> output = new ArrayList<String>( input.size() );
+        StringBuilder scratch = new StringBuilder();
+        try
+        {
+            for ( String value : input )
+            {
+                output.add( manipulate( value, scratch, shouldFilter ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return output;
+    }
+
+    /**
+     * Manipulates one of many values through the shared scratch buffer, keeping the value itself if nothing changed
+     */
+    private String manipulate( String value, StringBuilder scratch, boolean shouldFilter )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+
+        scratch.setLength( 0 );
+        if ( shouldFilter )
+        {
+            filterInternal( value, scratch );
+        }
+        else
+        {
+            encodeInternal( value, scratch );
+        }
+        return value.contentEquals( scratch ) ? value : scratch.toString();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode writes the digits of the given number to the output, modifying any
+     * character to its "safe" equivalent where this context needs it, without first turning the number into a String
+     *
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     * @throws IOException if the output throws an IOException
+     * @throws IllegalArgumentException if the output is null
+     */
+    protected void encodeNumber( long value, Appendable output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "Appendable cannot be null" );
+        }
+        numberEncoder().encode( value, output );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode writes the given number, formatted as {@link Double#toString(double)}
+     * would, to the output, modifying any character to its "safe" equivalent where this context needs it
+     *
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     * @throws IOException if the output throws an IOException
+     * @throws IllegalArgumentException if the output is null
+     */
+    protected void encodeNumber( double value, Appendable output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "Appendable cannot be null" );
+        }
+        numberEncoder().encode( value, output );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode writes the given number, formatted as {@link BigDecimal#toString()}
+     * would, to the output, modifying any character to its "safe" equivalent where this context needs it. If the
+     * provided number is null, nothing is written
+     *
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     * @throws IOException if the output throws an IOException
+     * @throws IllegalArgumentException if the output is null
+     */
+    protected void encodeNumber( BigDecimal value, Appendable output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( value == null )
+        {
+            return;
+        }
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "Appendable cannot be null" );
+        }
+        numberEncoder().encode( value, output );
+    }
+
+    private NumberEncoder numberEncoder()
+    {
+        NumberEncoder encoder = this.numberEncoder;
+        if ( encoder == null )
+        {
+            encoder = new NumberEncoder( this );
+            this.numberEncoder = encoder;
+        }
+        return encoder;
+    }
+
+    /**
+     * Finds the first character of the input that encoding or filtering would not write through unchanged. The
+     * default encodes the input into a comparison with itself and reports the last place, as far as
+     * {@link #canSplitAt(CharSequence, int)} allows a cut, up to which the two agree; Manipulators that know their
+     * rules should override this with a plain scan.
+     *
+     * @param input the sequence to examine
+     * @return the index of the first character that would be changed or removed, or -1 if there is none or the input
+     *         is null
+     */
+    protected int indexOfFirstUnsafe( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return -1;
+        }
+        return ManipulationScan.indexOfFirstUnsafe( this, input );
+    }
+
+    /**
+     * Whether encoding would change the input, without encoding it
+     *
+     * @param input the sequence to examine
+     * @return true if encoding would give anything other than the input, false if not or the input is null
+     */
+    protected boolean needsEncoding( CharSequence input )
+    {
+        return indexOfFirstUnsafe( input ) >= 0;
+    }
+
+    /**
+     * The length {@link #encode(String)} would give for the input, without encoding it. The default encodes the input
+     * into a counter; Manipulators that know their rules should override this with a plain scan.
+     *
+     * @param input the sequence to examine
+     * @return the length of the encoded input, or 0 if the input is null
+     */
+    protected long encodedLength( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return 0;
+        }
+        return ManipulationScan.length( this, input, false );
+    }
+
+    /**
+     * The length {@link #filter(String)} would give for the input, without filtering it
+     *
+     * @param input the sequence to examine
+     * @return the length of the filtered input, or 0 if the input is null
+     * @see #encodedLength(CharSequence)
+     */
+    protected long filteredLength( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return 0;
+        }
+        return ManipulationScan.length( this, input, true );
+    }
+
+    /**
+     * The most output characters a single input character can turn into, so a caller can tell that output will fit a
+     * limit without measuring it. Manipulators whose output can grow without bound, or that do not know their rules,
+     * keep the default.
+     *
+     * @param shouldFilter true if filtering, false if encoding
+     * @return the bound on output characters per input character, or 0 if there is none or it is unknown
+     */
+    protected int maxExpansion( boolean shouldFilter )
+    {
+        return 0;
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given string and writes the
+     * result as UTF-8 bytes to the given stream. If the provided input is null, no content is written to the stream
+     * 
+     * @param input the string to filter
+     * @param output a stream to write UTF-8 output to
+     * @throws IOException if the stream throws an IOException
+     * @throws IllegalArgumentException if the stream is null
+     */
+    protected void filterToUtf8( String input, OutputStream output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "OutputStream cannot be null" );
+        }
+
+        Utf8Appendable utf8 = Utf8Appendable.toStream( output );
+        filterInternal( input, utf8 );
+        utf8.finish();
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given string and returns
+     * the result as UTF-8 bytes
+     * 
+     * @param input the string to filter
+     * @return the UTF-8 bytes of the filtered string or null, if the input is null
+     */
+    protected byte[] filterToUtf8( String input )
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        Utf8Appendable.ArrayUtf8Appendable utf8 = Utf8Appendable.toByteArray( input.length() );
+        try
+        {
+            filterInternal( input, utf8 );
+            utf8.finish();
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as an in-memory byte array shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return utf8.toByteArray();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and writes
+     * the result as UTF-8 bytes to the given stream. If the provided input is null, no content is written to the stream
+     * 
+     * @param input the string to encode
+     * @param output a stream to write UTF-8 output to
+     * @throws IOException if the stream throws an IOException
+     * @throws IllegalArgumentException if the stream is null
+     */
+    protected void encodeToUtf8( String input, OutputStream output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "OutputStream cannot be null" );
+        }
+
+        Utf8Appendable utf8 = Utf8Appendable.toStream( output );
+        encodeInternal( input, utf8 );
+        utf8.finish();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and returns
+     * the result as UTF-8 bytes
+     * 
+     * @param input the string to encode
+     * @return the UTF-8 bytes of the encoded string or null, if the input is null
+     */
+    protected byte[] encodeToUtf8( String input )
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        // length * 3 is a best guess
+        Utf8Appendable.ArrayUtf8Appendable utf8 = Utf8Appendable.toByteArray( input.length() * 3 );
+        try
+        {
+            encodeInternal( input, utf8 );
+            utf8.finish();
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as an in-memory byte array shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return utf8.toByteArray();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and feeds
+     * the UTF-8 bytes of the result to the digest, a small buffer at a time, without building the encoded string. If
+     * the provided input is null, the digest is not updated
+     *
+     * @param input the string to encode
+     * @param digest the digest to update with the UTF-8 bytes of the encoded string
+     * @throws IllegalArgumentException if the digest is null
+     */
+    protected void encodeToDigest( String input, MessageDigest digest )
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( digest == null )
+        {
+            throw new IllegalArgumentException( "MessageDigest cannot be null" );
+        }
+
+        Utf8Appendable utf8 = Utf8Appendable.toDigest( digest );
+        try
+        {
+            encodeInternal( input, utf8 );
+            utf8.finish();
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as a digest shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and hashes
+     * the UTF-8 bytes of the result with {@link Fnv1a64}, without building the encoded string
+     *
+     * @param input the string to encode
+     * @return the hash of the encoded string, or {@link Fnv1a64#OFFSET_BASIS}, the hash of no bytes, if the input is
+     *         null
+     */
+    protected long encodedFnv1a64( String input )
+    {
+        if ( input == null )
+        {
+            return Fnv1a64.OFFSET_BASIS;
+        }
+
+        Utf8Appendable.HashUtf8Appendable utf8 = Utf8Appendable.toFnv1a64();
+        try
+        {
+            encodeInternal( input, utf8 );
+            utf8.finish();
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as hashing shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return utf8.hash();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents for output
+     * in the given charset. Manipulators whose escapes only exist because a character might not be representable, such
+     * as numeric character references in markup, leave characters the charset can represent unescaped.
+     * 
+     * @param input the string to encode
+     * @param charset the charset the output will be written in
+     * @return an encoded string based on the manipulator implementation or null, if the input is null
+     * @throws IllegalArgumentException if the charset is null
+     */
+    protected String encodeForCharset( String input, Charset charset )
+        throws IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        if ( charset == null )
+        {
+            throw new IllegalArgumentException( "Charset cannot be null" );
+        }
+
+        // length * 3 is a best guess
+        StringBuilder sb = new StringBuilder( input.length() * 3 );
+        try
+        {
+            encodeInternal( input, sb, charset.newEncoder() );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents for output
+     * in the given charset and writes the result to the given stream as bytes in that charset, in a single pass. See
+     * {@link #encodeForCharset(String, Charset)}. If the provided input is null, no content is written to the stream
+     * 
+     * @param input the string to encode
+     * @param charset the charset to write the output in
+     * @param output a stream to write output to
+     * @throws IOException if the stream throws an IOException
+     * @throws IllegalArgumentException if the charset or stream is null
+     */
+    protected void encodeForCharset( String input, Charset charset, OutputStream output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( charset == null )
+        {
+            throw new IllegalArgumentException( "Charset cannot be null" );
+        }
+
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "OutputStream cannot be null" );
+        }
+
+        if ( StandardCharsets.UTF_8.equals( charset ) )
+        {
+            Utf8Appendable utf8 = Utf8Appendable.toStream( output );
+            encodeInternal( input, utf8, charset.newEncoder() );
+            utf8.finish();
+        }
+        else
+        {
+            CharsetAppendable bytes = new CharsetAppendable( charset, output );
+            encodeInternal( input, bytes, charset.newEncoder() );
+            bytes.finish();
+        }
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given string and writes the
+     * result as UTF-8 bytes into off-heap segments borrowed from the given pool
+     * 
+     * @param input the string to filter
+     * @param pool where to borrow output segments from
+     * @return the filtered output, which must be closed to return its segments, or null if the input is null
+     * @throws IllegalArgumentException if the pool is null
+     */
+    protected PooledByteOutput filterToUtf8( String input, DirectBufferPool pool )
+        throws IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        if ( pool == null )
+        {
+            throw new IllegalArgumentException( "DirectBufferPool cannot be null" );
+        }
+
+        Utf8Appendable.PooledUtf8Appendable utf8 = Utf8Appendable.toPool( pool );
+        boolean complete = false;
+        try
+        {
+            filterInternal( input, utf8 );
+            utf8.finish();
+            complete = true;
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as pooled buffers shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        finally
+        {
+            if ( !complete )
+            {
+                // nobody else can return the segments taken so far
+                utf8.release();
+            }
+        }
+        return utf8.toOutput();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters to their "safe" equivalents and writes
+     * the result as UTF-8 bytes into off-heap segments borrowed from the given pool
+     * 
+     * @param input the string to encode
+     * @param pool where to borrow output segments from
+     * @return the encoded output, which must be closed to return its segments, or null if the input is null
+     * @throws IllegalArgumentException if the pool is null
+     */
+    protected PooledByteOutput encodeToUtf8( String input, DirectBufferPool pool )
+        throws IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        if ( pool == null )
+        {
+            throw new IllegalArgumentException( "DirectBufferPool cannot be null" );
+        }
+
+        Utf8Appendable.PooledUtf8Appendable utf8 = Utf8Appendable.toPool( pool );
+        boolean complete = false;
+        try
+        {
+            encodeInternal( input, utf8 );
+            utf8.finish();
+            complete = true;
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as pooled buffers shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        finally
+        {
+            if ( !complete )
+            {
+                // nobody else can return the segments taken so far
+                utf8.release();
+            }
+        }
+        return utf8.toOutput();
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given UTF-8 input and
+     * returns the result as UTF-8 bytes. Malformed input is replaced with U+FFFD, exactly as
+     * {@code new String( bytes, StandardCharsets.UTF_8 )} would, but no String is created. The input buffer is
+     * consumed.
+     * 
+     * @param input the UTF-8 bytes to filter
+     * @return the UTF-8 bytes of the filtered input or null, if the input is null
+     */
+    protected byte[] filterUtf8( ByteBuffer input )
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        Utf8Appendable.ArrayUtf8Appendable utf8 = Utf8Appendable.toByteArray( input.remaining() );
+        try
+        {
+            transcodeUtf8( input, newChunkedFilter(), utf8 );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as an in-memory byte array shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return utf8.toByteArray();
+    }
+
+    /**
+     * A primary target for a Manipulator. filter removes any offending characters from the given UTF-8 input and
+     * writes the result as UTF-8 bytes to the given stream. See {@link #filterUtf8(ByteBuffer)}. If the provided input
+     * is null, no content is written to the stream
+     * 
+     * @param input the UTF-8 bytes to filter
+     * @param output a stream to write UTF-8 output to
+     * @throws IOException if the stream throws an IOException
+     * @throws IllegalArgumentException if the stream is null
+     */
+    protected void filterUtf8( ByteBuffer input, OutputStream output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "OutputStream cannot be null" );
+        }
+
+        transcodeUtf8( input, newChunkedFilter(), Utf8Appendable.toStream( output ) );
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters in the given UTF-8 input to their
+     * "safe" equivalents and returns the result as UTF-8 bytes. Malformed input is replaced with U+FFFD, exactly as
+     * {@code new String( bytes, StandardCharsets.UTF_8 )} would, but no String is created. The input buffer is
+     * consumed.
+     * 
+     * @param input the UTF-8 bytes to encode
+     * @return the UTF-8 bytes of the encoded input or null, if the input is null
+     */
+    protected byte[] encodeUtf8( ByteBuffer input )
+    {
+        if ( input == null )
+        {
+            return null;
+        }
+
+        // length * 3 is a best guess
+        Utf8Appendable.ArrayUtf8Appendable utf8 = Utf8Appendable.toByteArray( input.remaining() * 3 );
+        try
+        {
+            transcodeUtf8( input, newChunkedEncoder(), utf8 );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as an in-memory byte array shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return utf8.toByteArray();
+    }
+
+    /**
+     * A primary target for a Manipulator. encode modifies offending characters in the given UTF-8 input to their
+     * "safe" equivalents and writes the result as UTF-8 bytes to the given stream. See {@link #encodeUtf8(ByteBuffer)}.
+     * If the provided input is null, no content is written to the stream
+     * 
+     * @param input the UTF-8 bytes to encode
+     * @param output a stream to write UTF-8 output to
+     * @throws IOException if the stream throws an IOException
+     * @throws IllegalArgumentException if the stream is null
+     */
+    protected void encodeUtf8( ByteBuffer input, OutputStream output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( input == null )
+        {
+            return;
+        }
+
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "OutputStream cannot be null" );
+        }
+
+        transcodeUtf8( input, newChunkedEncoder(), Utf8Appendable.toStream( output ) );
+    }
+
+    /**
+     * Whether the input can be cut at the given index into two parts that are manipulated independently, each by its
+     * own {@link ChunkedManipulation}, with the same result as manipulating the input whole. This is what lets a large
+     * input be encoded in parallel. The decision must only depend on the characters right before and after the cut,
+     * as callers may pass just those two. The default is false everywhere, as a Manipulator may depend on the whole
+     * input.
+     * 
+     * @param input the sequence that would be cut, or a window of it around the cut
+     * @param index the index of the first character after the cut, between 1 and the input length - 1
+     * @return true if the input may be cut at the index
+     */
+    protected boolean canSplitAt( CharSequence input, int index )
+    {
+        return false;
+    }
+
+    /**
+     * Creates a new {@link ChunkedManipulation} that encodes input handed over in chunks. The default collects all
+     * chunks and encodes them together on finish; Manipulators that can work on partial input should override this.
+     * 
+     * @return a new chunked encoder for this Manipulator
+     */
+    protected ChunkedManipulation newChunkedEncoder()
+    {
+        return new ChunkedManipulation.Buffered( this, false );
+    }
+
+    /**
+     * Creates a new {@link ChunkedManipulation} that filters input handed over in chunks. The default collects all
+     * chunks and filters them together on finish; Manipulators that can work on partial input should override this.
+     * 
+     * @return a new chunked filter for this Manipulator
+     */
+    protected ChunkedManipulation newChunkedFilter()
+    {
+        return new ChunkedManipulation.Buffered( this, true );
+    }
+
+    /**
+     * Decodes UTF-8 input a small block at a time, hands each block to the given manipulation and finishes both the
+     * manipulation and the UTF-8 output
+     * 
+     * @param input the UTF-8 bytes to read, this buffer is consumed
+     * @param manipulation a fresh chunked encoder or filter
+     * @param output where the manipulated UTF-8 bytes go
+     * @throws IOException if the output throws an IOException
+     */
+    private void transcodeUtf8( ByteBuffer input, ChunkedManipulation manipulation, Utf8Appendable output )
+        throws IOException
+    {
+        // REPLACE on both matches the String( byte[], Charset ) constructor
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        CharBuffer chars = CharBuffer.allocate( Math.min( TRANSCODE_CHUNK_SIZE, input.remaining() + 1 ) );
+
+        CoderResult result;
+        do
+        {
+            result = decoder.decode( input, chars, true );
+            manipulateDecoded( chars, manipulation, output );
+        }
+        while ( result.isOverflow() );
+
+        do
+        {
+            result = decoder.flush( chars );
+            manipulateDecoded( chars, manipulation, output );
+        }
+        while ( result.isOverflow() );
+
+        manipulation.finish( output );
+        output.finish();
+    }
+
+    private static void manipulateDecoded( CharBuffer chars, ChunkedManipulation manipulation, Appendable output )
+        throws IOException
+    {
+        chars.flip();
+        manipulation.manipulate( chars, 0, chars.length(), output );
+        chars.clear();
+    }
+
+    /**
+     * Given a character, do any defined, necessary encodings to the input string and append it to the output object
+     * 
+     * @param input the string to encode
+     * @param output the object to append the encoded version of the string to
+     * @throws IOException if any IOExceptions occur in the subclass
+     */
+    protected abstract void encodeInternal( String input, Appendable output )
+        throws IOException;
+
+    /**
+     * Given a string, do any defined, necessary encodings for output in a specific charset and append it to the output
+     * object. By default the charset is ignored and this is the same as {@link #encodeInternal(String, Appendable)}.
+     * 
+     * @param input the string to encode
+     * @param output the object to append the encoded version of the string to
+     * @param charset an encoder for the output charset, only to be used for its canEncode methods
+     * @throws IOException if any IOExceptions occur in the subclass
+     */
+    protected void encodeInternal( String input, Appendable output, CharsetEncoder charset )
+        throws IOException
+    {
+        encodeInternal( input, output );
+    }
 
     /**
      * Given a character, do any defined, necessary filterings to the input string and append it to the output object
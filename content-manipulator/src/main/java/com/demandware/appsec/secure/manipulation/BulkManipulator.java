@@ -0,0 +1,436 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+/**
+ * Encodes or filters a UTF-8 file into another from the command line:
+ *
+ * <pre>
+ * java -cp content-manipulator.jar com.demandware.appsec.secure.manipulation.BulkManipulator encode
+ *     --type XML_CONTENT_MANIPULATOR --in big.txt --out big.enc [--threads 8]
+ * </pre>
+ *
+ * The input is cut into chunks of a few megabytes, each memory mapped, decoded and manipulated on its own thread, and
+ * the results are written in order through a large direct buffer. Chunks are cut after an ASCII character where the
+ * Manipulator allows it, see {@link AbstractManipulator#canSplitAt(CharSequence, int)}, so the output is exactly what
+ * manipulating the whole decoded file would give; malformed UTF-8 is replaced with U+FFFD. Where no such place turns
+ * up within another chunk size, the chunk is cut at the start of a UTF-8 sequence instead and the chunks on either
+ * side are manipulated one after the other by the same manipulation, on the calling thread. Throughput figures are
+ * printed to the error stream when done.
+ */
+public final class BulkManipulator
+{
+    static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final String USAGE = "Usage: BulkManipulator encode|filter --type <DefaultManipulationType> "
+        + "--in <file> --out <file> [--threads <count>]";
+
+    private final AbstractManipulator manipulator;
+
+    private final boolean shouldFilter;
+
+    private final int chunkSize;
+
+    private final int threads;
+
+    BulkManipulator( AbstractManipulator manipulator, boolean shouldFilter, int chunkSize, int threads )
+    {
+        this.manipulator = manipulator;
+        this.shouldFilter = shouldFilter;
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    public static void main( String[] args )
+    {
+        int status = run( args, System.err );
+        if ( status != 0 )
+        {
+            System.exit( status );
+        }
+    }
+
+    /**
+     * Runs the command line
+     *
+     * @param args the command line arguments
+     * @param err where usage, errors and the throughput figures go, leaving standard output alone
+     * @return the exit status: 0 on success, 1 if manipulating failed, 2 if the arguments are wrong
+     */
+    static int run( String[] args, PrintStream err )
+    {
+        if ( args.length == 0 || !( "encode".equals( args[0] ) || "filter".equals( args[0] ) ) )
+        {
+            err.println( USAGE );
+            return 2;
+        }
+
+        String type = null;
+        String input = null;
+        String output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            for ( int i = 1; i < args.length; i += 2 )
+            {
+                if ( i + 1 == args.length )
+                {
+                    throw new IllegalArgumentException( "Missing value for " + args[i] );
+                }
+                String value = args[i + 1];
+                if ( "--type".equals( args[i] ) )
+                {
+                    type = value;
+                }
+                else if ( "--in".equals( args[i] ) )
+                {
+                    input = value;
+                }
+                else if ( "--out".equals( args[i] ) )
+                {
+                    output = value;
+                }
+                else if ( "--threads".equals( args[i] ) )
+                {
+                    threads = Integer.parseInt( value );
+                    if ( threads < 1 )
+                    {
+                        throw new IllegalArgumentException( "Thread count must be at least 1" );
+                    }
+                }
+                else
+                {
+                    throw new IllegalArgumentException( "Unknown option " + args[i] );
+                }
+            }
+            if ( type == null || input == null || output == null )
+            {
+                throw new IllegalArgumentException( "--type, --in and --out are required" );
+            }
+            // a bad type name or thread count also ends up here
+            AbstractManipulator manip = ManipulatorFactory.getManipulator( DefaultManipulationType.valueOf( type ) );
+
+            boolean shouldFilter = "filter".equals( args[0] );
+            BulkManipulator bulk = new BulkManipulator( manip, shouldFilter, DEFAULT_CHUNK_SIZE, threads );
+            long start = System.nanoTime();
+            long[] sizes = bulk.process( Paths.get( input ), Paths.get( output ) );
+            double seconds = Math.max( System.nanoTime() - start, 1 ) / 1e9;
+            err.println( String.format( Locale.ROOT, "%s %d bytes into %d bytes in %.3f s (%.1f MB/s) on %d threads",
+                shouldFilter ? "Filtered" : "Encoded", sizes[0], sizes[1], seconds, sizes[0] / seconds / 1e6,
+                threads ) );
+            return 0;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            err.println( e.getMessage() );
+            err.println( USAGE );
+            return 2;
+        }
+        catch ( IOException e )
+        {
+            err.println( "Failed: " + e );
+            return 1;
+        }
+    }
+
+    /**
+     * Manipulates the input file into the output file, replacing it
+     *
+     * @param input the UTF-8 file to read
+     * @param output the file to write the UTF-8 result to
+     * @return the number of bytes read and the number written
+     * @throws IOException if reading or writing fails
+     */
+    long[] process( Path input, Path output )
+        throws IOException
+    {
+        FileChannel in = FileChannel.open( input, StandardOpenOption.READ );
+        try
+        {
+            FileChannel out = FileChannel.open( output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING );
+            try
+            {
+                process( in, out );
+                return new long[] { in.size(), out.size() };
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void process( FileChannel in, FileChannel out )
+        throws IOException
+    {
+        List<long[]> chunks = cut( in );
+        Utf8Appendable writer = Utf8Appendable.toChannel( out, WRITE_BUFFER_SIZE );
+        ForkJoinPool pool = new ForkJoinPool( this.threads );
+        try
+        {
+            // keep enough chunks in flight to occupy every thread without holding the whole file in memory
+            Deque<Future<StringBuilder>> pending = new ArrayDeque<Future<StringBuilder>>();
+            int next = 0;
+            while ( next < chunks.size() || !pending.isEmpty() )
+            {
+                while ( next < chunks.size() && pending.size() < 2 * this.threads && !isOpen( chunks.get( next ) ) )
+                {
+                    pending.add( pool.submit( new ChunkTask( in, chunks.get( next++ ) ) ) );
+                }
+                if ( !pending.isEmpty() )
+                {
+                    StringBuilder manipulated = await( pending.poll() );
+                    writer.append( manipulated, 0, manipulated.length() );
+                    continue;
+                }
+
+                // the next chunks carry one manipulation across their cuts, so they are done here in order
+                ChunkedManipulation manipulation = newManipulation();
+                boolean open;
+                do
+                {
+                    long[] chunk = chunks.get( next++ );
+                    open = isOpen( chunk );
+                    StringBuilder manipulated = manipulate( in, chunk, manipulation, !open );
+                    writer.append( manipulated, 0, manipulated.length() );
+                }
+                while ( open );
+            }
+            writer.finish();
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Cuts the file into chunks of about the chunk size and at most twice that, each given as its position, its
+     * length and 1 if the manipulation carries on into the next chunk, 0 if it finishes with this one
+     */
+    private List<long[]> cut( FileChannel in )
+        throws IOException
+    {
+        long size = in.size();
+        List<long[]> chunks = new ArrayList<long[]>();
+        Probe probe = new Probe( in );
+        long start = 0;
+        while ( start < size )
+        {
+            long end = size - start > this.chunkSize ? start + this.chunkSize : size;
+            long limit = Math.min( end + this.chunkSize, size );
+            while ( end < limit && !canCut( probe, end ) )
+            {
+                end++;
+            }
+            long open = 0;
+            if ( end < size && !canCut( probe, end ) )
+            {
+                // nowhere to cut cleanly, so cut between two UTF-8 sequences and carry the manipulation over
+                end = start + this.chunkSize;
+                while ( ( probe.byteAt( end ) & 0xc0 ) == 0x80 )
+                {
+                    end++;
+                }
+                open = 1;
+            }
+            chunks.add( new long[] { start, end - start, open } );
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static boolean isOpen( long[] chunk )
+    {
+        return chunk[2] != 0;
+    }
+
+    /**
+     * Whether the file can be cut before the given position: right after an ASCII character, at the start of a UTF-8
+     * sequence, where the Manipulator allows a cut between the characters on either side
+     */
+    private boolean canCut( Probe probe, long position )
+        throws IOException
+    {
+        int before = probe.byteAt( position - 1 );
+        int after = probe.byteAt( position );
+        if ( before >= 0x80 || ( after & 0xc0 ) == 0x80 )
+        {
+            return false;
+        }
+
+        char next = (char) after;
+        if ( after >= 0x80 )
+        {
+            int length = after >= 0xf0 ? 4 : after >= 0xe0 ? 3 : 2;
+            byte[] sequence = new byte[length];
+            for ( int i = 0; i < length; i++ )
+            {
+                sequence[i] = (byte) probe.byteAt( position + i );
+            }
+            next = new String( sequence, StandardCharsets.UTF_8 ).charAt( 0 );
+        }
+        return this.manipulator.canSplitAt( new String( new char[] { (char) before, next } ), 1 );
+    }
+
+    private static StringBuilder await( Future<StringBuilder> future )
+        throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while manipulating", e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException( cause );
+        }
+    }
+
+    private ChunkedManipulation newManipulation()
+    {
+        return this.shouldFilter ? this.manipulator.newChunkedFilter() : this.manipulator.newChunkedEncoder();
+    }
+
+    /**
+     * Maps and decodes one chunk and hands it to the manipulation
+     *
+     * @param finish true to finish the manipulation after the chunk
+     * @return the output of the chunk
+     */
+    private static StringBuilder manipulate( FileChannel in, long[] chunk, ChunkedManipulation manipulation,
+        boolean finish )
+        throws IOException
+    {
+        MappedByteBuffer mapped = in.map( FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] );
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        CharBuffer decoded = decoder.decode( mapped );
+
+        // a quarter more than the input is a best guess
+        StringBuilder manipulated = new StringBuilder( decoded.length() + ( decoded.length() >> 2 ) );
+        manipulation.manipulate( decoded, 0, decoded.length(), manipulated );
+        if ( finish )
+        {
+            manipulation.finish( manipulated );
+        }
+        return manipulated;
+    }
+
+    /**
+     * Maps, decodes and manipulates one chunk that starts and ends where the input can be cut
+     */
+    private final class ChunkTask
+        implements Callable<StringBuilder>
+    {
+        private final FileChannel in;
+
+        private final long[] chunk;
+
+        ChunkTask( FileChannel in, long[] chunk )
+        {
+            this.in = in;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public StringBuilder call()
+            throws IOException
+        {
+            return manipulate( this.in, this.chunk, newManipulation(), true );
+        }
+    }
+
+    /**
+     * Reads single bytes of a file through a small window, for finding where to cut
+     */
+    private static final class Probe
+    {
+        private final FileChannel channel;
+
+        private final ByteBuffer window = ByteBuffer.allocate( 4096 );
+
+        private long windowStart = -1;
+
+        Probe( FileChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * @return the unsigned byte at the position, or 0 past the end of the file
+         */
+        int byteAt( long position )
+            throws IOException
+        {
+            if ( this.windowStart < 0 || position < this.windowStart
+                || position >= this.windowStart + this.window.limit() )
+            {
+                this.window.clear();
+                this.windowStart = position;
+                while ( this.window.hasRemaining()
+                    && this.channel.read( this.window, position + this.window.position() ) >= 0 )
+                {
+                    // keep reading until the window is full or the file ends
+                }
+                this.window.flip();
+                if ( !this.window.hasRemaining() )
+                {
+                    return 0;
+                }
+            }
+            return this.window.get( (int) ( position - this.windowStart ) ) & 0xff;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes one input as UTF-8 into a {@link WritableByteChannel} that may accept fewer bytes than offered, such as a
+ * non-blocking socket. Each call to {@link #write()} writes as much as the channel takes and returns; bytes the
+ * channel did not take stay in an internal direct buffer and are written first on the next call, so nothing is
+ * encoded twice. Only a slice of the input and its encoded form are held at once. This makes a session suitable for
+ * driving from a selector loop: call {@link #write()} whenever the channel is writable until it returns true.
+ * Obtain one with {@code SecureEncoder.encodingSession}.
+ */
+public final class ChannelEncodingSession
+{
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int SLICE_SIZE = 1024;
+
+    private final ChunkedManipulation manipulation;
+
+    private final CharSequence input;
+
+    private final WritableByteChannel channel;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect( BUFFER_SIZE );
+
+    // encoded characters not yet turned into bytes, read through chars
+    private final StringBuilder pending = new StringBuilder();
+
+    private CharBuffer chars = CharBuffer.wrap( this.pending );
+
+    private int inputPosition;
+
+    private boolean endOfChars;
+
+    private boolean flushing;
+
+    private boolean complete;
+
+    ChannelEncodingSession( ChunkedManipulation manipulation, CharSequence input, WritableByteChannel channel )
+    {
+        this.manipulation = manipulation;
+        this.input = input;
+        this.channel = channel;
+    }
+
+    /**
+     * Encodes and writes as much as the channel accepts without blocking
+     *
+     * @return true once all of the encoded input has been written, false if the channel stopped accepting bytes and
+     *         this should be called again when it is writable
+     * @throws IOException if the channel throws an IOException
+     */
+    public boolean write()
+        throws IOException
+    {
+        while ( true )
+        {
+            if ( this.bytes.position() > 0 )
+            {
+                this.bytes.flip();
+                this.channel.write( this.bytes );
+                boolean drained = !this.bytes.hasRemaining();
+                this.bytes.compact();
+                if ( !drained )
+                {
+                    return false;
+                }
+            }
+            if ( this.complete )
+            {
+                return true;
+            }
+            fillBytes();
+        }
+    }
+
+    /**
+     * @return true once all of the encoded input has been written
+     */
+    public boolean isComplete()
+    {
+        return this.complete && this.bytes.position() == 0;
+    }
+
+    /**
+     * Turns encoded characters into bytes until the buffer is full or the input is used up, encoding more of the input
+     * whenever the characters run out
+     */
+    private void fillBytes()
+        throws IOException
+    {
+        while ( !this.flushing )
+        {
+            CoderResult result = this.encoder.encode( this.chars, this.bytes, this.endOfChars );
+            if ( result.isOverflow() )
+            {
+                return;
+            }
+            if ( this.endOfChars )
+            {
+                this.flushing = true;
+            }
+            else
+            {
+                encodeSlice();
+            }
+        }
+
+        if ( !this.encoder.flush( this.bytes ).isOverflow() )
+        {
+            this.complete = true;
+        }
+    }
+
+    /**
+     * Replaces the consumed characters with the encoded form of the next slice of input, or with any held back
+     * output once the input is used up
+     */
+    private void encodeSlice()
+        throws IOException
+    {
+        // a trailing high surrogate is left unconsumed until its pair arrives, so it stays
+        this.pending.delete( 0, this.chars.position() );
+
+        if ( this.inputPosition < this.input.length() )
+        {
+            int end = Math.min( this.input.length(), this.inputPosition + SLICE_SIZE );
+            this.manipulation.manipulate( this.input, this.inputPosition, end, this.pending );
+            this.inputPosition = end;
+        }
+        else
+        {
+            this.manipulation.finish( this.pending );
+            this.endOfChars = true;
+        }
+        this.chars = CharBuffer.wrap( this.pending );
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * An Appendable that writes bytes in any Charset to an OutputStream, for targets that {@link Utf8Appendable} does not
+ * cover. Characters the Charset cannot represent are replaced with the Charset's replacement bytes, the same as an
+ * OutputStreamWriter would.
+ */
+final class CharsetAppendable
+    implements Appendable
+{
+    private static final int CHAR_BUFFER_SIZE = 4096;
+
+    private final CharsetEncoder encoder;
+
+    private final OutputStream out;
+
+    private final CharBuffer chars = CharBuffer.allocate( CHAR_BUFFER_SIZE );
+
+    private final ByteBuffer bytes;
+
+    CharsetAppendable( Charset charset, OutputStream out )
+    {
+        this.encoder = charset.newEncoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        this.out = out;
+        this.bytes = ByteBuffer.allocate( (int) Math.ceil( CHAR_BUFFER_SIZE * this.encoder.maxBytesPerChar() ) );
+    }
+
+    @Override
+    public Appendable append( CharSequence csq )
+        throws IOException
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        return append( seq, 0, seq.length() );
+    }
+
+    @Override
+    public Appendable append( CharSequence csq, int start, int end )
+        throws IOException
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        for ( int i = start; i < end; i++ )
+        {
+            if ( !this.chars.hasRemaining() )
+            {
+                drain( false );
+            }
+            this.chars.put( seq.charAt( i ) );
+        }
+        return this;
+    }
+
+    @Override
+    public Appendable append( char c )
+        throws IOException
+    {
+        if ( !this.chars.hasRemaining() )
+        {
+            drain( false );
+        }
+        this.chars.put( c );
+        return this;
+    }
+
+    /**
+     * Encodes everything still buffered and writes it to the stream. The stream itself is not flushed.
+     *
+     * @throws IOException if the stream throws an IOException
+     */
+    void finish()
+        throws IOException
+    {
+        drain( true );
+        CoderResult result;
+        do
+        {
+            result = this.encoder.flush( this.bytes );
+            writeBytes();
+        }
+        while ( result.isOverflow() );
+    }
+
+    private void drain( boolean endOfInput )
+        throws IOException
+    {
+        this.chars.flip();
+        CoderResult result;
+        do
+        {
+            result = this.encoder.encode( this.chars, this.bytes, endOfInput );
+            writeBytes();
+        }
+        while ( result.isOverflow() );
+        // a trailing high surrogate stays behind until its pair arrives
+        this.chars.compact();
+    }
+
+    private void writeBytes()
+        throws IOException
+    {
+        if ( this.bytes.position() > 0 )
+        {
+            this.out.write( this.bytes.array(), 0, this.bytes.position() );
+            this.bytes.clear();
+        }
+    }
+}
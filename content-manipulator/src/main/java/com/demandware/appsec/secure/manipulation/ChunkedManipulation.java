@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+
+/**
+ * An encoding or filtering of one logical input that is handed over in chunks. Manipulators are shared and must not
+ * hold per-call data, so any state that has to survive from one chunk to the next lives here instead. Create one with
+ * {@link AbstractManipulator#newChunkedEncoder()} or {@link AbstractManipulator#newChunkedFilter()}, call
+ * {@link #manipulate(CharSequence, int, int, Appendable)} for each chunk in order and {@link #finish(Appendable)} once
+ * at the end. The concatenated output is the same as encoding or filtering the concatenated input in one call. Once
+ * finished it is back where it started and takes the next input, so one thread can reuse it for input after input.
+ */
+public abstract class ChunkedManipulation
+{
+
+    protected ChunkedManipulation()
+    {
+    }
+
+    /**
+     * Manipulates the next chunk of input and appends whatever output can already be decided to the output object.
+     * Some output may be held back until a later chunk or {@link #finish(Appendable)} shows how it ends.
+     *
+     * @param input the sequence holding the next chunk
+     * @param start index of the first character of the chunk
+     * @param end index after the last character of the chunk
+     * @param output the object to append the manipulated chunk to
+     * @throws IOException if the output throws an IOException
+     */
+    public abstract void manipulate( CharSequence input, int start, int end, Appendable output )
+        throws IOException;
+
+    /**
+     * Ends the input, appending any output that was held back, and starts over for the next input
+     *
+     * @param output the object to append the remaining output to
+     * @throws IOException if the output throws an IOException
+     */
+    public abstract void finish( Appendable output )
+        throws IOException;
+
+    /**
+     * The fallback for Manipulators that need to see their whole input at once: every chunk is collected and the
+     * complete input is manipulated on {@link #finish(Appendable)}
+     */
+    static final class Buffered
+        extends ChunkedManipulation
+    {
+        private final AbstractManipulator manipulator;
+
+        private final boolean shouldFilter;
+
+        private final StringBuilder pending = new StringBuilder();
+
+        Buffered( AbstractManipulator manipulator, boolean shouldFilter )
+        {
+            this.manipulator = manipulator;
+            this.shouldFilter = shouldFilter;
+        }
+
+        @Override
+        public void manipulate( CharSequence input, int start, int end, Appendable output )
+        {
+            this.pending.append( input, start, end );
+        }
+
+        @Override
+        public void finish( Appendable output )
+            throws IOException
+        {
+            String input = this.pending.toString();
+            this.pending.setLength( 0 );
+
+            if ( this.shouldFilter )
+            {
+                this.manipulator.filterInternal( input, output );
+            }
+            else
+            {
+                this.manipulator.encodeInternal( input, output );
+            }
+        }
+    }
+}
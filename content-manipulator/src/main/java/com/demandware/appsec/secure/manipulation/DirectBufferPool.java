@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of fixed-size, off-heap segments for UTF-8 output. Segments are sliced out of larger direct slabs
+ * so the cost of allocating direct memory is paid once per slab, and they are handed back through
+ * {@link PooledByteOutput#close()} to be reused by later requests. A pool is typically created once per application
+ * and shared.
+ */
+public class DirectBufferPool
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024;
+
+    public static final int DEFAULT_SEGMENTS_PER_SLAB = 64;
+
+    public static final int DEFAULT_MAX_POOLED_SEGMENTS = 1024;
+
+    private final int segmentSize;
+
+    private final int segmentsPerSlab;
+
+    private final int maxPooledSegments;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooledSegments = new AtomicInteger();
+
+    /**
+     * Creates a pool of {@value #DEFAULT_SEGMENT_SIZE} byte segments, keeping at most
+     * {@value #DEFAULT_MAX_POOLED_SEGMENTS} idle segments
+     */
+    public DirectBufferPool()
+    {
+        this( DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENTS_PER_SLAB, DEFAULT_MAX_POOLED_SEGMENTS );
+    }
+
+    /**
+     * @param segmentSize the capacity of each segment in bytes, at least 4 so any character fits
+     * @param segmentsPerSlab how many segments to cut out of each direct allocation
+     * @param maxPooledSegments the most idle segments to keep, any further released segments are left to the garbage
+     *            collector
+     * @throws IllegalArgumentException if any size is out of range
+     */
+    public DirectBufferPool( int segmentSize, int segmentsPerSlab, int maxPooledSegments )
+    {
+        if ( segmentSize < 4 || segmentsPerSlab < 1 || maxPooledSegments < 0 )
+        {
+            throw new IllegalArgumentException( "DirectBufferPool was given an illegal size" );
+        }
+        if ( (long) segmentSize * segmentsPerSlab > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "DirectBufferPool slab would be larger than 2GB" );
+        }
+        this.segmentSize = segmentSize;
+        this.segmentsPerSlab = segmentsPerSlab;
+        this.maxPooledSegments = maxPooledSegments;
+    }
+
+    /**
+     * @return the capacity of every segment in this pool
+     */
+    public int getSegmentSize()
+    {
+        return this.segmentSize;
+    }
+
+    /**
+     * Takes an idle segment from the pool, allocating a new slab if none are left
+     *
+     * @return a cleared, direct segment of {@link #getSegmentSize()} bytes
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer segment = this.free.poll();
+        if ( segment == null )
+        {
+            return allocateSlab();
+        }
+        this.pooledSegments.decrementAndGet();
+        segment.clear();
+        return segment;
+    }
+
+    /**
+     * Returns a segment to the pool. The caller must not use the segment afterwards. Buffers that did not come from
+     * this pool are ignored.
+     *
+     * @param segment a segment previously returned by {@link #acquire()}
+     */
+    public void release( ByteBuffer segment )
+    {
+        if ( segment == null || !segment.isDirect() || segment.capacity() != this.segmentSize )
+        {
+            return;
+        }
+
+        if ( this.pooledSegments.incrementAndGet() > this.maxPooledSegments )
+        {
+            this.pooledSegments.decrementAndGet();
+            return;
+        }
+        segment.clear();
+        this.free.offer( segment );
+    }
+
+    private ByteBuffer allocateSlab()
+    {
+        ByteBuffer slab = ByteBuffer.allocateDirect( this.segmentSize * this.segmentsPerSlab );
+        ByteBuffer first = null;
+        for ( int i = 0; i < this.segmentsPerSlab; i++ )
+        {
+            slab.limit( ( i + 1 ) * this.segmentSize ).position( i * this.segmentSize );
+            ByteBuffer segment = slab.slice();
+            if ( first == null )
+            {
+                first = segment;
+            }
+            else
+            {
+                release( segment );
+            }
+        }
+        return first;
+    }
+}
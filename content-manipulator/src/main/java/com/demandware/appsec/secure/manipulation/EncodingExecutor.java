@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.demandware.appsec.secure.manipulation.impl.IManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+/**
+ * Encodes large numbers of independent values, each with its own {@link IManipulationType}, on a work-stealing
+ * {@link ForkJoinPool}. The work is split down to batches of {@link #BATCH_SIZE} values; each batch looks its
+ * Manipulators up once and reuses one scratch buffer for all of its values, so workers share nothing but the input.
+ * Results come back in encounter order, each written straight to its place, or as soon as each is ready.
+ * <p>
+ * Each value is encoded exactly as {@link SecureEncoder#encode(IManipulationType, String)} would, including any size
+ * limit set for its type, and a value that needs no encoding is returned as the same instance.
+ */
+public final class EncodingExecutor
+{
+    /**
+     * The number of values one worker encodes before the rest of its share may be stolen
+     */
+    public static final int BATCH_SIZE = 1024;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an executor running on the common {@link ForkJoinPool}
+     */
+    public EncodingExecutor()
+    {
+        this( ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * Creates an executor running on the given pool, e.g. one sized for the encoding workload
+     *
+     * @param pool the pool to encode on
+     * @throws IllegalArgumentException if the pool is null
+     */
+    public EncodingExecutor( ForkJoinPool pool )
+    {
+        if ( pool == null )
+        {
+            throw new IllegalArgumentException( "ForkJoinPool cannot be null" );
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Encodes every task of the collection
+     *
+     * @param tasks the values to encode with their types
+     * @return the encoded values in the order of the collection, in a fixed-size list
+     * @throws IllegalArgumentException if the collection or any task in it is null
+     */
+    public List<String> encode( Collection<? extends Task> tasks )
+    {
+        if ( tasks == null )
+        {
+            throw new IllegalArgumentException( "Collection cannot be null" );
+        }
+        return encodeAll( tasks.spliterator() );
+    }
+
+    /**
+     * Encodes every task of the stream, which is consumed
+     *
+     * @param tasks the values to encode with their types
+     * @return the encoded values in the encounter order of the stream, in a fixed-size list
+     * @throws IllegalArgumentException if the stream or any task in it is null
+     */
+    public List<String> encode( Stream<? extends Task> tasks )
+    {
+        if ( tasks == null )
+        {
+            throw new IllegalArgumentException( "Stream cannot be null" );
+        }
+        return encodeAll( tasks.spliterator() );
+    }
+
+    /**
+     * Encodes every task of the spliterator and hands each result to the consumer on the calling thread, in
+     * encounter order. The tasks are taken a window of {@link #BATCH_SIZE} per pool thread at a time, so at most
+     * that many tasks and results are held at once, and the results of each window are handed over before the next
+     * window is encoded.
+     *
+     * @param tasks the values to encode with their types
+     * @param consumer receives each task with its encoded value
+     * @throws IllegalArgumentException if an argument or any task is null
+     */
+    public void encodeOrdered( Spliterator<? extends Task> tasks, BiConsumer<? super Task, ? super String> consumer )
+    {
+        if ( tasks == null || consumer == null )
+        {
+            throw new IllegalArgumentException( "Spliterator and BiConsumer cannot be null" );
+        }
+        int window = BATCH_SIZE * this.pool.getParallelism();
+        List<Task> taken = new ArrayList<Task>( window );
+        boolean more = true;
+        while ( more )
+        {
+            taken.clear();
+            do
+            {
+                more = tasks.tryAdvance( taken::add );
+            }
+            while ( more && taken.size() < window );
+
+            String[] values = new String[taken.size()];
+            this.pool.invoke( new BatchTask( taken.spliterator(), 0, values, null ) );
+            for ( int i = 0; i < values.length; i++ )
+            {
+                consumer.accept( taken.get( i ), values[i] );
+            }
+        }
+    }
+
+    /**
+     * Encodes every task of the spliterator and hands each result to the consumer as soon as it is ready. The
+     * consumer is called from the pool's threads, concurrently and in no particular order, and must be thread safe.
+     * Returns once every result has been handed over.
+     *
+     * @param tasks the values to encode with their types
+     * @param consumer receives each task with its encoded value
+     * @throws IllegalArgumentException if an argument or any task is null
+     */
+    public void encodeUnordered( Spliterator<? extends Task> tasks, BiConsumer<? super Task, ? super String> consumer )
+    {
+        if ( tasks == null || consumer == null )
+        {
+            throw new IllegalArgumentException( "Spliterator and BiConsumer cannot be null" );
+        }
+        this.pool.invoke( new BatchTask( tasks, 0, null, consumer ) );
+    }
+
+    private List<String> encodeAll( Spliterator<? extends Task> tasks )
+    {
+        if ( !tasks.hasCharacteristics( Spliterator.SUBSIZED ) )
+        {
+            // where each part of the work starts is only known if every split knows its size
+            List<Task> taken = new ArrayList<Task>();
+            tasks.forEachRemaining( taken::add );
+            tasks = taken.spliterator();
+        }
+        String[] values = new String[(int) tasks.getExactSizeIfKnown()];
+        this.pool.invoke( new BatchTask( tasks, 0, values, null ) );
+        return Arrays.asList( values );
+    }
+
+    /**
+     * A value to encode along with the type to encode it for
+     */
+    public static final class Task
+    {
+        private final IManipulationType type;
+
+        private final String value;
+
+        /**
+         * @param type the manipulation type to encode the value for
+         * @param value the value to encode, may be null
+         * @throws IllegalArgumentException if the type is null
+         */
+        public Task( IManipulationType type, String value )
+        {
+            if ( type == null )
+            {
+                throw new IllegalArgumentException( "IManipulationType cannot be null" );
+            }
+            this.type = type;
+            this.value = value;
+        }
+
+        public IManipulationType getType()
+        {
+            return this.type;
+        }
+
+        public String getValue()
+        {
+            return this.value;
+        }
+    }
+
+    /**
+     * Splits its share of the work in two for as long as it is larger than a batch, then encodes it. Without a
+     * consumer each result is written to its index in the values, with one they are handed straight over.
+     */
+    private static final class BatchTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator<? extends Task> tasks;
+
+        // the index in the values of the first of the tasks
+        private final int offset;
+
+        private final String[] values;
+
+        private final BiConsumer<? super Task, ? super String> consumer;
+
+        BatchTask( Spliterator<? extends Task> tasks, int offset, String[] values,
+            BiConsumer<? super Task, ? super String> consumer )
+        {
+            this.tasks = tasks;
+            this.offset = offset;
+            this.values = values;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute()
+        {
+            Spliterator<? extends Task> prefix = null;
+            if ( this.tasks.estimateSize() > BATCH_SIZE )
+            {
+                prefix = this.tasks.trySplit();
+            }
+            if ( prefix == null )
+            {
+                this.tasks.forEachRemaining( new Batch( this.values, this.offset, this.consumer ) );
+                return;
+            }
+
+            // the values are only written to when every split knows its exact size
+            int restOffset = this.values == null ? 0 : this.offset + (int) prefix.getExactSizeIfKnown();
+            BatchTask rest = new BatchTask( this.tasks, restOffset, this.values, this.consumer );
+            rest.fork();
+            new BatchTask( prefix, this.offset, this.values, this.consumer ).compute();
+            rest.join();
+        }
+    }
+
+    /**
+     * Encodes the tasks of one batch, looking each Manipulator up once and reusing one scratch buffer
+     */
+    private static final class Batch
+        implements Consumer<Task>
+    {
+        private final Map<IManipulationType, AbstractManipulator> manipulators =
+            new IdentityHashMap<IManipulationType, AbstractManipulator>();
+
+        private final StringBuilder scratch = new StringBuilder();
+
+        private final String[] values;
+
+        private final BiConsumer<? super Task, ? super String> consumer;
+
+        // where the next result goes in the values
+        private int index;
+
+        Batch( String[] values, int offset, BiConsumer<? super Task, ? super String> consumer )
+        {
+            this.values = values;
+            this.index = offset;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept( Task task )
+        {
+            if ( task == null )
+            {
+                throw new IllegalArgumentException( "Task cannot be null" );
+            }
+            String encoded = encode( task );
+            if ( this.consumer != null )
+            {
+                this.consumer.accept( task, encoded );
+            }
+            else
+            {
+                this.values[this.index++] = encoded;
+            }
+        }
+
+        private String encode( Task task )
+        {
+            AbstractManipulator manip = this.manipulators.get( task.getType() );
+            if ( manip == null )
+            {
+                manip = ManipulatorFactory.getManipulator( task.getType() );
+                this.manipulators.put( task.getType(), manip );
+            }
+            String value = task.getValue();
+            if ( value == null )
+            {
+                return null;
+            }
+
+            SizeLimit limit = SecureEncoder.getSizeLimit( task.getType() );
+            if ( limit != null )
+            {
+                return manip.encodeLimited( value, limit );
+            }
+            this.scratch.setLength( 0 );
+            try
+            {
+                manip.encodeInternal( value, this.scratch );
+            }
+            catch ( IOException e )
+            {
+                // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+                throw new UncheckedIOException( e );
+            }
+            return value.contentEquals( this.scratch ) ? value : this.scratch.toString();
+        }
+    }
+}
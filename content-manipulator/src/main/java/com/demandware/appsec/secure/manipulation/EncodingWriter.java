@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * A Writer that encodes everything written through it before passing it on to another Writer. Encoded output is
+ * collected in a fixed block and handed over a block at a time. Context that spans writes, such as a CDATA end split
+ * between two calls, is carried across them, so writing a value in pieces gives the same output as encoding it whole.
+ * Some output may be held back until more input shows how it ends; {@link #close()} writes it out. Obtain one with
+ * {@link SecureEncoder#wrap(com.demandware.appsec.secure.manipulation.impl.IManipulationType, Writer)}.
+ */
+public class EncodingWriter
+    extends Writer
+{
+    private static final int BLOCK_SIZE = 8192;
+
+    private final ChunkedManipulation manipulation;
+
+    private final Writer out;
+
+    private final char[] block = new char[BLOCK_SIZE];
+
+    private int count;
+
+    private final char[] single = new char[1];
+
+    private final CharBuffer singleBuffer = CharBuffer.wrap( this.single );
+
+    private boolean closed;
+
+    // collects manipulated output in the block, passing it on whenever the block fills up
+    private final Appendable blockAppendable = new Appendable()
+    {
+        @Override
+        public Appendable append( CharSequence csq )
+            throws IOException
+        {
+            CharSequence seq = csq == null ? "null" : csq;
+            return append( seq, 0, seq.length() );
+        }
+
+        @Override
+        public Appendable append( CharSequence csq, int start, int end )
+            throws IOException
+        {
+            CharSequence seq = csq == null ? "null" : csq;
+            for ( int i = start; i < end; i++ )
+            {
+                if ( EncodingWriter.this.count == BLOCK_SIZE )
+                {
+                    writeBlock();
+                }
+                EncodingWriter.this.block[EncodingWriter.this.count++] = seq.charAt( i );
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append( char c )
+            throws IOException
+        {
+            if ( EncodingWriter.this.count == BLOCK_SIZE )
+            {
+                writeBlock();
+            }
+            EncodingWriter.this.block[EncodingWriter.this.count++] = c;
+            return this;
+        }
+    };
+
+    EncodingWriter( ChunkedManipulation manipulation, Writer out )
+    {
+        super( out );
+        this.manipulation = manipulation;
+        this.out = out;
+    }
+
+    @Override
+    public void write( int c )
+        throws IOException
+    {
+        ensureOpen();
+        this.single[0] = (char) c;
+        this.manipulation.manipulate( this.singleBuffer, 0, 1, this.blockAppendable );
+    }
+
+    @Override
+    public void write( char[] cbuf, int off, int len )
+        throws IOException
+    {
+        ensureOpen();
+        if ( off < 0 || len < 0 || off + len > cbuf.length )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        this.manipulation.manipulate( CharBuffer.wrap( cbuf ), off, off + len, this.blockAppendable );
+    }
+
+    @Override
+    public void write( String str, int off, int len )
+        throws IOException
+    {
+        ensureOpen();
+        if ( off < 0 || len < 0 || off + len > str.length() )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        this.manipulation.manipulate( str, off, off + len, this.blockAppendable );
+    }
+
+    @Override
+    public Writer append( CharSequence csq, int start, int end )
+        throws IOException
+    {
+        ensureOpen();
+        CharSequence seq = csq == null ? "null" : csq;
+        this.manipulation.manipulate( seq, start, end, this.blockAppendable );
+        return this;
+    }
+
+    @Override
+    public Writer append( CharSequence csq )
+        throws IOException
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        return append( seq, 0, seq.length() );
+    }
+
+    /**
+     * Passes all encoded output produced so far on to the underlying Writer and flushes it. Output held back to see how
+     * the input continues is not written until more input arrives or this Writer is closed.
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        ensureOpen();
+        writeBlock();
+        this.out.flush();
+    }
+
+    /**
+     * Ends the encoded value, writing any held back output, and closes the underlying Writer
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if ( this.closed )
+        {
+            return;
+        }
+        this.closed = true;
+        this.manipulation.finish( this.blockAppendable );
+        writeBlock();
+        this.out.close();
+    }
+
+    private void writeBlock()
+        throws IOException
+    {
+        if ( this.count > 0 )
+        {
+            this.out.write( this.block, 0, this.count );
+            this.count = 0;
+        }
+    }
+
+    private void ensureOpen()
+        throws IOException
+    {
+        if ( this.closed )
+        {
+            throw new IOException( "EncodingWriter is closed" );
+        }
+    }
+}
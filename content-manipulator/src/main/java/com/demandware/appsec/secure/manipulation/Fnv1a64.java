@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The 64-bit FNV-1a hash, a fast non-cryptographic hash suited to cache keys and ETags. Text is hashed as its UTF-8
+ * bytes, so {@link SecureEncoder#encodedFnv1a64(com.demandware.appsec.secure.manipulation.impl.IManipulationType,
+ * String)} gives exactly {@code Fnv1a64.hash( SecureEncoder.encode( type, input ) )} without building the encoded
+ * String.
+ */
+public final class Fnv1a64
+{
+    /**
+     * The hash of no bytes at all, which hashing starts from
+     */
+    public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fnv1a64()
+    {
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of the characters, with unpaired surrogates as '?' like
+     * {@link String#getBytes(java.nio.charset.Charset)} writes them
+     *
+     * @param chars the characters to hash
+     * @return the hash of their UTF-8 bytes
+     * @throws IllegalArgumentException if the characters are null
+     */
+    public static long hash( CharSequence chars )
+    {
+        if ( chars == null )
+        {
+            throw new IllegalArgumentException( "CharSequence cannot be null" );
+        }
+        Utf8Appendable.HashUtf8Appendable utf8 = Utf8Appendable.toFnv1a64();
+        try
+        {
+            utf8.append( chars );
+            utf8.finish();
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as hashing shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return utf8.hash();
+    }
+
+    /**
+     * Hashes the bytes
+     *
+     * @param bytes the bytes to hash
+     * @return the hash of the bytes
+     * @throws IllegalArgumentException if the bytes are null
+     */
+    public static long hash( byte[] bytes )
+    {
+        if ( bytes == null )
+        {
+            throw new IllegalArgumentException( "byte[] cannot be null" );
+        }
+        return update( OFFSET_BASIS, bytes, 0, bytes.length );
+    }
+
+    /**
+     * Continues a hash with more bytes, so that hashing a sequence piece by piece gives the hash of the whole
+     *
+     * @param hash the hash so far, {@link #OFFSET_BASIS} to start
+     * @param bytes holds the bytes to add
+     * @param offset the index of the first byte to add
+     * @param length the number of bytes to add
+     * @return the hash including the added bytes
+     */
+    public static long update( long hash, byte[] bytes, int offset, int length )
+    {
+        long h = hash;
+        for ( int i = offset; i < offset + length; i++ )
+        {
+            h = ( h ^ ( bytes[i] & 0xff ) ) * PRIME;
+        }
+        return h;
+    }
+}
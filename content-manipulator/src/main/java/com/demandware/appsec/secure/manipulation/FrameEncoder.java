@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Encodes one input into a sequence of frames of bounded size, such as HTTP chunks or WebSocket frames, encoding only
+ * as much input as each frame needs. A frame is only ever cut between the outputs of two code points, so an escape
+ * like {@code &#x1f600;} or {@code %e9}, a surrogate pair or a replaced CDATA end always lands whole in one frame.
+ * The frames joined together are exactly the encoded input. Obtain one with
+ * {@link SecureEncoder#frameEncoder(com.demandware.appsec.secure.manipulation.impl.IManipulationType, CharSequence)}.
+ * Only Manipulators that encode as the input comes can be split into frames; one that writes all of its output when
+ * finished would have to hold the whole encoded input, and is refused.
+ */
+public final class FrameEncoder
+{
+    /**
+     * The smallest frame size accepted, large enough for the longest output of any one code point
+     */
+    public static final int MINIMUM_FRAME_SIZE = 16;
+
+    private final ManipulationUnits units;
+
+    private final int length;
+
+    // the next output to place whole, empty if it has not been taken yet
+    private final StringBuilder unit = new StringBuilder();
+
+    private int position;
+
+    FrameEncoder( ChunkedManipulation manipulation, CharSequence input )
+    {
+        if ( manipulation instanceof ChunkedManipulation.Buffered )
+        {
+            throw new IllegalArgumentException( "Manipulator must encode in chunks to be split into frames" );
+        }
+        this.units = new ManipulationUnits( manipulation, input, input.length() );
+        this.length = input.length();
+    }
+
+    /**
+     * @return true if there is encoded output left for another frame
+     */
+    public boolean hasNext()
+    {
+        return takeUnit();
+    }
+
+    /**
+     * Encodes the next frame of at most the given number of characters
+     *
+     * @param maxChars the maximum length of the frame, at least {@link #MINIMUM_FRAME_SIZE}
+     * @return the next frame, never empty
+     * @throws IllegalArgumentException if maxChars is less than {@link #MINIMUM_FRAME_SIZE}
+     * @throws NoSuchElementException if there is no output left
+     */
+    public String nextFrame( int maxChars )
+    {
+        StringBuilder frame = new StringBuilder();
+        fill( maxChars, frame, false );
+        return frame.toString();
+    }
+
+    /**
+     * Encodes the next frame as UTF-8 of at most the given number of bytes. A multi-byte sequence is never cut, and
+     * the frame is measured as the bytes it is made of.
+     *
+     * @param maxBytes the maximum length of the frame, at least {@link #MINIMUM_FRAME_SIZE}
+     * @return the next frame, never empty
+     * @throws IllegalArgumentException if maxBytes is less than {@link #MINIMUM_FRAME_SIZE}
+     * @throws NoSuchElementException if there is no output left
+     */
+    public byte[] nextUtf8Frame( int maxBytes )
+    {
+        Utf8Appendable.ArrayUtf8Appendable frame = Utf8Appendable.toByteArray( maxBytes );
+        fill( maxBytes, frame, true );
+        try
+        {
+            frame.finish();
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as an in-memory byte array shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return frame.toByteArray();
+    }
+
+    /**
+     * Returns where in the input the next frame resumes: the index of the first character whose output has not been
+     * returned in a frame yet. Output the encoder holds back to see how the input continues, such as trailing ']'
+     * characters in CDATA, is not tied to a position and arrives with a later frame.
+     *
+     * @return the input index the next frame resumes at, the input length once everything has been returned
+     */
+    public int getInputPosition()
+    {
+        return this.position;
+    }
+
+    /**
+     * Moves whole units into the frame while they fit, measured in chars or in UTF-8 bytes
+     */
+    private void fill( int max, Appendable frame, boolean utf8 )
+    {
+        if ( max < MINIMUM_FRAME_SIZE )
+        {
+            throw new IllegalArgumentException( "Frame size must be at least " + MINIMUM_FRAME_SIZE );
+        }
+        if ( !takeUnit() )
+        {
+            throw new NoSuchElementException( "No encoded output left" );
+        }
+
+        int size = 0;
+        try
+        {
+            do
+            {
+                int unitSize = utf8 ? ManipulationUnits.utf8Length( this.unit ) : this.unit.length();
+                if ( size + unitSize > max )
+                {
+                    if ( size == 0 )
+                    {
+                        throw new IllegalStateException( "Output of one code point does not fit into a frame of "
+                            + max );
+                    }
+                    break;
+                }
+                frame.append( this.unit );
+                size += unitSize;
+                this.unit.setLength( 0 );
+                this.position = this.units.getUnitEnd();
+            }
+            while ( takeUnit() );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as in-memory frames shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Makes sure the next unit is at hand, skipping code points that produce nothing
+     *
+     * @return false if there is no output left
+     */
+    private boolean takeUnit()
+    {
+        try
+        {
+            while ( this.unit.length() == 0 )
+            {
+                if ( !this.units.next( this.unit ) )
+                {
+                    this.position = this.length;
+                    return false;
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as an in-memory StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return true;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+
+/**
+ * Encodes or filters a region of a mutable buffer in place. The output is written over the input from the front
+ * while the input is still being read further on, so the input must always stay ahead of the output. A first pass
+ * measures the output and how far it ever runs ahead of the input; the input is then moved back by that much, which
+ * together with the shift of everything after the region is one single move, and a second pass writes the output.
+ * Filtering never runs ahead, so it needs no gap and only closes up what it removed.
+ */
+final class InPlaceManipulation
+{
+
+    private InPlaceManipulation()
+    {
+    }
+
+    /**
+     * Manipulates the region of the builder in place, shifting what follows it
+     *
+     * @param manipulator the Manipulator to use
+     * @param builder the builder holding the region
+     * @param start index of the first character of the region
+     * @param end index after the last character of the region
+     * @param shouldFilter true if filtering, false if encoding
+     * @return the index after the manipulated region
+     */
+    static int manipulate( AbstractManipulator manipulator, StringBuilder builder, int start, int end,
+        boolean shouldFilter )
+    {
+        checkRegion( start, end, builder.length() );
+        int length = end - start;
+        try
+        {
+            Measure measure = measure( newManipulation( manipulator, shouldFilter ), builder, start, end );
+
+            int lead = measure.lead;
+            if ( lead > 0 )
+            {
+                // make room in front of the input, shifting the region and everything after it at once
+                builder.insert( start, new Gap( lead ) );
+            }
+
+            Region output = new Region( builder, start );
+            ChunkedManipulation manipulation = newManipulation( manipulator, shouldFilter );
+            manipulation.manipulate( new Region( builder, start + lead ), 0, length, output );
+            manipulation.finish( output );
+
+            int outputEnd = start + measure.total;
+            int unused = lead + length - measure.total;
+            if ( unused > 0 )
+            {
+                builder.delete( outputEnd, outputEnd + unused );
+            }
+            return outputEnd;
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as in-memory buffers shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Filters the region of the array in place, moving the output to the front of the region. The characters between
+     * the returned index and the end of the region are left as they were.
+     *
+     * @param manipulator the Manipulator to use
+     * @param chars the array holding the region
+     * @param start index of the first character of the region
+     * @param end index after the last character of the region
+     * @return the index after the filtered region
+     */
+    static int filter( AbstractManipulator manipulator, char[] chars, int start, int end )
+    {
+        checkRegion( start, end, chars.length );
+        CharBuffer region = CharBuffer.wrap( chars, start, end - start ).slice();
+        try
+        {
+            Measure measure = measure( manipulator.newChunkedFilter(), region, 0, region.length() );
+            if ( measure.lead > 0 )
+            {
+                throw new IllegalStateException(
+                    "Filter output runs ahead of its input and cannot be written in place" );
+            }
+
+            ArrayOutput output = new ArrayOutput( chars, start );
+            ChunkedManipulation manipulation = manipulator.newChunkedFilter();
+            manipulation.manipulate( region, 0, region.length(), output );
+            manipulation.finish( output );
+            return output.position;
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as in-memory buffers shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private static void checkRegion( int start, int end, int length )
+    {
+        if ( start < 0 || end > length || start > end )
+        {
+            throw new IndexOutOfBoundsException( "start " + start + ", end " + end + ", length " + length );
+        }
+    }
+
+    private static ChunkedManipulation newManipulation( AbstractManipulator manipulator, boolean shouldFilter )
+    {
+        return shouldFilter ? manipulator.newChunkedFilter() : manipulator.newChunkedEncoder();
+    }
+
+    /**
+     * Manipulates the input a code point at a time, counting the output and tracking how far it gets ahead of the
+     * input after each code point
+     */
+    private static Measure measure( ChunkedManipulation manipulation, CharSequence input, int start, int end )
+        throws IOException
+    {
+        Measure measure = new Measure();
+        int i = start;
+        while ( i < end )
+        {
+            int next = i + 1;
+            if ( Character.isHighSurrogate( input.charAt( i ) ) && next < end
+                && Character.isLowSurrogate( input.charAt( next ) ) )
+            {
+                next++;
+            }
+            manipulation.manipulate( input, i, next, measure );
+            i = next;
+            measure.lead = Math.max( measure.lead, measure.total - ( i - start ) );
+        }
+        manipulation.finish( measure );
+        measure.lead = Math.max( measure.lead, measure.total - ( end - start ) );
+        return measure;
+    }
+
+    /**
+     * Counts what is appended to it
+     */
+    private static final class Measure
+        implements Appendable
+    {
+        int total;
+
+        int lead;
+
+        @Override
+        public Appendable append( CharSequence csq )
+        {
+            this.total += csq == null ? 4 : csq.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append( CharSequence csq, int start, int end )
+        {
+            this.total += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append( char c )
+        {
+            this.total++;
+            return this;
+        }
+    }
+
+    /**
+     * A run of placeholder characters, inserted without allocating them
+     */
+    private static final class Gap
+        implements CharSequence
+    {
+        private final int length;
+
+        Gap( int length )
+        {
+            this.length = length;
+        }
+
+        @Override
+        public int length()
+        {
+            return this.length;
+        }
+
+        @Override
+        public char charAt( int index )
+        {
+            return 0;
+        }
+
+        @Override
+        public CharSequence subSequence( int start, int end )
+        {
+            return new Gap( end - start );
+        }
+    }
+
+    /**
+     * A window onto a builder from a fixed offset, both read as the input and written as the output
+     */
+    private static final class Region
+        implements CharSequence, Appendable
+    {
+        private final StringBuilder builder;
+
+        private final int offset;
+
+        private int position;
+
+        Region( StringBuilder builder, int offset )
+        {
+            this.builder = builder;
+            this.offset = offset;
+            this.position = offset;
+        }
+
+        @Override
+        public int length()
+        {
+            return this.builder.length() - this.offset;
+        }
+
+        @Override
+        public char charAt( int index )
+        {
+            return this.builder.charAt( this.offset + index );
+        }
+
+        @Override
+        public CharSequence subSequence( int start, int end )
+        {
+            return this.builder.subSequence( this.offset + start, this.offset + end );
+        }
+
+        @Override
+        public Appendable append( CharSequence csq )
+        {
+            CharSequence seq = csq == null ? "null" : csq;
+            return append( seq, 0, seq.length() );
+        }
+
+        @Override
+        public Appendable append( CharSequence csq, int start, int end )
+        {
+            CharSequence seq = csq == null ? "null" : csq;
+            // reading front to back is safe even from this builder, the input is always ahead of the output
+            for ( int i = start; i < end; i++ )
+            {
+                this.builder.setCharAt( this.position++, seq.charAt( i ) );
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append( char c )
+        {
+            this.builder.setCharAt( this.position++, c );
+            return this;
+        }
+    }
+
+    /**
+     * Writes into an array from a starting index
+     */
+    private static final class ArrayOutput
+        implements Appendable
+    {
+        private final char[] chars;
+
+        int position;
+
+        ArrayOutput( char[] chars, int position )
+        {
+            this.chars = chars;
+            this.position = position;
+        }
+
+        @Override
+        public Appendable append( CharSequence csq )
+        {
+            CharSequence seq = csq == null ? "null" : csq;
+            return append( seq, 0, seq.length() );
+        }
+
+        @Override
+        public Appendable append( CharSequence csq, int start, int end )
+        {
+            CharSequence seq = csq == null ? "null" : csq;
+            for ( int i = start; i < end; i++ )
+            {
+                this.chars[this.position++] = seq.charAt( i );
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append( char c )
+        {
+            this.chars[this.position++] = c;
+            return this;
+        }
+    }
+}
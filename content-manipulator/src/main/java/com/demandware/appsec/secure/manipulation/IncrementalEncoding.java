@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Encodes an input while recording an {@link OffsetMap}, and re-encodes an edited input from a previous result. An
+ * edit is widened to the nearest places on either side where the Manipulator could cut both the old and the new input,
+ * see {@link AbstractManipulator#canSplitAt(CharSequence, int)}; everything outside of that is encoded exactly as
+ * before, so only the widened range is encoded and the rest is copied from the previous output.
+ */
+final class IncrementalEncoding
+{
+    private IncrementalEncoding()
+    {
+    }
+
+    /**
+     * @param manipulator the Manipulator to use
+     * @param input the string to encode
+     * @return the encoded input with its offset map
+     */
+    static MappedEncoding encode( AbstractManipulator manipulator, String input )
+    {
+        StringBuilder output = new StringBuilder( input.length() + ( input.length() >> 2 ) );
+        OffsetMap.Builder map = new OffsetMap.Builder();
+        encodeRange( manipulator, input, 0, input.length(), output, map );
+        return new MappedEncoding( manipulator, input, output.toString(), map.build( input.length() ) );
+    }
+
+    /**
+     * @param manipulator the Manipulator to use, the one the previous result was encoded with
+     * @param previous the previous result
+     * @param start the index of the first character of the previous input that was replaced
+     * @param end the index after the last character of the previous input that was replaced
+     * @param replacement what replaced the range
+     * @return the encoded new input with its offset map
+     */
+    static MappedEncoding reencode( AbstractManipulator manipulator, MappedEncoding previous, int start, int end,
+        CharSequence replacement )
+    {
+        String oldInput = previous.getInput();
+        if ( start < 0 || end < start || end > oldInput.length() )
+        {
+            throw new IndexOutOfBoundsException( "Range " + start + " to " + end + " is outside an input of length "
+                + oldInput.length() );
+        }
+        String newInput = new StringBuilder( oldInput.length() - ( end - start ) + replacement.length() )
+            .append( oldInput, 0, start ).append( replacement ).append( oldInput, end, oldInput.length() ).toString();
+
+        // move out to where both inputs can be cut, the text before and after stays the same so its encoding does too
+        int from = start;
+        while ( !( isBoundary( manipulator, oldInput, from ) && isBoundary( manipulator, newInput, from ) ) )
+        {
+            from--;
+        }
+        int oldTo = end;
+        int newTo = start + replacement.length();
+        while ( !( isBoundary( manipulator, oldInput, oldTo ) && isBoundary( manipulator, newInput, newTo ) ) )
+        {
+            oldTo++;
+            newTo++;
+        }
+
+        OffsetMap oldMap = previous.getOffsetMap();
+        String oldOutput = previous.getEncoded();
+        int outputFrom = oldMap.toOutput( from );
+        int outputTo = oldMap.toOutput( oldTo );
+
+        StringBuilder output = new StringBuilder( outputFrom + ( newTo - from ) + oldOutput.length() - outputTo );
+        output.append( oldOutput, 0, outputFrom );
+        OffsetMap.Builder map = new OffsetMap.Builder();
+        oldMap.copyTo( map, from );
+        encodeRange( manipulator, newInput, from, newTo, output, map );
+        oldMap.copyShiftedTo( map, oldTo, newTo - oldTo, map.lastDelta() - oldMap.deltaAt( oldTo ) );
+        output.append( oldOutput, outputTo, oldOutput.length() );
+        return new MappedEncoding( manipulator, newInput, output.toString(), map.build( newInput.length() ) );
+    }
+
+    private static boolean isBoundary( AbstractManipulator manipulator, CharSequence input, int index )
+    {
+        return index == 0 || index == input.length() || manipulator.canSplitAt( input, index );
+    }
+
+    /**
+     * Encodes a range that starts and ends where the input can be cut, one character at a time so the output length
+     * can be checked against the input at each place the input could be cut, adding a position to the map wherever
+     * the two have drifted further apart
+     */
+    private static void encodeRange( AbstractManipulator manipulator, CharSequence input, int from, int to,
+        StringBuilder output, OffsetMap.Builder map )
+    {
+        int delta = map.lastDelta();
+        // the output index matching from
+        int outputFrom = output.length();
+        ChunkedManipulation manipulation = manipulator.newChunkedEncoder();
+        try
+        {
+            for ( int i = from; i < to; i++ )
+            {
+                manipulation.manipulate( input, i, i + 1, output );
+                int next = i + 1;
+                if ( next == to )
+                {
+                    manipulation.finish( output );
+                }
+                else if ( !manipulator.canSplitAt( input, next ) )
+                {
+                    // some input may still be held back, so the output does not line up here
+                    continue;
+                }
+                map.add( next, output.length() - outputFrom - ( next - from ) + delta );
+            }
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+
+/**
+ * The encoded form of an input, encoded only once it is used. Values prepared for a view but never rendered cost
+ * nothing beyond this holder. {@link #writeTo(Appendable)} encodes straight into the output each time without keeping
+ * anything; {@link #toString()}, {@link #charAt(int)} and {@link #subSequence(int, int)} encode once and keep the
+ * result, which {@link #writeTo(Appendable)} then copies instead of encoding again, and {@link #length()} counts the
+ * encoded length without encoding. A size limit that the input might reach needs the whole limited encoding before
+ * anything is written, so such a value is encoded once and kept like {@link #toString()} does. Safe to share between
+ * threads, which at worst encode the same value twice.
+ */
+public final class LazyEncodedCharSequence
+    implements CharSequence
+{
+    private final AbstractManipulator manipulator;
+
+    private final String input;
+
+    // the size limit set for the type when this was created, or null
+    private final SizeLimit limit;
+
+    // the encoded input once it has been asked for as a String
+    private volatile String encoded;
+
+    LazyEncodedCharSequence( AbstractManipulator manipulator, String input, SizeLimit limit )
+    {
+        this.manipulator = manipulator;
+        this.input = input;
+        this.limit = limit;
+    }
+
+    /**
+     * Writes the encoded input to the output. Unless it is already held as a String, or a size limit might cut or
+     * reject it, it is encoded straight into the output and not kept, so a value written once never exists as a whole
+     * in memory.
+     *
+     * @param output where the encoded input goes
+     * @throws IOException if the output throws an IOException
+     * @throws IllegalArgumentException if the output is null
+     */
+    public void writeTo( Appendable output )
+        throws IOException, IllegalArgumentException
+    {
+        if ( output == null )
+        {
+            throw new IllegalArgumentException( "Appendable cannot be null" );
+        }
+        String result = this.encoded;
+        if ( result == null && this.limit != null && !this.limit.alwaysFits( this.manipulator, this.input, false ) )
+        {
+            // a limited encoding has to be complete before anything is written, so it may as well be kept
+            result = toString();
+        }
+        if ( result != null )
+        {
+            output.append( result );
+            return;
+        }
+        this.manipulator.encodeInternal( this.input, output );
+    }
+
+    /**
+     * @return true once the encoded input is held as a String
+     */
+    public boolean isEncoded()
+    {
+        return this.encoded != null;
+    }
+
+    /**
+     * Counts the encoded length without encoding, unless the encoded input is already held or a size limit applies
+     */
+    @Override
+    public int length()
+    {
+        String result = this.encoded;
+        if ( result == null && this.limit == null )
+        {
+            return (int) this.manipulator.encodedLength( this.input );
+        }
+        return toString().length();
+    }
+
+    @Override
+    public char charAt( int index )
+    {
+        return toString().charAt( index );
+    }
+
+    @Override
+    public CharSequence subSequence( int start, int end )
+    {
+        return toString().subSequence( start, end );
+    }
+
+    /**
+     * @return the encoded input, encoded on the first call and kept for later ones
+     */
+    @Override
+    public String toString()
+    {
+        String result = this.encoded;
+        if ( result == null )
+        {
+            result =
+                this.limit == null ? this.manipulator.encode( this.input )
+                    : this.manipulator.encodeLimited( this.input, this.limit );
+            this.encoded = result;
+        }
+        return result;
+    }
+}
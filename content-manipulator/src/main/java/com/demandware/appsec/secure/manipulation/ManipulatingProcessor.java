@@ -0,0 +1,493 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Processor;
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Subscriber;
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Subscription;
+
+/**
+ * A {@link Processor} that encodes or filters a stream of chunks. The chunks are handed to one
+ * {@link ChunkedManipulation}, so context such as a CDATA end split between two chunks is carried across them. Output
+ * is collected into batches of {@link #BATCH_SIZE} characters, so many small chunks are published as fewer, larger
+ * ones; whatever is left is published when the input completes.
+ * <p>
+ * Input is only requested from upstream, one chunk at a time, while the single downstream Subscriber has outstanding
+ * demand and no batch is ready for it, so at most one input chunk and its output are held at once. All work is done
+ * by whichever thread signals, one thread at a time.
+ *
+ * @param <T> the type of input chunk
+ * @param <R> the type of output chunk
+ */
+abstract class ManipulatingProcessor<T, R>
+    implements Processor<T, R>
+{
+    static final int BATCH_SIZE = 8192;
+
+    private final ChunkedManipulation manipulation;
+
+    private final Queue<T> inbox = new ConcurrentLinkedQueue<T>();
+
+    private final AtomicLong requested = new AtomicLong();
+
+    private final AtomicInteger workInProgress = new AtomicInteger();
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    private volatile Subscription upstream;
+
+    private volatile Subscriber<? super R> downstream;
+
+    private volatile boolean upstreamDone;
+
+    private volatile Throwable error;
+
+    private volatile boolean cancelled;
+
+    // only touched by the thread that is draining
+    private final StringBuilder batch = new StringBuilder( BATCH_SIZE );
+
+    private final Queue<R> ready = new ArrayDeque<R>();
+
+    private boolean awaitingInput;
+
+    private boolean inputFinished;
+
+    private boolean terminated;
+
+    private final Subscription subscription = new Subscription()
+    {
+        @Override
+        public void request( long n )
+        {
+            if ( n <= 0 )
+            {
+                fail( new IllegalArgumentException( "Requested items must be greater than zero" ) );
+                return;
+            }
+            long current;
+            long next;
+            do
+            {
+                current = ManipulatingProcessor.this.requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            }
+            while ( !ManipulatingProcessor.this.requested.compareAndSet( current, next ) );
+            drain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            ManipulatingProcessor.this.cancelled = true;
+            cancelUpstream();
+            drain();
+        }
+    };
+
+    ManipulatingProcessor( ChunkedManipulation manipulation )
+    {
+        this.manipulation = manipulation;
+    }
+
+    @Override
+    public void subscribe( Subscriber<? super R> subscriber )
+    {
+        if ( subscriber == null )
+        {
+            throw new NullPointerException( "Subscriber cannot be null" );
+        }
+        if ( this.claimed.compareAndSet( false, true ) )
+        {
+            subscriber.onSubscribe( this.subscription );
+            // only deliver terminal signals once onSubscribe has returned
+            this.downstream = subscriber;
+            drain();
+            return;
+        }
+        subscriber.onSubscribe( new Subscription()
+        {
+            @Override
+            public void request( long n )
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+            }
+        } );
+        subscriber.onError( new IllegalStateException( "Only one Subscriber is supported" ) );
+    }
+
+    @Override
+    public void onSubscribe( Subscription subscription )
+    {
+        if ( this.upstream != null || this.cancelled )
+        {
+            subscription.cancel();
+            return;
+        }
+        this.upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext( T item )
+    {
+        if ( item == null )
+        {
+            throw new NullPointerException( "Item cannot be null" );
+        }
+        this.inbox.add( item );
+        drain();
+    }
+
+    @Override
+    public void onError( Throwable throwable )
+    {
+        if ( throwable == null )
+        {
+            throw new NullPointerException( "Throwable cannot be null" );
+        }
+        this.error = throwable;
+        this.upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        this.upstreamDone = true;
+        drain();
+    }
+
+    /**
+     * Manipulates the next input chunk, appending the output to the batch
+     *
+     * @param item the input chunk
+     * @param manipulation the manipulation for the whole stream
+     * @param output the batch to append to
+     * @throws IOException if the output throws an IOException
+     */
+    abstract void consume( T item, ChunkedManipulation manipulation, Appendable output )
+        throws IOException;
+
+    /**
+     * Ends the input, appending any output that was held back
+     *
+     * @param manipulation the manipulation for the whole stream
+     * @param output the batch to append to
+     * @throws IOException if the output throws an IOException
+     */
+    void finishInput( ChunkedManipulation manipulation, Appendable output )
+        throws IOException
+    {
+        manipulation.finish( output );
+    }
+
+    /**
+     * Turns part of the batch into an output chunk
+     *
+     * @param batch the collected output
+     * @param start index of the first character of the chunk
+     * @param end index after the last character of the chunk
+     * @return the output chunk to publish
+     */
+    abstract R toOutput( StringBuilder batch, int start, int end );
+
+    private void fail( Throwable throwable )
+    {
+        this.error = throwable;
+        this.upstreamDone = true;
+        cancelUpstream();
+        drain();
+    }
+
+    private void cancelUpstream()
+    {
+        Subscription s = this.upstream;
+        if ( s != null )
+        {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Does all pending work. Only one thread drains at a time; a signal that arrives while another thread is draining
+     * is picked up by that thread before it stops.
+     */
+    private void drain()
+    {
+        if ( this.workInProgress.getAndIncrement() != 0 )
+        {
+            return;
+        }
+        int missed = 1;
+        do
+        {
+            if ( this.terminated )
+            {
+                this.inbox.clear();
+            }
+            else
+            {
+                drainLoop();
+            }
+            missed = this.workInProgress.addAndGet( -missed );
+        }
+        while ( missed != 0 );
+    }
+
+    private void drainLoop()
+    {
+        Subscriber<? super R> subscriber = this.downstream;
+        while ( true )
+        {
+            if ( this.cancelled )
+            {
+                terminate();
+                return;
+            }
+            if ( subscriber == null )
+            {
+                // nothing can be delivered and nothing is requested until someone subscribes
+                return;
+            }
+
+            Throwable failure = this.error;
+            if ( failure != null )
+            {
+                terminate();
+                subscriber.onError( failure );
+                return;
+            }
+
+            if ( !this.ready.isEmpty() )
+            {
+                if ( this.requested.get() == 0 )
+                {
+                    return;
+                }
+                this.requested.decrementAndGet();
+                subscriber.onNext( this.ready.poll() );
+                continue;
+            }
+
+            try
+            {
+                T item = this.inbox.poll();
+                if ( item != null )
+                {
+                    this.awaitingInput = false;
+                    consume( item, this.manipulation, this.batch );
+                    publishBatches( false );
+                    continue;
+                }
+                if ( this.upstreamDone && !this.inputFinished )
+                {
+                    this.inputFinished = true;
+                    finishInput( this.manipulation, this.batch );
+                    publishBatches( true );
+                    continue;
+                }
+            }
+            catch ( IOException e )
+            {
+                // throw as unchecked as an in-memory batch shouldn't have any IOExceptions
+                fail( new UncheckedIOException( e ) );
+                continue;
+            }
+            catch ( RuntimeException e )
+            {
+                fail( e );
+                continue;
+            }
+
+            if ( this.inputFinished )
+            {
+                terminate();
+                subscriber.onComplete();
+                return;
+            }
+
+            Subscription s = this.upstream;
+            if ( s == null || this.awaitingInput || this.requested.get() == 0 )
+            {
+                return;
+            }
+            // ask for one chunk at a time so unused input never piles up here
+            this.awaitingInput = true;
+            s.request( 1 );
+        }
+    }
+
+    /**
+     * Moves full batches, or everything when the input is finished, to the ready queue. A batch never ends between
+     * the two halves of a surrogate pair.
+     */
+    private void publishBatches( boolean all )
+    {
+        int offset = 0;
+        while ( this.batch.length() - offset >= BATCH_SIZE )
+        {
+            int end = offset + BATCH_SIZE;
+            if ( Character.isHighSurrogate( this.batch.charAt( end - 1 ) ) )
+            {
+                end--;
+            }
+            this.ready.add( toOutput( this.batch, offset, end ) );
+            offset = end;
+        }
+        if ( all && offset < this.batch.length() )
+        {
+            this.ready.add( toOutput( this.batch, offset, this.batch.length() ) );
+            offset = this.batch.length();
+        }
+        this.batch.delete( 0, offset );
+    }
+
+    private void terminate()
+    {
+        this.terminated = true;
+        this.inbox.clear();
+        this.ready.clear();
+        this.batch.setLength( 0 );
+    }
+
+    /**
+     * Encodes or filters a stream of character chunks into a stream of Strings
+     */
+    static final class CharSequenceProcessor
+        extends ManipulatingProcessor<CharSequence, CharSequence>
+    {
+        CharSequenceProcessor( ChunkedManipulation manipulation )
+        {
+            super( manipulation );
+        }
+
+        @Override
+        void consume( CharSequence item, ChunkedManipulation manipulation, Appendable output )
+            throws IOException
+        {
+            manipulation.manipulate( item, 0, item.length(), output );
+        }
+
+        @Override
+        CharSequence toOutput( StringBuilder batch, int start, int end )
+        {
+            return batch.substring( start, end );
+        }
+    }
+
+    /**
+     * Encodes or filters a stream of UTF-8 chunks into a stream of UTF-8 chunks. A multi-byte sequence may be split
+     * between two input chunks. Malformed input is replaced with U+FFFD, as {@code new String( bytes, UTF_8 )} would.
+     * Input buffers are read without changing their position.
+     */
+    static final class Utf8Processor
+        extends ManipulatingProcessor<ByteBuffer, ByteBuffer>
+    {
+        private static final int DECODE_SIZE = 4096;
+
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+        private final CharBuffer chars = CharBuffer.allocate( DECODE_SIZE );
+
+        // the start of a multi-byte sequence whose remaining bytes are in the next chunk
+        private final ByteBuffer carry = ByteBuffer.allocate( 4 );
+
+        Utf8Processor( ChunkedManipulation manipulation )
+        {
+            super( manipulation );
+        }
+
+        @Override
+        void consume( ByteBuffer item, ChunkedManipulation manipulation, Appendable output )
+            throws IOException
+        {
+            ByteBuffer input = item.duplicate();
+
+            // complete the sequence left over from the last chunk a byte at a time, at most 4 bytes settle it
+            while ( this.carry.position() > 0 && input.hasRemaining() )
+            {
+                this.carry.put( input.get() );
+                this.carry.flip();
+                decode( this.carry, false, manipulation, output );
+                this.carry.compact();
+            }
+
+            decode( input, false, manipulation, output );
+            this.carry.put( input );
+        }
+
+        @Override
+        void finishInput( ChunkedManipulation manipulation, Appendable output )
+            throws IOException
+        {
+            this.carry.flip();
+            decode( this.carry, true, manipulation, output );
+            this.carry.clear();
+
+            CoderResult result;
+            do
+            {
+                result = this.decoder.flush( this.chars );
+                manipulateDecoded( manipulation, output );
+            }
+            while ( result.isOverflow() );
+
+            super.finishInput( manipulation, output );
+        }
+
+        @Override
+        ByteBuffer toOutput( StringBuilder batch, int start, int end )
+        {
+            // an unpaired surrogate becomes '?', the same as Utf8Appendable
+            return StandardCharsets.UTF_8.encode( CharBuffer.wrap( batch, start, end ) );
+        }
+
+        private void decode( ByteBuffer input, boolean endOfInput, ChunkedManipulation manipulation, Appendable output )
+            throws IOException
+        {
+            CoderResult result;
+            do
+            {
+                result = this.decoder.decode( input, this.chars, endOfInput );
+                manipulateDecoded( manipulation, output );
+            }
+            while ( result.isOverflow() );
+        }
+
+        private void manipulateDecoded( ChunkedManipulation manipulation, Appendable output )
+            throws IOException
+        {
+            this.chars.flip();
+            manipulation.manipulate( this.chars, 0, this.chars.length(), output );
+            this.chars.clear();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * A Reader that lazily reads a source Reader a block at a time and serves the encoded or filtered form of it. Only
+ * one block of input and its manipulated output are held at once, so arbitrarily large input is manipulated in
+ * bounded memory. Obtain one with
+ * {@link SecureEncoder#encodingReader(com.demandware.appsec.secure.manipulation.impl.IManipulationType, Reader)} or
+ * {@link SecureFilter#filteringReader(com.demandware.appsec.secure.manipulation.impl.IManipulationType, Reader)}.
+ */
+final class ManipulatingReader
+    extends Reader
+{
+    private static final int BLOCK_SIZE = 4096;
+
+    private final ChunkedManipulation manipulation;
+
+    private final Reader source;
+
+    private final char[] input = new char[BLOCK_SIZE];
+
+    private final CharBuffer inputBuffer = CharBuffer.wrap( this.input );
+
+    // manipulated output of the last block, served from pendingPosition onwards
+    private final StringBuilder pending = new StringBuilder( BLOCK_SIZE );
+
+    private int pendingPosition;
+
+    private boolean finished;
+
+    private boolean closed;
+
+    ManipulatingReader( ChunkedManipulation manipulation, Reader source )
+    {
+        super( source );
+        this.manipulation = manipulation;
+        this.source = source;
+    }
+
+    @Override
+    public int read( char[] cbuf, int off, int len )
+        throws IOException
+    {
+        if ( this.closed )
+        {
+            throw new IOException( "Reader is closed" );
+        }
+        if ( off < 0 || len < 0 || off + len > cbuf.length )
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        while ( this.pendingPosition == this.pending.length() )
+        {
+            if ( !fill() )
+            {
+                return -1;
+            }
+        }
+
+        int count = Math.min( len, this.pending.length() - this.pendingPosition );
+        this.pending.getChars( this.pendingPosition, this.pendingPosition + count, cbuf, off );
+        this.pendingPosition += count;
+        return count;
+    }
+
+    @Override
+    public boolean ready()
+        throws IOException
+    {
+        return this.pendingPosition < this.pending.length() || ( !this.finished && this.source.ready() );
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        this.closed = true;
+        this.source.close();
+    }
+
+    /**
+     * Replaces the pending output with the manipulated form of the next block of input
+     *
+     * @return false once the input is exhausted and all output has been served
+     * @throws IOException if the source Reader throws an IOException
+     */
+    private boolean fill()
+        throws IOException
+    {
+        if ( this.finished )
+        {
+            return false;
+        }
+
+        this.pending.setLength( 0 );
+        this.pendingPosition = 0;
+
+        int read = this.source.read( this.input, 0, BLOCK_SIZE );
+        if ( read < 0 )
+        {
+            this.finished = true;
+            this.manipulation.finish( this.pending );
+        }
+        else
+        {
+            this.manipulation.manipulate( this.inputBuffer, 0, read, this.pending );
+        }
+        return true;
+    }
+}
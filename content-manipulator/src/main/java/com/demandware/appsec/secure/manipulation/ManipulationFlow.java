@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+/**
+ * The interfaces of a demand-driven stream of items, with the same methods and contract as
+ * {@code java.util.concurrent.Flow} and Reactive Streams. This library targets Java 8, where neither is available, so
+ * the processors returned by {@link SecureEncoder} and {@link SecureFilter} implement these instead. Adapting them to
+ * either of the others is a matter of forwarding each method.
+ */
+public final class ManipulationFlow
+{
+
+    private ManipulationFlow()
+    {
+    }
+
+    /**
+     * A source of items that are only sent to a {@link Subscriber} once it has asked for them
+     *
+     * @param <T> the type of item published
+     */
+    public interface Publisher<T>
+    {
+        /**
+         * Adds the given Subscriber, which is then passed its {@link Subscription} through
+         * {@link Subscriber#onSubscribe(Subscription)}
+         *
+         * @param subscriber the Subscriber to send items to
+         */
+        void subscribe( Subscriber<? super T> subscriber );
+    }
+
+    /**
+     * A receiver of items. Its methods are called one at a time, never concurrently.
+     *
+     * @param <T> the type of item received
+     */
+    public interface Subscriber<T>
+    {
+        /**
+         * Called once before any other method with the Subscription used to ask for items
+         *
+         * @param subscription the link to the Publisher
+         */
+        void onSubscribe( Subscription subscription );
+
+        /**
+         * Called with the next item, only ever after it has been requested
+         *
+         * @param item the next item
+         */
+        void onNext( T item );
+
+        /**
+         * Called once if the stream fails; no other method is called afterwards
+         *
+         * @param throwable the cause of the failure
+         */
+        void onError( Throwable throwable );
+
+        /**
+         * Called once when all items have been sent; no other method is called afterwards
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a Publisher and a Subscriber, used to ask for items and to stop them
+     */
+    public interface Subscription
+    {
+        /**
+         * Asks for up to n more items
+         *
+         * @param n the number of items, which must be greater than zero
+         */
+        void request( long n );
+
+        /**
+         * Asks for no more items to be sent
+         */
+        void cancel();
+    }
+
+    /**
+     * Both a Subscriber and a Publisher, turning the items it receives into the items it publishes
+     *
+     * @param <T> the type of item received
+     * @param <R> the type of item published
+     */
+    public interface Processor<T, R>
+        extends Subscriber<T>, Publisher<R>
+    {
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The fallback for answering questions about what a Manipulator would make of an input without keeping its output:
+ * the input is manipulated into an {@link Appendable} that only counts or compares what it is given. Manipulators
+ * that know their rules override the scans in {@link AbstractManipulator} with something cheaper.
+ */
+final class ManipulationScan
+{
+    private ManipulationScan()
+    {
+    }
+
+    /**
+     * Encodes the input a character at a time, checking at each place the Manipulator could cut the input whether
+     * the output so far is still the input so far. Nothing is held back at such a place, so the last one where they
+     * agree is where the first unsafe character of the input starts.
+     *
+     * @param manipulator the Manipulator to use
+     * @param input the sequence to examine
+     * @return the index of the first unsafe character of the input, or -1 if the encoded input is the same
+     */
+    static int indexOfFirstUnsafe( AbstractManipulator manipulator, CharSequence input )
+    {
+        Comparison comparison = new Comparison( input );
+        ChunkedManipulation manipulation = manipulator.newChunkedEncoder();
+        int length = input.length();
+        int safe = 0;
+        try
+        {
+            for ( int i = 0; i < length && !comparison.differs; i++ )
+            {
+                manipulation.manipulate( input, i, i + 1, comparison );
+                int next = i + 1;
+                if ( next < length && manipulator.canSplitAt( input, next ) && !comparison.differs
+                    && comparison.matched == next )
+                {
+                    safe = next;
+                }
+            }
+            if ( !comparison.differs )
+            {
+                manipulation.finish( comparison );
+            }
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as comparing shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+        return comparison.differs || comparison.matched < length ? safe : -1;
+    }
+
+    /**
+     * @param manipulator the Manipulator to use
+     * @param input the sequence to examine
+     * @param shouldFilter true if filtering, false if encoding
+     * @return the length of the manipulated input
+     */
+    static long length( AbstractManipulator manipulator, CharSequence input, boolean shouldFilter )
+    {
+        Count count = new Count();
+        manipulate( shouldFilter ? manipulator.newChunkedFilter() : manipulator.newChunkedEncoder(), input, count );
+        return count.length;
+    }
+
+    private static void manipulate( ChunkedManipulation manipulation, CharSequence input, Appendable output )
+    {
+        try
+        {
+            manipulation.manipulate( input, 0, input.length(), output );
+            manipulation.finish( output );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as counting and comparing shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Counts what is appended
+     */
+    private static final class Count
+        implements Appendable
+    {
+        long length;
+
+        @Override
+        public Appendable append( CharSequence csq )
+        {
+            this.length += csq.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append( CharSequence csq, int start, int end )
+        {
+            this.length += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append( char c )
+        {
+            this.length++;
+            return this;
+        }
+    }
+
+    /**
+     * Compares what is appended with the input, remembering how far the two agree
+     */
+    private static final class Comparison
+        implements Appendable
+    {
+        private final CharSequence input;
+
+        int matched;
+
+        boolean differs;
+
+        Comparison( CharSequence input )
+        {
+            this.input = input;
+        }
+
+        @Override
+        public Appendable append( CharSequence csq )
+        {
+            return append( csq, 0, csq.length() );
+        }
+
+        @Override
+        public Appendable append( CharSequence csq, int start, int end )
+        {
+            for ( int i = start; i < end && !this.differs; i++ )
+            {
+                append( csq.charAt( i ) );
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append( char c )
+        {
+            if ( !this.differs )
+            {
+                if ( this.matched < this.input.length() && this.input.charAt( this.matched ) == c )
+                {
+                    this.matched++;
+                }
+                else
+                {
+                    this.differs = true;
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+
+/**
+ * Hands out the output of an input one code point at a time, for callers that place output whole or not at all, such
+ * as size limits and frames. An output ending in half a surrogate pair takes the next output along if that completes
+ * the pair, so the pair is never cut and is measured as the four bytes it is written as, see
+ * {@link #utf8Length(CharSequence)}.
+ */
+final class ManipulationUnits
+{
+    private final ChunkedManipulation manipulation;
+
+    private final CharSequence input;
+
+    private final int end;
+
+    // the output of the code point after the last unit, when it did not complete a surrogate pair
+    private final StringBuilder lookahead = new StringBuilder();
+
+    // the input index after the code point of the lookahead
+    private int lookaheadEnd;
+
+    // the input index after the last unit handed out
+    private int unitEnd;
+
+    private int index;
+
+    private boolean finished;
+
+    /**
+     * @param manipulation the manipulation to run the input through, finished after the last code point
+     * @param input the input to manipulate
+     * @param end the index after the last character to manipulate
+     */
+    ManipulationUnits( ChunkedManipulation manipulation, CharSequence input, int end )
+    {
+        this.manipulation = manipulation;
+        this.input = input;
+        this.end = end;
+    }
+
+    /**
+     * @param unit where the next output to place whole goes, left empty if a code point produced nothing
+     * @return false once everything has been handed out
+     * @throws IOException should the manipulation fail
+     */
+    boolean next( StringBuilder unit )
+        throws IOException
+    {
+        unit.setLength( 0 );
+        if ( this.lookahead.length() > 0 )
+        {
+            unit.append( this.lookahead );
+            this.lookahead.setLength( 0 );
+            this.unitEnd = this.lookaheadEnd;
+        }
+        else if ( manipulateNext( unit ) )
+        {
+            this.unitEnd = this.index;
+        }
+        else
+        {
+            return false;
+        }
+        while ( unit.length() > 0 && Character.isHighSurrogate( unit.charAt( unit.length() - 1 ) )
+            && manipulateNext( this.lookahead ) )
+        {
+            if ( this.lookahead.length() > 0 && !Character.isLowSurrogate( this.lookahead.charAt( 0 ) ) )
+            {
+                // starts the next unit
+                this.lookaheadEnd = this.index;
+                break;
+            }
+            unit.append( this.lookahead );
+            this.lookahead.setLength( 0 );
+            this.unitEnd = this.index;
+        }
+        return true;
+    }
+
+    /**
+     * @return the input index after the code points whose output the last unit holds; output held back for a later
+     *         code point, such as trailing ']' characters in CDATA, arrives with that code point's unit
+     */
+    int getUnitEnd()
+    {
+        return this.unitEnd;
+    }
+
+    /**
+     * Manipulates the next code point, or finishes the input
+     *
+     * @return false if the input was already finished
+     */
+    private boolean manipulateNext( StringBuilder output )
+        throws IOException
+    {
+        if ( this.index < this.end )
+        {
+            int next = this.index + 1;
+            if ( Character.isHighSurrogate( this.input.charAt( this.index ) ) && next < this.end
+                && Character.isLowSurrogate( this.input.charAt( next ) ) )
+            {
+                next++;
+            }
+            this.manipulation.manipulate( this.input, this.index, next, output );
+            this.index = next;
+            return true;
+        }
+        if ( this.finished )
+        {
+            return false;
+        }
+        this.manipulation.finish( output );
+        this.finished = true;
+        return true;
+    }
+
+    /**
+     * Counts the UTF-8 length of a unit, with an unpaired surrogate counted as the one byte of its '?' replacement,
+     * as {@link Utf8Appendable} and {@link String#getBytes(java.nio.charset.Charset)} write it. Units never end in
+     * half of a pair that the next unit completes, so the lengths of units add up to the length of their output.
+     *
+     * @param chars the characters to measure
+     * @return the number of bytes they take as UTF-8
+     */
+    static int utf8Length( CharSequence chars )
+    {
+        int length = 0;
+        int count = chars.length();
+        for ( int i = 0; i < count; i++ )
+        {
+            char ch = chars.charAt( i );
+            if ( ch < 0x80 )
+            {
+                length++;
+            }
+            else if ( ch < 0x800 )
+            {
+                length += 2;
+            }
+            else if ( Character.isHighSurrogate( ch ) && i + 1 < count
+                && Character.isLowSurrogate( chars.charAt( i + 1 ) ) )
+            {
+                length += 4;
+                i++;
+            }
+            else if ( Character.isSurrogate( ch ) )
+            {
+                length++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+/**
+ * An input together with its encoded form and the {@link OffsetMap} between the two, which is what an edit to the
+ * input needs to be re-encoded without encoding the rest of it again, see
+ * {@link SecureEncoder#reencode(com.demandware.appsec.secure.manipulation.impl.IManipulationType, MappedEncoding, int,
+ * int, CharSequence)}.
+ */
+public final class MappedEncoding
+{
+    private final AbstractManipulator manipulator;
+
+    private final String input;
+
+    private final String encoded;
+
+    private final OffsetMap offsetMap;
+
+    MappedEncoding( AbstractManipulator manipulator, String input, String encoded, OffsetMap offsetMap )
+    {
+        this.manipulator = manipulator;
+        this.input = input;
+        this.encoded = encoded;
+        this.offsetMap = offsetMap;
+    }
+
+    AbstractManipulator getManipulator()
+    {
+        return this.manipulator;
+    }
+
+    /**
+     * @return the input that was encoded
+     */
+    public String getInput()
+    {
+        return this.input;
+    }
+
+    /**
+     * @return the encoded input
+     */
+    public String getEncoded()
+    {
+        return this.encoded;
+    }
+
+    /**
+     * @return the map from indices of the input to indices of the encoded input
+     */
+    public OffsetMap getOffsetMap()
+    {
+        return this.offsetMap;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Encodes numbers for one Manipulator, writing their characters straight into the output. Numbers are made of a
+ * handful of ASCII characters, so for a Manipulator that encodes each character on its own, each of them is looked up
+ * in the same correction table the Manipulator encodes strings with; most contexts pass digits, '-' and '.' through
+ * unchanged and only the few that do not pay for an escape. Any other Manipulator may treat a character differently
+ * depending on what surrounds it, so it is handed the formatted number as a whole, which for a long means formatting
+ * it into a String first.
+ */
+final class NumberEncoder
+{
+    private final AbstractManipulator manipulator;
+
+    // the Manipulator when it encodes characters on their own, null if it needs whole numbers
+    private final AbstractCharacterManipulator characters;
+
+    NumberEncoder( AbstractManipulator manipulator )
+    {
+        this.manipulator = manipulator;
+        this.characters = manipulator instanceof AbstractCharacterManipulator
+            ? (AbstractCharacterManipulator) manipulator : null;
+    }
+
+    /**
+     * Writes the decimal digits of the value, as {@link Long#toString(long)} would, without creating a String
+     *
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     * @throws IOException if the output throws an IOException
+     */
+    void encode( long value, Appendable output )
+        throws IOException
+    {
+        if ( this.characters == null )
+        {
+            this.manipulator.encodeInternal( Long.toString( value ), output );
+            return;
+        }
+
+        // work with the negative value, which also covers Long.MIN_VALUE
+        long remaining = value;
+        if ( value < 0 )
+        {
+            append( '-', output );
+        }
+        else
+        {
+            remaining = -value;
+        }
+
+        long divisor = 1;
+        while ( remaining / divisor <= -10 )
+        {
+            divisor *= 10;
+        }
+        while ( divisor > 0 )
+        {
+            append( (char) ( '0' - remaining / divisor ), output );
+            remaining %= divisor;
+            divisor /= 10;
+        }
+    }
+
+    /**
+     * Writes the value as {@link Double#toString(double)} would
+     *
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     * @throws IOException if the output throws an IOException
+     */
+    void encode( double value, Appendable output )
+        throws IOException
+    {
+        append( Double.toString( value ), output );
+    }
+
+    /**
+     * Writes the value as {@link BigDecimal#toString()} would, which BigDecimal only formats once per instance
+     *
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     * @throws IOException if the output throws an IOException
+     */
+    void encode( BigDecimal value, Appendable output )
+        throws IOException
+    {
+        append( value.toString(), output );
+    }
+
+    private void append( String number, Appendable output )
+        throws IOException
+    {
+        if ( this.characters == null )
+        {
+            this.manipulator.encodeInternal( number, output );
+            return;
+        }
+        for ( int i = 0; i < number.length(); i++ )
+        {
+            append( number.charAt( i ), output );
+        }
+    }
+
+    private void append( char c, Appendable output )
+        throws IOException
+    {
+        String escape = this.characters.correctionFor( c );
+        if ( escape == null )
+        {
+            output.append( c );
+        }
+        else
+        {
+            output.append( escape );
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.util.Arrays;
+
+/**
+ * Maps indices of an input to the matching indices of its encoded form. Only the positions where encoding changes the
+ * length are stored, each with how far the output has run ahead of (or behind) the input from there on, so the map
+ * takes two ints per escape rather than one per character and lookups are a binary search.
+ * <p>
+ * An index is only mapped where the Manipulator could cut the input, see
+ * {@link AbstractManipulator#canSplitAt(CharSequence, int)}; in between, e.g. inside a close CDATA string, input and
+ * output do not line up one to one. The start and end of the input are always mapped.
+ */
+public final class OffsetMap
+{
+    // input indices from which the delta changes, ascending
+    private final int[] indices;
+
+    // output index minus input index, from the input index at the same position on
+    private final int[] deltas;
+
+    private final int inputLength;
+
+    OffsetMap( int[] indices, int[] deltas, int inputLength )
+    {
+        this.indices = indices;
+        this.deltas = deltas;
+        this.inputLength = inputLength;
+    }
+
+    /**
+     * @param inputIndex an index of the input, between 0 and its length
+     * @return the index of the encoded form where the encoding of the input from that index on starts
+     * @throws IndexOutOfBoundsException if the index is outside the input
+     */
+    public int toOutput( int inputIndex )
+    {
+        if ( inputIndex < 0 || inputIndex > this.inputLength )
+        {
+            throw new IndexOutOfBoundsException( "Index " + inputIndex + " is outside an input of length "
+                + this.inputLength );
+        }
+        return inputIndex + deltaAt( inputIndex );
+    }
+
+    /**
+     * @return the length of the input
+     */
+    public int getInputLength()
+    {
+        return this.inputLength;
+    }
+
+    /**
+     * @return the length of the encoded form
+     */
+    public int getOutputLength()
+    {
+        return toOutput( this.inputLength );
+    }
+
+    /**
+     * @return the number of positions stored, at most one per character that encoding changed
+     */
+    public int size()
+    {
+        return this.indices.length;
+    }
+
+    int deltaAt( int inputIndex )
+    {
+        int found = Arrays.binarySearch( this.indices, inputIndex );
+        // without an exact match, the last position before the index applies
+        int position = found >= 0 ? found : -found - 2;
+        return position < 0 ? 0 : this.deltas[position];
+    }
+
+    /**
+     * Adds the positions up to and including the given index to the builder
+     */
+    void copyTo( Builder builder, int upTo )
+    {
+        for ( int i = 0; i < this.indices.length && this.indices[i] <= upTo; i++ )
+        {
+            builder.add( this.indices[i], this.deltas[i] );
+        }
+    }
+
+    /**
+     * Adds the positions after the given index to the builder, moving each by the given amounts
+     */
+    void copyShiftedTo( Builder builder, int after, int indexShift, int deltaShift )
+    {
+        for ( int i = 0; i < this.indices.length; i++ )
+        {
+            if ( this.indices[i] > after )
+            {
+                builder.add( this.indices[i] + indexShift, this.deltas[i] + deltaShift );
+            }
+        }
+    }
+
+    /**
+     * Collects positions in ascending order, dropping any that do not change the delta
+     */
+    static final class Builder
+    {
+        private int[] indices = new int[8];
+
+        private int[] deltas = new int[8];
+
+        private int size;
+
+        void add( int index, int delta )
+        {
+            if ( delta == lastDelta() )
+            {
+                return;
+            }
+            if ( this.size == this.indices.length )
+            {
+                this.indices = Arrays.copyOf( this.indices, this.size * 2 );
+                this.deltas = Arrays.copyOf( this.deltas, this.size * 2 );
+            }
+            this.indices[this.size] = index;
+            this.deltas[this.size] = delta;
+            this.size++;
+        }
+
+        /**
+         * @return the delta from the last position added on
+         */
+        int lastDelta()
+        {
+            return this.size == 0 ? 0 : this.deltas[this.size - 1];
+        }
+
+        OffsetMap build( int inputLength )
+        {
+            return new OffsetMap( Arrays.copyOf( this.indices, this.size ), Arrays.copyOf( this.deltas, this.size ),
+                inputLength );
+        }
+    }
+}
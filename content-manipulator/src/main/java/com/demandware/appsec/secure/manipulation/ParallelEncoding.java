@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encodes one large input on a {@link ForkJoinPool}. The input is cut into chunks only where the Manipulator says
+ * {@link AbstractManipulator#canSplitAt(CharSequence, int)}, so that encoding the chunks independently gives exactly
+ * what encoding the whole input would; for CDATA that moves a cut past any ']' so a close CDATA string is never torn
+ * apart. The chunks are encoded in parallel and then copied once into an output sized to fit.
+ */
+final class ParallelEncoding
+{
+    /**
+     * Inputs shorter than this are encoded on the calling thread, as are inputs no longer than one chunk
+     */
+    static final int DEFAULT_THRESHOLD = 1 << 20;
+
+    // the number of characters encoded by one task, before moving the cut to where the Manipulator allows it
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private ParallelEncoding()
+    {
+    }
+
+    /**
+     * @param manipulator the Manipulator to use
+     * @param input the sequence to encode, not modified while this runs
+     * @param threshold the input length from which to encode in parallel
+     * @return the encoded input
+     */
+    static String encode( AbstractManipulator manipulator, CharSequence input, int threshold )
+    {
+        return encode( manipulator, input, threshold, CHUNK_SIZE );
+    }
+
+    static String encode( AbstractManipulator manipulator, CharSequence input, int threshold, int chunkSize )
+    {
+        int length = input.length();
+        if ( length < threshold || length <= chunkSize )
+        {
+            StringBuilder sb = new StringBuilder( length );
+            encodeRange( manipulator, input, 0, length, sb );
+            return sb.toString();
+        }
+
+        List<Integer> cuts = new ArrayList<Integer>();
+        cuts.add( 0 );
+        int cut = 0;
+        while ( length - cut > chunkSize )
+        {
+            cut += chunkSize;
+            while ( cut < length && !manipulator.canSplitAt( input, cut ) )
+            {
+                cut++;
+            }
+            cuts.add( cut );
+        }
+        if ( cut < length )
+        {
+            cuts.add( length );
+        }
+
+        StringBuilder[] chunks = new StringBuilder[cuts.size() - 1];
+        ForkJoinPool.commonPool().invoke( new ChunkTask( manipulator, input, cuts, chunks, 0, chunks.length ) );
+
+        int total = 0;
+        for ( StringBuilder chunk : chunks )
+        {
+            if ( chunk.length() > Integer.MAX_VALUE - total )
+            {
+                throw new IllegalStateException( "Output is longer than a String can be" );
+            }
+            total += chunk.length();
+        }
+        char[] output = new char[total];
+        int offset = 0;
+        for ( StringBuilder chunk : chunks )
+        {
+            chunk.getChars( 0, chunk.length(), output, offset );
+            offset += chunk.length();
+        }
+        return new String( output );
+    }
+
+    private static void encodeRange( AbstractManipulator manipulator, CharSequence input, int start, int end,
+        StringBuilder output )
+    {
+        ChunkedManipulation manipulation = manipulator.newChunkedEncoder();
+        try
+        {
+            manipulation.manipulate( input, start, end, output );
+            manipulation.finish( output );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    /**
+     * Encodes a range of chunks, halving it until a single chunk is left
+     */
+    private static final class ChunkTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final AbstractManipulator manipulator;
+
+        private final CharSequence input;
+
+        private final List<Integer> cuts;
+
+        private final StringBuilder[] chunks;
+
+        private final int from;
+
+        private final int to;
+
+        ChunkTask( AbstractManipulator manipulator, CharSequence input, List<Integer> cuts, StringBuilder[] chunks,
+            int from, int to )
+        {
+            this.manipulator = manipulator;
+            this.input = input;
+            this.cuts = cuts;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( this.to - this.from > 1 )
+            {
+                int middle = ( this.from + this.to ) >>> 1;
+                invokeAll( new ChunkTask( this.manipulator, this.input, this.cuts, this.chunks, this.from, middle ),
+                    new ChunkTask( this.manipulator, this.input, this.cuts, this.chunks, middle, this.to ) );
+                return;
+            }
+
+            int start = this.cuts.get( this.from );
+            int end = this.cuts.get( this.from + 1 );
+            // a quarter more than the input is a best guess
+            StringBuilder chunk = new StringBuilder( end - start + ( ( end - start ) >> 2 ) );
+            encodeRange( this.manipulator, this.input, start, end, chunk );
+            this.chunks[this.from] = chunk;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * UTF-8 output held in a chain of off-heap segments borrowed from a {@link DirectBufferPool}. Every segment is ready
+ * to be read or written to a channel. Closing this object hands the segments back to the pool, after which they must
+ * not be touched.
+ */
+public final class PooledByteOutput
+    implements Closeable
+{
+    private static final ByteBuffer[] NO_SEGMENTS = new ByteBuffer[0];
+
+    private final DirectBufferPool pool;
+
+    private ByteBuffer[] segments;
+
+    PooledByteOutput( DirectBufferPool pool, List<ByteBuffer> segments )
+    {
+        this.pool = pool;
+        this.segments = segments.toArray( new ByteBuffer[segments.size()] );
+    }
+
+    /**
+     * The segments holding the output, in order, each positioned at its unread bytes. Writing them, e.g. with a
+     * {@link java.nio.channels.GatheringByteChannel}, advances their positions.
+     *
+     * @return the segments of this output, empty once closed
+     */
+    public ByteBuffer[] getSegments()
+    {
+        return this.segments;
+    }
+
+    /**
+     * @return the number of bytes not yet read from the segments
+     */
+    public long remaining()
+    {
+        long remaining = 0;
+        for ( ByteBuffer segment : this.segments )
+        {
+            remaining += segment.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Writes all remaining bytes to the given channel, blocking until the channel accepts them
+     *
+     * @param channel where to write the output
+     * @throws IOException if the channel throws an IOException
+     */
+    public void writeTo( WritableByteChannel channel )
+        throws IOException
+    {
+        for ( ByteBuffer segment : this.segments )
+        {
+            while ( segment.hasRemaining() )
+            {
+                channel.write( segment );
+            }
+        }
+    }
+
+    /**
+     * Returns all segments to their pool. Calling this more than once has no further effect.
+     */
+    @Override
+    public void close()
+    {
+        ByteBuffer[] released = this.segments;
+        this.segments = NO_SEGMENTS;
+        for ( ByteBuffer segment : released )
+        {
+            this.pool.release( segment );
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import com.demandware.appsec.secure.manipulation.impl.IManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+/**
+ * Stream {@link Collector}s that encode elements as they are collected. Where
+ * {@code stream.map( SecureEncoder::encodeHtmlContent ).collect( Collectors.joining( ", " ) )} creates one String per
+ * element, these encode each element straight into one shared builder.
+ */
+public final class SecureCollectors
+{
+    private SecureCollectors()
+    {
+    }
+
+    /**
+     * Encodes each element and joins them in encounter order
+     *
+     * @param type the manipulation type to encode with
+     * @return a collector giving the encoded elements joined together
+     * @see #encodingJoining(IManipulationType, CharSequence, CharSequence, CharSequence, boolean)
+     */
+    public static Collector<CharSequence, ?, String> encodingJoining( IManipulationType type )
+    {
+        return encodingJoining( type, "", "", "", false );
+    }
+
+    /**
+     * Encodes each element and joins them in encounter order, separated by the raw delimiter
+     *
+     * @param type the manipulation type to encode with
+     * @param delimiter written unchanged between elements
+     * @return a collector giving the encoded elements joined together
+     * @see #encodingJoining(IManipulationType, CharSequence, CharSequence, CharSequence, boolean)
+     */
+    public static Collector<CharSequence, ?, String> encodingJoining( IManipulationType type, CharSequence delimiter )
+    {
+        return encodingJoining( type, delimiter, "", "", false );
+    }
+
+    /**
+     * Encodes each element and joins them in encounter order, separated by the raw delimiter and surrounded by the raw
+     * prefix and suffix
+     *
+     * @param type the manipulation type to encode with
+     * @param delimiter written unchanged between elements
+     * @param prefix written unchanged at the start
+     * @param suffix written unchanged at the end
+     * @return a collector giving the encoded elements joined together
+     * @see #encodingJoining(IManipulationType, CharSequence, CharSequence, CharSequence, boolean)
+     */
+    public static Collector<CharSequence, ?, String> encodingJoining( IManipulationType type, CharSequence delimiter,
+        CharSequence prefix, CharSequence suffix )
+    {
+        return encodingJoining( type, delimiter, prefix, suffix, false );
+    }
+
+    /**
+     * Encodes each element and joins them in encounter order, separated by the delimiter and surrounded by the prefix
+     * and suffix. Each element is encoded on its own, exactly as
+     * {@link SecureEncoder#encode(IManipulationType, String)} would without a size limit, and a null element is
+     * joined as "null" like {@link java.util.stream.Collectors#joining()} does. The delimiter and affixes are either
+     * written unchanged, for markup the caller controls, or encoded once for the same type. Parallel streams encode
+     * into a builder per thread and combine the builders.
+     *
+     * @param type the manipulation type to encode with
+     * @param delimiter written between elements
+     * @param prefix written at the start
+     * @param suffix written at the end
+     * @param encodeAffixes true to encode the delimiter, prefix and suffix too, false to write them unchanged
+     * @return a collector giving the encoded elements joined together
+     * @throws IllegalArgumentException if the delimiter, prefix or suffix is null
+     */
+    public static Collector<CharSequence, ?, String> encodingJoining( IManipulationType type, CharSequence delimiter,
+        CharSequence prefix, CharSequence suffix, boolean encodeAffixes )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( delimiter == null || prefix == null || suffix == null )
+        {
+            throw new IllegalArgumentException( "Delimiter, prefix and suffix cannot be null" );
+        }
+        if ( encodeAffixes )
+        {
+            return new JoiningCollector( manip, manip.encode( delimiter.toString() ), manip.encode( prefix.toString() ),
+                manip.encode( suffix.toString() ) );
+        }
+        return new JoiningCollector( manip, delimiter.toString(), prefix.toString(), suffix.toString() );
+    }
+
+    /**
+     * The encoded elements collected so far, after the prefix, with the one encoder used for all of them
+     */
+    private static final class Joined
+    {
+        final StringBuilder builder;
+
+        final ChunkedManipulation encoder;
+
+        boolean empty = true;
+
+        Joined( String prefix, ChunkedManipulation encoder )
+        {
+            this.builder = new StringBuilder( prefix );
+            this.encoder = encoder;
+        }
+    }
+
+    private static final class JoiningCollector
+        implements Collector<CharSequence, Joined, String>
+    {
+        private final AbstractManipulator manipulator;
+
+        private final String delimiter;
+
+        private final String prefix;
+
+        private final String suffix;
+
+        JoiningCollector( AbstractManipulator manipulator, String delimiter, String prefix, String suffix )
+        {
+            this.manipulator = manipulator;
+            this.delimiter = delimiter;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        @Override
+        public Supplier<Joined> supplier()
+        {
+            return () -> new Joined( this.prefix, this.manipulator.newChunkedEncoder() );
+        }
+
+        @Override
+        public BiConsumer<Joined, CharSequence> accumulator()
+        {
+            return this::add;
+        }
+
+        @Override
+        public BinaryOperator<Joined> combiner()
+        {
+            return this::combine;
+        }
+
+        @Override
+        public Function<Joined, String> finisher()
+        {
+            return this::finish;
+        }
+
+        @Override
+        public Set<Characteristics> characteristics()
+        {
+            return Collections.emptySet();
+        }
+
+        private void add( Joined joined, CharSequence element )
+        {
+            if ( !joined.empty )
+            {
+                joined.builder.append( this.delimiter );
+            }
+            joined.empty = false;
+
+            CharSequence input = element == null ? "null" : element;
+            try
+            {
+                // finishing leaves the encoder ready for the next element
+                joined.encoder.manipulate( input, 0, input.length(), joined.builder );
+                joined.encoder.finish( joined.builder );
+            }
+            catch ( IOException e )
+            {
+                // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+                throw new UncheckedIOException( e );
+            }
+        }
+
+        private Joined combine( Joined left, Joined right )
+        {
+            if ( right.empty )
+            {
+                return left;
+            }
+            if ( left.empty )
+            {
+                return right;
+            }
+            // the right builder starts with its own copy of the prefix
+            left.builder.append( this.delimiter ).append( right.builder, this.prefix.length(),
+                right.builder.length() );
+            return left;
+        }
+
+        private String finish( Joined joined )
+        {
+            return joined.builder.append( this.suffix ).toString();
+        }
+    }
+}
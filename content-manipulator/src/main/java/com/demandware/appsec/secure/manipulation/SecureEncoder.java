@@ -9,7 +9,19 @@
 package com.demandware.appsec.secure.manipulation;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
 import com.demandware.appsec.secure.manipulation.impl.IManipulationType;
@@ -24,6 +36,9 @@ import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
 public class SecureEncoder
 {
 
+    private static final ConcurrentMap<IManipulationType, SizeLimit> SIZE_LIMITS =
+        new ConcurrentHashMap<IManipulationType, SizeLimit>();
+
     /**
      * Shared method to handle encoder lookup by type and dispatch string
      * 
@@ -34,7 +49,415 @@ public class SecureEncoder
     public static String encode( IManipulationType type, String input )
     {
         AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
-        return manip.encode( input );
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        return limit == null ? manip.encode( input ) : manip.encodeLimited( input, limit );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string, encoding within the given size limit. The
+     * output is only ever cut between whole entities or escapes, and encoding stops as soon as the output limit is
+     * reached.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @param limit the limits on input and output size
+     * @return the encoded string, truncated if the limit's policy allows, or null if the input is null
+     * @throws SizeLimitExceededException if a limit is exceeded and the policy is to throw
+     */
+    public static String encodeLimited( IManipulationType type, String input, SizeLimit limit )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeLimited( input, limit );
+    }
+
+    /**
+     * Sets the size limit applied to every {@link #encode(IManipulationType, String)} and
+     * {@link #encode(IManipulationType, String, Writer)} of the given type, including the type specific shortcuts that
+     * use them. The streaming and byte oriented methods are not limited.
+     * 
+     * @param type the manipulation type to limit
+     * @param limit the limits to apply, or null to remove them
+     * @throws IllegalArgumentException if the type is null
+     */
+    public static void setSizeLimit( IManipulationType type, SizeLimit limit )
+    {
+        if ( type == null )
+        {
+            throw new IllegalArgumentException( "IManipulationType cannot be null" );
+        }
+        if ( limit == null )
+        {
+            SIZE_LIMITS.remove( type );
+        }
+        else
+        {
+            SIZE_LIMITS.put( type, limit );
+        }
+    }
+
+    /**
+     * @param type the manipulation type
+     * @return the size limit set for the type, or null if there is none
+     */
+    public static SizeLimit getSizeLimit( IManipulationType type )
+    {
+        return type == null ? null : SIZE_LIMITS.get( type );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and defer encoding the string until it is used, for values that
+     * may never be rendered. The result encodes as {@link #encode(IManipulationType, String)} would, including the
+     * size limit set for the type at the time of this call.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode when needed
+     * @return the encoded string, not yet encoded, or null if the input is null
+     * @see LazyEncodedCharSequence
+     */
+    public static LazyEncodedCharSequence lazy( IManipulationType type, String input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( input == null )
+        {
+            return null;
+        }
+        return new LazyEncodedCharSequence( manip, input, SIZE_LIMITS.get( type ) );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string, collecting the result in fixed-size segments
+     * rather than one contiguous array. Meant for very large output, which can then be read or written on without
+     * ever being copied into a single String.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @return the encoded string in segments, or null if the input is null
+     */
+    public static SegmentedCharSequence encodeSegmented( IManipulationType type, String input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeSegmented( input );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string, keeping a compact map from input to output
+     * indices along with the result. Pass the result to
+     * {@link #reencode(IManipulationType, MappedEncoding, int, int, CharSequence)} after each edit of the input, e.g.
+     * on every keystroke of a live preview, to encode only the edit instead of the whole document. Size limits do not
+     * apply.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @return the encoded string with its offset map, or null if the input is null
+     */
+    public static MappedEncoding encodeMapped( IManipulationType type, String input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeMapped( input );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and encode an edited input from the previous result. The range of
+     * the previous input was replaced; the edit is widened just far enough that the text around it encodes as it did
+     * before, for CDATA past any ']' next to it, only that range is encoded and the rest of the output is copied from
+     * the previous result. The result is exactly what {@link #encodeMapped(IManipulationType, String)} gives for the
+     * new input.
+     *
+     * @param type the manipulation type to use for encoder lookup, the one the previous result was encoded for
+     * @param previous the result of encoding the input before the edit
+     * @param start the index of the first character of the previous input that was replaced
+     * @param end the index after the last character of the previous input that was replaced
+     * @param replacement what replaced the range, empty for a deletion
+     * @return the encoded new input with its offset map
+     * @throws IllegalArgumentException if previous or replacement is null, or previous was encoded for another type
+     * @throws IndexOutOfBoundsException if the range is not within the previous input
+     */
+    public static MappedEncoding reencode( IManipulationType type, MappedEncoding previous, int start, int end,
+        CharSequence replacement )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.reencode( previous, start, end, replacement );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and encode a region of a builder in place. The region grows by
+     * what the encoding adds, and what follows it is moved once to make room rather than the region being copied out,
+     * encoded and spliced back in.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param builder the builder holding the region
+     * @param start index of the first character to encode
+     * @param end index after the last character to encode
+     * @return the index after the encoded region
+     * @throws IndexOutOfBoundsException if the region is not within the builder
+     */
+    public static int encodeInPlace( IManipulationType type, StringBuilder builder, int start, int end )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeInPlace( builder, start, end );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type once and encode each of the given strings, for many short values
+     * of the same type such as the cells of a listing. One scratch buffer is reused for all of them, a string that
+     * needs no encoding is returned as the same instance and a null string stays null. A size limit set for the type
+     * applies to each string. The output may be the input array itself.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the strings to encode
+     * @param output where the encoded strings go, at the same indices, at least as long as the input
+     * @throws IllegalArgumentException if either array is null or the output is shorter than the input
+     */
+    public static void encodeAll( IManipulationType type, String[] input, String[] output )
+    {
+        encodeAll( ManipulatorFactory.getManipulator( type ), SIZE_LIMITS.get( type ), input, output );
+    }
+
+    private static void encodeAll( AbstractManipulator manip, SizeLimit limit, String[] input, String[] output )
+    {
+        if ( limit == null )
+        {
+            manip.encodeAll( input, output );
+            return;
+        }
+
+        if ( input == null || output == null )
+        {
+            throw new IllegalArgumentException( "String[] cannot be null" );
+        }
+        if ( output.length < input.length )
+        {
+            throw new IllegalArgumentException( "Output array is shorter than the input" );
+        }
+        for ( int i = 0; i < input.length; i++ )
+        {
+            output[i] = manip.encodeLimited( input[i], limit );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type once and encode each of the given strings into a new array
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the strings to encode
+     * @return the encoded strings at the same indices, or null if the input is null
+     * @see #encodeAll(IManipulationType, String[], String[])
+     */
+    public static String[] encodeAll( IManipulationType type, String[] input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( input == null )
+        {
+            return null;
+        }
+        String[] output = new String[input.length];
+        encodeAll( manip, SIZE_LIMITS.get( type ), input, output );
+        return output;
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type once and encode each of the given strings into a new list
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the strings to encode
+     * @return the encoded strings in the same order, or null if the input is null
+     * @see #encodeAll(IManipulationType, String[], String[])
+     */
+    public static List<String> encodeAll( IManipulationType type, List<String> input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( input == null )
+        {
+            return null;
+        }
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        if ( limit == null )
+        {
+            return manip.encodeAll( input );
+        }
+
+        List<String> output = new ArrayList<String>( input.size() );
+        for ( String value : input )
+        {
+            output.add( manip.encodeLimited( value, limit ) );
+        }
+        return output;
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and encode a sequence to the output while writing trusted raw
+     * fragments, such as highlighting markup, at the given input offsets. For example, encoding {@code "a<b"} for HTML
+     * content with offsets {@code 1, 2} and inserts {@code "<mark>", "</mark>"} writes {@code a<mark>&lt;</mark>b}.
+     * The result is what encoding the pieces between the offsets and joining them with the fragments gives, in one
+     * pass and without any substrings. Size limits do not apply.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the sequence to encode
+     * @param offsets the input index each fragment goes before, in ascending order
+     * @param rawInserts the fragments to write unchanged, one per offset
+     * @param output where the encoded input and fragments go
+     * @throws IllegalArgumentException if the output, the arrays or any fragment is null, the arrays differ in length
+     *             or the offsets are not in ascending order
+     * @throws IndexOutOfBoundsException if an offset is outside the input
+     */
+    public static void encodeWithInsertions( IManipulationType type, CharSequence input, int[] offsets,
+        CharSequence[] rawInserts, Appendable output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.encodeWithInsertions( input, offsets, rawInserts, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and write the digits of a number to the output without first
+     * turning it into a String. An int widens to this method. Only the characters this context needs escaped are
+     * escaped, such as '-' in an unquoted HTML attribute.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     */
+    public static void encodeNumber( IManipulationType type, long value, Appendable output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.encodeNumber( value, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and write a number, formatted as {@link Double#toString(double)}
+     * would, to the output. Only the characters this context needs escaped are escaped.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param value the number to encode
+     * @param output where the encoded number goes
+     */
+    public static void encodeNumber( IManipulationType type, double value, Appendable output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.encodeNumber( value, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and write a number, formatted as {@link BigDecimal#toString()}
+     * would, to the output. Only the characters this context needs escaped are escaped.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param value the number to encode, nothing is written if it is null
+     * @param output where the encoded number goes
+     */
+    public static void encodeNumber( IManipulationType type, BigDecimal value, Appendable output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.encodeNumber( value, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and encode a very large input on several cores. The input is cut
+     * into chunks where the encoder allows it, for CDATA never right after a ']', the chunks are encoded in parallel
+     * on the common {@link java.util.concurrent.ForkJoinPool} and the results joined into one presized output. The
+     * result is exactly what {@link #encode(IManipulationType, String)} gives without a size limit. Inputs under a
+     * million characters are encoded on the calling thread.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the sequence to encode, which must not be modified while this runs
+     * @return the encoded input, or null if the input is null
+     */
+    public static String encodeParallel( IManipulationType type, CharSequence input )
+    {
+        return encodeParallel( type, input, ParallelEncoding.DEFAULT_THRESHOLD );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and encode a large input on several cores once it reaches the
+     * given length
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the sequence to encode, which must not be modified while this runs
+     * @param threshold the input length from which to encode in parallel, shorter input is encoded on the calling
+     *            thread
+     * @return the encoded input, or null if the input is null
+     * @throws IllegalArgumentException if the threshold is negative
+     * @see #encodeParallel(IManipulationType, CharSequence)
+     */
+    public static String encodeParallel( IManipulationType type, CharSequence input, int threshold )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( threshold < 0 )
+        {
+            throw new IllegalArgumentException( "Threshold cannot be negative" );
+        }
+        if ( input == null )
+        {
+            return null;
+        }
+        return ParallelEncoding.encode( manip, input, threshold );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and tell whether encoding would change the input, without
+     * encoding it. Nothing is allocated for input made of ASCII and Latin-1 characters.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the sequence to examine
+     * @return true if encoding would give anything other than the input, false if not or the input is null
+     */
+    public static boolean needsEncoding( IManipulationType type, CharSequence input )
+    {
+        return ManipulatorFactory.getManipulator( type ).needsEncoding( input );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and find the first character encoding would not write through
+     * unchanged, e.g. to copy everything before it as is. Filtering removes exactly the characters encoding changes,
+     * so this is also where filtering starts to make a difference.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the sequence to examine
+     * @return the index of the first character that would be changed, or -1 if there is none or the input is null
+     */
+    public static int indexOfFirstUnsafe( IManipulationType type, CharSequence input )
+    {
+        return ManipulatorFactory.getManipulator( type ).indexOfFirstUnsafe( input );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and work out how long the encoded input would be, without
+     * encoding it, e.g. to size a column or a buffer. This is the length without any size limit set for the type.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the sequence to examine
+     * @return the length of the encoded input, or 0 if the input is null
+     */
+    public static long encodedLength( IManipulationType type, CharSequence input )
+    {
+        return ManipulatorFactory.getManipulator( type ).encodedLength( input );
     }
 
     /**
@@ -45,11 +468,44 @@ public class SecureEncoder
      * @param writer a Writer to write output to
      */
     public static void encode( IManipulationType type, String input, Writer writer )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        try
+        {
+            if ( limit == null )
+            {
+                manip.encode( input, writer );
+            }
+            else if ( input != null )
+            {
+                if ( writer == null )
+                {
+                    throw new IllegalArgumentException( "Writer cannot be null" );
+                }
+                writer.write( manip.encodeLimited( input, limit ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string to be written as UTF-8 bytes to the given
+     * stream
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @param output a stream to write UTF-8 output to
+     */
+    public static void encodeToUtf8( IManipulationType type, String input, OutputStream output )
     {
         AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
         try
         {
-            manip.encode( input, writer );
+            manip.encodeToUtf8( input, output );
         }
         catch ( IOException e )
         {
@@ -57,6 +513,276 @@ public class SecureEncoder
         }
     }
 
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string, returning the result as UTF-8 bytes
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @return the UTF-8 bytes of a properly encoded representation of the input string, or null if the input is null
+     */
+    public static byte[] encodeToUtf8( IManipulationType type, String input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeToUtf8( input );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and feed the UTF-8 bytes of the encoded string to the digest,
+     * e.g. to compute an ETag, without building the encoded string. The digest ends up exactly as updating it with
+     * {@code encode( type, input ).getBytes( StandardCharsets.UTF_8 )} would leave it, including any size limit set
+     * for the type. If the input is null, the digest is not updated.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @param digest the digest to update, which is not reset or completed
+     * @throws IllegalArgumentException if the digest is null
+     */
+    public static void encodeToDigest( IManipulationType type, String input, MessageDigest digest )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        if ( limit == null || input == null )
+        {
+            manip.encodeToDigest( input, digest );
+        }
+        else
+        {
+            if ( digest == null )
+            {
+                throw new IllegalArgumentException( "MessageDigest cannot be null" );
+            }
+            digest.update( manip.encodeLimited( input, limit ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and hash the encoded string with {@link Fnv1a64}, a fast 64-bit
+     * hash for cache keys, without building the encoded string. The result is exactly
+     * {@code Fnv1a64.hash( encode( type, input ) )}, including any size limit set for the type.
+     *
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @return the hash of the encoded string, or {@link Fnv1a64#OFFSET_BASIS} if the input is null
+     */
+    public static long encodedFnv1a64( IManipulationType type, String input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        if ( limit == null || input == null )
+        {
+            return manip.encodedFnv1a64( input );
+        }
+        return Fnv1a64.hash( manip.encodeLimited( input, limit ) );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string to be written as UTF-8 bytes into off-heap
+     * segments borrowed from the given pool, ready for a channel write. Close the result to return its segments.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @param pool where to borrow output segments from
+     * @return the encoded output held in pooled segments, or null if the input is null
+     */
+    public static PooledByteOutput encodeToUtf8( IManipulationType type, String input, DirectBufferPool pool )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeToUtf8( input, pool );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string to be encoded for output in the given
+     * charset. Markup manipulators leave characters the charset can represent unescaped, which gives smaller output
+     * for Unicode charsets and correct references for legacy ones.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @param charset the charset the output will be written in
+     * @return a properly encoded string representation of the input string, or null if the input is null
+     */
+    public static String encodeForCharset( IManipulationType type, String input, Charset charset )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeForCharset( input, charset );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch string to be written as bytes in the given charset to
+     * the given stream, in a single pass. See {@link #encodeForCharset(IManipulationType, String, Charset)}
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the string to encode
+     * @param charset the charset to write the output in
+     * @param output a stream to write output to
+     */
+    public static void encodeForCharset( IManipulationType type, String input, Charset charset, OutputStream output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.encodeForCharset( input, charset, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch UTF-8 input without decoding it to a String.
+     * Malformed input is replaced with U+FFFD, so the result is the same as
+     * {@code encodeToUtf8( type, new String( input, StandardCharsets.UTF_8 ) )}
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the UTF-8 bytes to encode
+     * @return the UTF-8 bytes of a properly encoded representation of the input, or null if the input is null
+     */
+    public static byte[] encodeUtf8( IManipulationType type, byte[] input )
+    {
+        return encodeUtf8( type, input == null ? null : ByteBuffer.wrap( input ) );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch UTF-8 input without decoding it to a String. See
+     * {@link #encodeUtf8(IManipulationType, byte[])}. The input buffer is consumed.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the UTF-8 bytes to encode
+     * @return the UTF-8 bytes of a properly encoded representation of the input, or null if the input is null
+     */
+    public static byte[] encodeUtf8( IManipulationType type, ByteBuffer input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.encodeUtf8( input );
+    }
+
+    /**
+     * Shared method to handle encoder lookup by type and dispatch UTF-8 input without decoding it to a String, writing
+     * UTF-8 bytes to the given stream. See {@link #encodeUtf8(IManipulationType, byte[])}. The input buffer is
+     * consumed.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the UTF-8 bytes to encode
+     * @param output a stream to write UTF-8 output to
+     */
+    public static void encodeUtf8( IManipulationType type, ByteBuffer input, OutputStream output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.encodeUtf8( input, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while encoding", e );
+        }
+    }
+
+    /**
+     * Wraps the given Writer in one that encodes everything written through it for the given type, a block at a time.
+     * Context is carried across writes, so the output is the same as encoding all of the written content in one call.
+     * The returned Writer must be closed to write out any held back output; closing it also closes the given Writer.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param writer a Writer to write encoded output to
+     * @return a Writer that encodes its input into the given Writer
+     * @throws IllegalArgumentException if the writer is null
+     */
+    public static Writer wrap( IManipulationType type, Writer writer )
+    {
+        if ( writer == null )
+        {
+            throw new IllegalArgumentException( "Writer cannot be null" );
+        }
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new EncodingWriter( manip.newChunkedEncoder(), writer );
+    }
+
+    /**
+     * Returns a Reader that lazily reads the given source a block at a time and serves its encoded form. Memory use is
+     * bounded by the block size rather than the size of the input, so arbitrarily large content can be encoded without
+     * holding it in a String. Closing the returned Reader closes the source.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param source the Reader to read untrusted input from
+     * @return a Reader serving the encoded input
+     * @throws IllegalArgumentException if the source is null
+     */
+    public static Reader encodingReader( IManipulationType type, Reader source )
+    {
+        if ( source == null )
+        {
+            throw new IllegalArgumentException( "Reader cannot be null" );
+        }
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ManipulatingReader( manip.newChunkedEncoder(), source );
+    }
+
+    /**
+     * Returns a Processor that encodes a stream of chunks, carrying context such as a split CDATA end from one chunk to
+     * the next. Input is only requested while the Subscriber has outstanding demand, and small chunks are batched
+     * into larger ones. Each Processor handles one stream for one Subscriber.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @return a Processor publishing the encoded chunks
+     */
+    public static ManipulationFlow.Processor<CharSequence, CharSequence> encodingProcessor( IManipulationType type )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ManipulatingProcessor.CharSequenceProcessor( manip.newChunkedEncoder() );
+    }
+
+    /**
+     * Returns a Processor that encodes a stream of UTF-8 chunks into UTF-8 chunks, as
+     * {@link #encodingProcessor(IManipulationType)} does for characters. A multi-byte sequence may be split between two
+     * chunks, and malformed input is replaced with U+FFFD. Input buffers are read without changing their position.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @return a Processor publishing the encoded UTF-8 chunks
+     */
+    public static ManipulationFlow.Processor<ByteBuffer, ByteBuffer> encodingUtf8Processor( IManipulationType type )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ManipulatingProcessor.Utf8Processor( manip.newChunkedEncoder() );
+    }
+
+    /**
+     * Returns a session that encodes the input as UTF-8 into a channel that may not accept all bytes at once, such as
+     * a non-blocking socket. Call {@link ChannelEncodingSession#write()} whenever the channel is writable until it
+     * returns true; bytes the channel did not take are kept and written first next time, never encoded again.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the untrusted input to encode, which must not change until the session is complete
+     * @param channel the channel to write the UTF-8 bytes to
+     * @return a session that writes the encoded input
+     * @throws IllegalArgumentException if the channel is null
+     */
+    public static ChannelEncodingSession encodingSession( IManipulationType type, CharSequence input,
+        WritableByteChannel channel )
+    {
+        if ( channel == null )
+        {
+            throw new IllegalArgumentException( "Channel cannot be null" );
+        }
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ChannelEncodingSession( manip.newChunkedEncoder(), input == null ? "" : input, channel );
+    }
+
+    /**
+     * Returns an encoder that splits the encoded input into frames of bounded size, such as HTTP chunks or WebSocket
+     * frames. Only as much input is encoded as each frame needs, and no escape is ever cut between two frames.
+     * 
+     * @param type the manipulation type to use for encoder lookup
+     * @param input the untrusted input to encode, which must not change while frames are taken
+     * @return an encoder handing out the encoded input frame by frame
+     * @throws IllegalArgumentException if the Manipulator for the type only encodes whole inputs
+     */
+    public static FrameEncoder frameEncoder( IManipulationType type, CharSequence input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new FrameEncoder( manip.newChunkedEncoder(), input == null ? "" : input );
+    }
+
     /**
      * <p>
      * Encodes content within a CDATA element.
@@ -9,7 +9,14 @@
 package com.demandware.appsec.secure.manipulation;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
 import com.demandware.appsec.secure.manipulation.impl.IManipulationType;
@@ -24,6 +31,9 @@ import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
 public class SecureFilter
 {
 
+    private static final ConcurrentMap<IManipulationType, SizeLimit> SIZE_LIMITS =
+        new ConcurrentHashMap<IManipulationType, SizeLimit>();
+
     /**
      * Shared method to handle filter lookup by type and dispatch string
      * 
@@ -34,7 +44,209 @@ public class SecureFilter
     public static String filter( IManipulationType type, String input )
     {
         AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
-        return manip.filter( input );
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        return limit == null ? manip.filter( input ) : manip.filterLimited( input, limit );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch string, filtering within the given size limit. The
+     * output is only ever cut between whole entities or escapes, and filtering stops as soon as the output limit is
+     * reached.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the string to filter
+     * @param limit the limits on input and output size
+     * @return the filterd string, truncated if the limit's policy allows, or null if the input is null
+     * @throws SizeLimitExceededException if a limit is exceeded and the policy is to throw
+     */
+    public static String filterLimited( IManipulationType type, String input, SizeLimit limit )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.filterLimited( input, limit );
+    }
+
+    /**
+     * Sets the size limit applied to every {@link #filter(IManipulationType, String)} and
+     * {@link #filter(IManipulationType, String, Writer)} of the given type, including the type specific shortcuts that
+     * use them. The streaming and byte oriented methods are not limited.
+     * 
+     * @param type the manipulation type to limit
+     * @param limit the limits to apply, or null to remove them
+     * @throws IllegalArgumentException if the type is null
+     */
+    public static void setSizeLimit( IManipulationType type, SizeLimit limit )
+    {
+        if ( type == null )
+        {
+            throw new IllegalArgumentException( "IManipulationType cannot be null" );
+        }
+        if ( limit == null )
+        {
+            SIZE_LIMITS.remove( type );
+        }
+        else
+        {
+            SIZE_LIMITS.put( type, limit );
+        }
+    }
+
+    /**
+     * @param type the manipulation type
+     * @return the size limit set for the type, or null if there is none
+     */
+    public static SizeLimit getSizeLimit( IManipulationType type )
+    {
+        return type == null ? null : SIZE_LIMITS.get( type );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and filter a region of a builder in place. Filtering only ever
+     * removes characters, so what is kept is compacted within the region and what follows it is moved once to close
+     * the gap.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param builder the builder holding the region
+     * @param start index of the first character to filter
+     * @param end index after the last character to filter
+     * @return the index after the filtered region
+     * @throws IndexOutOfBoundsException if the region is not within the builder
+     */
+    public static int filterInPlace( IManipulationType type, StringBuilder builder, int start, int end )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.filterInPlace( builder, start, end );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and filter a region of an array in place, compacting what is kept
+     * to the front of the region. The characters after the returned index up to the end of the region are left as
+     * they were.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param chars the array holding the region
+     * @param start index of the first character to filter
+     * @param end index after the last character to filter
+     * @return the index after the filtered characters
+     * @throws IndexOutOfBoundsException if the region is not within the array
+     */
+    public static int filterInPlace( IManipulationType type, char[] chars, int start, int end )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.filterInPlace( chars, start, end );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type once and filter each of the given strings, for many short values
+     * of the same type such as the cells of a listing. One scratch buffer is reused for all of them, a string that
+     * needs no filtering is returned as the same instance and a null string stays null. A size limit set for the type
+     * applies to each string. The output may be the input array itself.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the strings to filter
+     * @param output where the filtered strings go, at the same indices, at least as long as the input
+     * @throws IllegalArgumentException if either array is null or the output is shorter than the input
+     */
+    public static void filterAll( IManipulationType type, String[] input, String[] output )
+    {
+        filterAll( ManipulatorFactory.getManipulator( type ), SIZE_LIMITS.get( type ), input, output );
+    }
+
+    private static void filterAll( AbstractManipulator manip, SizeLimit limit, String[] input, String[] output )
+    {
+        if ( limit == null )
+        {
+            manip.filterAll( input, output );
+            return;
+        }
+
+        if ( input == null || output == null )
+        {
+            throw new IllegalArgumentException( "String[] cannot be null" );
+        }
+        if ( output.length < input.length )
+        {
+            throw new IllegalArgumentException( "Output array is shorter than the input" );
+        }
+        for ( int i = 0; i < input.length; i++ )
+        {
+            output[i] = manip.filterLimited( input[i], limit );
+        }
+    }
+
+    /**
+     * Shared method to handle filter lookup by type once and filter each of the given strings into a new array
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the strings to filter
+     * @return the filtered strings at the same indices, or null if the input is null
+     * @see #filterAll(IManipulationType, String[], String[])
+     */
+    public static String[] filterAll( IManipulationType type, String[] input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( input == null )
+        {
+            return null;
+        }
+        String[] output = new String[input.length];
+        filterAll( manip, SIZE_LIMITS.get( type ), input, output );
+        return output;
+    }
+
+    /**
+     * Shared method to handle filter lookup by type once and filter each of the given strings into a new list
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the strings to filter
+     * @return the filtered strings in the same order, or null if the input is null
+     * @see #filterAll(IManipulationType, String[], String[])
+     */
+    public static List<String> filterAll( IManipulationType type, List<String> input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        if ( input == null )
+        {
+            return null;
+        }
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        if ( limit == null )
+        {
+            return manip.filterAll( input );
+        }
+
+        List<String> output = new ArrayList<String>( input.size() );
+        for ( String value : input )
+        {
+            output.add( manip.filterLimited( value, limit ) );
+        }
+        return output;
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and tell whether filtering would change the input, without
+     * filtering it. Nothing is allocated for input made of ASCII and Latin-1 characters.
+     *
+     * @param type the manipulation type to use for filter lookup
+     * @param input the sequence to examine
+     * @return true if filtering would remove anything from the input, false if not or the input is null
+     * @see SecureEncoder#indexOfFirstUnsafe(IManipulationType, CharSequence)
+     */
+    public static boolean needsFiltering( IManipulationType type, CharSequence input )
+    {
+        return ManipulatorFactory.getManipulator( type ).needsEncoding( input );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and work out how long the filtered input would be, without
+     * filtering it. This is the length without any size limit set for the type.
+     *
+     * @param type the manipulation type to use for filter lookup
+     * @param input the sequence to examine
+     * @return the length of the filtered input, or 0 if the input is null
+     */
+    public static long filteredLength( IManipulationType type, CharSequence input )
+    {
+        return ManipulatorFactory.getManipulator( type ).filteredLength( input );
     }
 
     /**
@@ -45,11 +257,122 @@ public class SecureFilter
      * @param writer a Writer to write output to
      */
     public static void filter( IManipulationType type, String input, Writer writer )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        SizeLimit limit = SIZE_LIMITS.get( type );
+        try
+        {
+            if ( limit == null )
+            {
+                manip.filter( input, writer );
+            }
+            else if ( input != null )
+            {
+                if ( writer == null )
+                {
+                    throw new IllegalArgumentException( "Writer cannot be null" );
+                }
+                writer.write( manip.filterLimited( input, limit ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while filtering", e );
+        }
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch string to be written as UTF-8 bytes to the given
+     * stream
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the string to filter
+     * @param output a stream to write UTF-8 output to
+     */
+    public static void filterToUtf8( IManipulationType type, String input, OutputStream output )
     {
         AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
         try
         {
-            manip.filter( input, writer );
+            manip.filterToUtf8( input, output );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "An error occurred while filtering", e );
+        }
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch string, returning the result as UTF-8 bytes
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the string to filter
+     * @return the UTF-8 bytes of a properly filtered representation of the input string, or null if the input is null
+     */
+    public static byte[] filterToUtf8( IManipulationType type, String input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.filterToUtf8( input );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch string to be written as UTF-8 bytes into off-heap
+     * segments borrowed from the given pool, ready for a channel write. Close the result to return its segments.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the string to filter
+     * @param pool where to borrow output segments from
+     * @return the filtered output held in pooled segments, or null if the input is null
+     */
+    public static PooledByteOutput filterToUtf8( IManipulationType type, String input, DirectBufferPool pool )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.filterToUtf8( input, pool );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch UTF-8 input without decoding it to a String.
+     * Malformed input is replaced with U+FFFD, so the result is the same as
+     * {@code filterToUtf8( type, new String( input, StandardCharsets.UTF_8 ) )}
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the UTF-8 bytes to filter
+     * @return the UTF-8 bytes of a properly filtered representation of the input, or null if the input is null
+     */
+    public static byte[] filterUtf8( IManipulationType type, byte[] input )
+    {
+        return filterUtf8( type, input == null ? null : ByteBuffer.wrap( input ) );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch UTF-8 input without decoding it to a String. See
+     * {@link #filterUtf8(IManipulationType, byte[])}. The input buffer is consumed.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the UTF-8 bytes to filter
+     * @return the UTF-8 bytes of a properly filtered representation of the input, or null if the input is null
+     */
+    public static byte[] filterUtf8( IManipulationType type, ByteBuffer input )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return manip.filterUtf8( input );
+    }
+
+    /**
+     * Shared method to handle filter lookup by type and dispatch UTF-8 input without decoding it to a String, writing
+     * UTF-8 bytes to the given stream. See {@link #filterUtf8(IManipulationType, byte[])}. The input buffer is
+     * consumed.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param input the UTF-8 bytes to filter
+     * @param output a stream to write UTF-8 output to
+     */
+    public static void filterUtf8( IManipulationType type, ByteBuffer input, OutputStream output )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        try
+        {
+            manip.filterUtf8( input, output );
         }
         catch ( IOException e )
         {
@@ -57,6 +380,54 @@ public class SecureFilter
         }
     }
     
+    /**
+     * Returns a Reader that lazily reads the given source a block at a time and serves its filtered form. Memory use is
+     * bounded by the block size rather than the size of the input, so arbitrarily large content can be filtered without
+     * holding it in a String. Closing the returned Reader closes the source.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @param source the Reader to read untrusted input from
+     * @return a Reader serving the filtered input
+     * @throws IllegalArgumentException if the source is null
+     */
+    public static Reader filteringReader( IManipulationType type, Reader source )
+    {
+        if ( source == null )
+        {
+            throw new IllegalArgumentException( "Reader cannot be null" );
+        }
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ManipulatingReader( manip.newChunkedFilter(), source );
+    }
+
+    /**
+     * Returns a Processor that filters a stream of chunks, carrying context such as a split CDATA end from one chunk to
+     * the next. Input is only requested while the Subscriber has outstanding demand, and small chunks are batched
+     * into larger ones. Each Processor handles one stream for one Subscriber.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @return a Processor publishing the filterd chunks
+     */
+    public static ManipulationFlow.Processor<CharSequence, CharSequence> filteringProcessor( IManipulationType type )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ManipulatingProcessor.CharSequenceProcessor( manip.newChunkedFilter() );
+    }
+
+    /**
+     * Returns a Processor that filters a stream of UTF-8 chunks into UTF-8 chunks, as
+     * {@link #filteringProcessor(IManipulationType)} does for characters. A multi-byte sequence may be split between
+     * two chunks, and malformed input is replaced with U+FFFD. Input buffers are read without changing their position.
+     * 
+     * @param type the manipulation type to use for filter lookup
+     * @return a Processor publishing the filterd UTF-8 chunks
+     */
+    public static ManipulationFlow.Processor<ByteBuffer, ByteBuffer> filteringUtf8Processor( IManipulationType type )
+    {
+        AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+        return new ManipulatingProcessor.Utf8Processor( manip.newChunkedFilter() );
+    }
+
     /**
      * <p>
      * Filters content within a CDATA element.
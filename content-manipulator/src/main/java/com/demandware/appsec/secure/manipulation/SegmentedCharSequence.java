@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Manipulated output held in a chain of fixed-size segments instead of one contiguous array. Growing it never copies
+ * what is already there and never needs an array larger than one segment, so very large output neither pays for
+ * repeated doubling nor needs one huge allocation. Read it through {@link #reader()} or hand it on with
+ * {@link #writeTo(Writer)}; {@link #toString()} and {@link #subSequence(int, int)} copy.
+ */
+public final class SegmentedCharSequence
+    implements CharSequence, Appendable
+{
+    static final int DEFAULT_SEGMENT_SIZE = 8192;
+
+    private final int segmentSize;
+
+    private final List<char[]> segments = new ArrayList<char[]>();
+
+    private int length;
+
+    SegmentedCharSequence()
+    {
+        this( DEFAULT_SEGMENT_SIZE );
+    }
+
+    SegmentedCharSequence( int segmentSize )
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public int length()
+    {
+        return this.length;
+    }
+
+    @Override
+    public char charAt( int index )
+    {
+        if ( index < 0 || index >= this.length )
+        {
+            throw new IndexOutOfBoundsException( "index " + index + ", length " + this.length );
+        }
+        return this.segments.get( index / this.segmentSize )[index % this.segmentSize];
+    }
+
+    /**
+     * Copies part of the content into a String
+     */
+    @Override
+    public CharSequence subSequence( int start, int end )
+    {
+        if ( start < 0 || end > this.length || start > end )
+        {
+            throw new IndexOutOfBoundsException( "start " + start + ", end " + end + ", length " + this.length );
+        }
+        char[] chars = new char[end - start];
+        int copied = 0;
+        while ( copied < chars.length )
+        {
+            int index = start + copied;
+            int offset = index % this.segmentSize;
+            int count = Math.min( this.segmentSize - offset, chars.length - copied );
+            System.arraycopy( this.segments.get( index / this.segmentSize ), offset, chars, copied, count );
+            copied += count;
+        }
+        return new String( chars );
+    }
+
+    /**
+     * Copies the whole content into a String, which needs one contiguous array after all
+     */
+    @Override
+    public String toString()
+    {
+        return subSequence( 0, this.length ).toString();
+    }
+
+    @Override
+    public Appendable append( CharSequence csq )
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        return append( seq, 0, seq.length() );
+    }
+
+    @Override
+    public Appendable append( CharSequence csq, int start, int end )
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        if ( start < 0 || end > seq.length() || start > end )
+        {
+            throw new IndexOutOfBoundsException( "start " + start + ", end " + end + ", length " + seq.length() );
+        }
+        ensureCapacity( end - start );
+
+        int i = start;
+        while ( i < end )
+        {
+            int offset = this.length % this.segmentSize;
+            if ( offset == 0 )
+            {
+                this.segments.add( new char[this.segmentSize] );
+            }
+            char[] segment = this.segments.get( this.segments.size() - 1 );
+            int count = Math.min( this.segmentSize - offset, end - i );
+            copy( seq, i, i + count, segment, offset );
+            this.length += count;
+            i += count;
+        }
+        return this;
+    }
+
+    @Override
+    public Appendable append( char c )
+    {
+        ensureCapacity( 1 );
+        int offset = this.length % this.segmentSize;
+        if ( offset == 0 )
+        {
+            this.segments.add( new char[this.segmentSize] );
+        }
+        this.segments.get( this.segments.size() - 1 )[offset] = c;
+        this.length++;
+        return this;
+    }
+
+    /**
+     * Writes the content to the given Writer a segment at a time, without copying it
+     *
+     * @param writer the Writer to write to
+     * @throws IOException if the Writer throws an IOException
+     */
+    public void writeTo( Writer writer )
+        throws IOException
+    {
+        int remaining = this.length;
+        for ( char[] segment : this.segments )
+        {
+            int count = Math.min( this.segmentSize, remaining );
+            writer.write( segment, 0, count );
+            remaining -= count;
+        }
+    }
+
+    /**
+     * @return a Reader over the content, reading straight from the segments
+     */
+    public Reader reader()
+    {
+        return new SegmentReader();
+    }
+
+    private void ensureCapacity( int additional )
+    {
+        if ( additional > Integer.MAX_VALUE - this.length )
+        {
+            throw new IllegalStateException( "Output is longer than a CharSequence can be" );
+        }
+    }
+
+    private static void copy( CharSequence seq, int start, int end, char[] dest, int destOffset )
+    {
+        if ( seq instanceof String )
+        {
+            ( (String) seq ).getChars( start, end, dest, destOffset );
+        }
+        else if ( seq instanceof StringBuilder )
+        {
+            ( (StringBuilder) seq ).getChars( start, end, dest, destOffset );
+        }
+        else if ( seq instanceof CharBuffer )
+        {
+            CharBuffer buffer = ( (CharBuffer) seq ).duplicate();
+            buffer.position( buffer.position() + start );
+            buffer.get( dest, destOffset, end - start );
+        }
+        else
+        {
+            for ( int i = start; i < end; i++ )
+            {
+                dest[destOffset++] = seq.charAt( i );
+            }
+        }
+    }
+
+    /**
+     * Reads straight from the segments; output appended while reading is read as well
+     */
+    private final class SegmentReader
+        extends Reader
+    {
+        private int position;
+
+        private boolean closed;
+
+        @Override
+        public int read( char[] cbuf, int off, int len )
+            throws IOException
+        {
+            if ( this.closed )
+            {
+                throw new IOException( "Reader is closed" );
+            }
+            if ( off < 0 || len < 0 || off + len > cbuf.length )
+            {
+                throw new IndexOutOfBoundsException();
+            }
+            if ( len == 0 )
+            {
+                return 0;
+            }
+            int available = SegmentedCharSequence.this.length - this.position;
+            if ( available == 0 )
+            {
+                return -1;
+            }
+
+            int size = SegmentedCharSequence.this.segmentSize;
+            int offset = this.position % size;
+            int count = Math.min( len, Math.min( available, size - offset ) );
+            System.arraycopy( SegmentedCharSequence.this.segments.get( this.position / size ), offset, cbuf, off,
+                count );
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public long skip( long n )
+        {
+            long skipped = Math.min( Math.max( n, 0 ), SegmentedCharSequence.this.length - this.position );
+            this.position += (int) skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean ready()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            this.closed = true;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Limits on the input and output size of an encode or filter, guarding against input that is huge or expands a lot,
+ * such as a long run of '<' in HTML. The input is measured in characters, the output in characters or UTF-8 bytes.
+ * What happens when a limit is exceeded is set by the {@link Policy}. Truncated output is only ever cut between the
+ * outputs of two code points, never through an entity, an escape or a surrogate pair, and manipulation stops as soon
+ * as the output budget is used up rather than producing output only to discard it. A Manipulator that needs its whole
+ * input at once, see {@link AbstractManipulator#newChunkedEncoder()}, produces all of its output in one piece when it
+ * finishes, so for those the whole output is built first and is then either kept whole or truncated to nothing.
+ * Input short enough that even its largest possible output fits, see {@link AbstractManipulator#maxExpansion(boolean)},
+ * is manipulated in one go without being measured.
+ */
+public final class SizeLimit
+{
+    /**
+     * What to do when a limit is exceeded
+     */
+    public static enum Policy
+    {
+        /**
+         * Throw a {@link SizeLimitExceededException}
+         */
+        THROW,
+        /**
+         * Return as much as fits
+         */
+        TRUNCATE,
+        /**
+         * Return as much as fits with room left for an ellipsis, followed by "..." manipulated for the same context
+         */
+        TRUNCATE_WITH_ELLIPSIS;
+    }
+
+    /**
+     * How output size is measured
+     */
+    public static enum Unit
+    {
+        CHARS,
+        UTF8_BYTES;
+    }
+
+    /**
+     * A limit that is never reached
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final String ELLIPSIS = "...";
+
+    private final int maxInputChars;
+
+    private final int maxOutput;
+
+    private final Unit outputUnit;
+
+    private final Policy policy;
+
+    /**
+     * @param maxInputChars the maximum input length in characters, or {@link #UNLIMITED}
+     * @param maxOutput the maximum output size in the given unit, or {@link #UNLIMITED}
+     * @param outputUnit how output size is measured
+     * @param policy what to do when either limit is exceeded
+     * @throws IllegalArgumentException if a limit is negative or the unit or policy is null
+     */
+    public SizeLimit( int maxInputChars, int maxOutput, Unit outputUnit, Policy policy )
+    {
+        if ( maxInputChars < 0 || maxOutput < 0 )
+        {
+            throw new IllegalArgumentException( "Limits cannot be negative" );
+        }
+        if ( outputUnit == null || policy == null )
+        {
+            throw new IllegalArgumentException( "Unit and policy cannot be null" );
+        }
+        this.maxInputChars = maxInputChars;
+        this.maxOutput = maxOutput;
+        this.outputUnit = outputUnit;
+        this.policy = policy;
+    }
+
+    public int getMaxInputChars()
+    {
+        return this.maxInputChars;
+    }
+
+    public int getMaxOutput()
+    {
+        return this.maxOutput;
+    }
+
+    public Unit getOutputUnit()
+    {
+        return this.outputUnit;
+    }
+
+    public Policy getPolicy()
+    {
+        return this.policy;
+    }
+
+    /**
+     * Encodes or filters the input within this limit
+     *
+     * @param manipulator the Manipulator to use
+     * @param input the string to manipulate, not null
+     * @param shouldFilter true if filtering, false if encoding
+     * @return the manipulated string, truncated if the policy allows
+     * @throws SizeLimitExceededException if a limit is exceeded and the policy is to throw
+     */
+    String apply( AbstractManipulator manipulator, String input, boolean shouldFilter )
+    {
+        try
+        {
+            return manipulate( manipulator, input, shouldFilter );
+        }
+        catch ( IOException e )
+        {
+            // throw as unchecked as StringBuilder shouldn't have any IOExceptions
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private String manipulate( AbstractManipulator manipulator, String input, boolean shouldFilter )
+        throws IOException
+    {
+        if ( alwaysFits( manipulator, input, shouldFilter ) )
+        {
+            StringBuilder sb = new StringBuilder( input.length() );
+            if ( shouldFilter )
+            {
+                manipulator.filterInternal( input, sb );
+            }
+            else
+            {
+                manipulator.encodeInternal( input, sb );
+            }
+            return sb.toString();
+        }
+
+        boolean truncated = false;
+        int end = input.length();
+        if ( end > this.maxInputChars )
+        {
+            if ( this.policy == Policy.THROW )
+            {
+                throw new SizeLimitExceededException( "Input of " + end + " characters exceeds the limit of "
+                    + this.maxInputChars );
+            }
+            end = this.maxInputChars;
+            if ( end > 0 && Character.isHighSurrogate( input.charAt( end - 1 ) )
+                && Character.isLowSurrogate( input.charAt( end ) ) )
+            {
+                end--;
+            }
+            truncated = true;
+        }
+
+        String ellipsis = "";
+        if ( this.policy == Policy.TRUNCATE_WITH_ELLIPSIS )
+        {
+            StringBuilder sb = new StringBuilder();
+            ChunkedManipulation ellipsisManipulation = newManipulation( manipulator, shouldFilter );
+            ellipsisManipulation.manipulate( ELLIPSIS, 0, ELLIPSIS.length(), sb );
+            ellipsisManipulation.finish( sb );
+            if ( size( sb ) <= this.maxOutput )
+            {
+                ellipsis = sb.toString();
+            }
+        }
+        int outputBudget = this.maxOutput - size( ellipsis );
+
+        ManipulationUnits units = new ManipulationUnits( newManipulation( manipulator, shouldFilter ), input, end );
+        StringBuilder output = new StringBuilder( Math.min( end, outputBudget ) );
+        int outputSize = 0;
+        // output that fits the limit but not alongside the ellipsis, kept until it is known whether one is needed
+        StringBuilder tail = new StringBuilder();
+        int tailSize = 0;
+        // the output of one code point, placed whole or not at all
+        StringBuilder unit = new StringBuilder();
+
+        while ( units.next( unit ) )
+        {
+            int unitSize = size( unit );
+            if ( unitSize == 0 )
+            {
+                continue;
+            }
+            if ( outputSize + tailSize + unitSize > this.maxOutput )
+            {
+                if ( this.policy == Policy.THROW )
+                {
+                    throw new SizeLimitExceededException( "Output exceeds the limit of " + this.maxOutput + " "
+                        + this.outputUnit );
+                }
+                truncated = true;
+                break;
+            }
+            if ( tailSize == 0 && outputSize + unitSize <= outputBudget )
+            {
+                output.append( unit );
+                outputSize += unitSize;
+            }
+            else
+            {
+                tail.append( unit );
+                tailSize += unitSize;
+            }
+        }
+
+        output.append( truncated ? ellipsis : tail );
+        return output.toString();
+    }
+
+    private static ChunkedManipulation newManipulation( AbstractManipulator manipulator, boolean shouldFilter )
+    {
+        return shouldFilter ? manipulator.newChunkedFilter() : manipulator.newChunkedEncoder();
+    }
+
+    /**
+     * Whether the input is short enough that neither limit can be reached, so it can be manipulated as if there was no
+     * limit, straight into any output. That is the case when every character becoming
+     * {@link AbstractManipulator#maxExpansion(boolean)} characters of at most three UTF-8 bytes each still fits; a
+     * surrogate pair becomes four bytes for two characters.
+     *
+     * @param manipulator the Manipulator to use
+     * @param input the string to manipulate, not null
+     * @param shouldFilter true if filtering, false if encoding
+     * @return true if the limit cannot change the output, false if it might
+     */
+    boolean alwaysFits( AbstractManipulator manipulator, String input, boolean shouldFilter )
+    {
+        int expansion = manipulator.maxExpansion( shouldFilter );
+        long bytesPerChar = this.outputUnit == Unit.UTF8_BYTES ? 3 : 1;
+        return input.length() <= this.maxInputChars && expansion > 0
+            && (long) input.length() * expansion * bytesPerChar <= this.maxOutput;
+    }
+
+    /**
+     * Measures output that never ends in half of a surrogate pair whose other half comes after it, so its size is
+     * what it takes once written
+     */
+    private int size( CharSequence chars )
+    {
+        return this.outputUnit == Unit.UTF8_BYTES ? ManipulationUnits.utf8Length( chars ) : chars.length();
+    }
+}
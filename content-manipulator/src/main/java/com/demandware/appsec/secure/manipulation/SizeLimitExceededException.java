@@ -0,0 +1,24 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+/**
+ * Thrown when the input or output of a manipulation exceeds a {@link SizeLimit} whose policy is
+ * {@link SizeLimit.Policy#THROW}
+ */
+public class SizeLimitExceededException
+    extends IllegalArgumentException
+{
+    private static final long serialVersionUID = 1L;
+
+    public SizeLimitExceededException( String message )
+    {
+        super( message );
+    }
+}
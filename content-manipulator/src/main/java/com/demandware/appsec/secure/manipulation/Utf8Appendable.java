@@ -0,0 +1,484 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Appendable that writes UTF-8 bytes as characters are appended to it, removing the need for a separate
+ * OutputStreamWriter pass over the manipulated output. Bytes are written into a ByteBuffer; subclasses decide what
+ * happens when it fills up. Unpaired surrogates are written as '?', the same as
+ * {@link String#getBytes(java.nio.charset.Charset)} does.
+ */
+abstract class Utf8Appendable
+    implements Appendable
+{
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final byte REPLACEMENT_BYTE = '?';
+
+    /**
+     * The buffer currently being written to
+     */
+    protected ByteBuffer buffer;
+
+    // a high surrogate waiting for its low surrogate, or 0 if there is none
+    private char pendingHighSurrogate;
+
+    protected Utf8Appendable( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates an Appendable that writes its bytes to the given stream
+     *
+     * @param out the stream to write UTF-8 bytes to
+     * @return a new Appendable writing to the stream
+     */
+    static Utf8Appendable toStream( OutputStream out )
+    {
+        return new StreamUtf8Appendable( out );
+    }
+
+    /**
+     * Creates an Appendable that writes its bytes to the given blocking channel through a direct buffer
+     *
+     * @param channel the channel to write UTF-8 bytes to
+     * @param bufferSize the size of the direct buffer
+     * @return a new Appendable writing to the channel
+     */
+    static Utf8Appendable toChannel( WritableByteChannel channel, int bufferSize )
+    {
+        return new ChannelUtf8Appendable( channel, bufferSize );
+    }
+
+    /**
+     * Creates an Appendable that collects its bytes in memory, see {@link ArrayUtf8Appendable#toByteArray()}
+     *
+     * @param initialCapacity a best guess of the number of bytes that will be written
+     * @return a new Appendable collecting bytes in memory
+     */
+    static ArrayUtf8Appendable toByteArray( int initialCapacity )
+    {
+        return new ArrayUtf8Appendable( initialCapacity );
+    }
+
+    /**
+     * Creates an Appendable that writes its bytes into segments borrowed from the given pool, see
+     * {@link PooledUtf8Appendable#toOutput()}
+     *
+     * @param pool where to take segments from
+     * @return a new Appendable writing to pooled segments
+     */
+    static PooledUtf8Appendable toPool( DirectBufferPool pool )
+    {
+        return new PooledUtf8Appendable( pool );
+    }
+
+    /**
+     * Creates an Appendable that feeds its bytes to the given digest instead of keeping them
+     *
+     * @param digest the digest to update with UTF-8 bytes
+     * @return a new Appendable updating the digest
+     */
+    static Utf8Appendable toDigest( MessageDigest digest )
+    {
+        return new DigestUtf8Appendable( digest );
+    }
+
+    /**
+     * Creates an Appendable that hashes its bytes instead of keeping them, see {@link HashUtf8Appendable#hash()}
+     *
+     * @return a new Appendable computing the {@link Fnv1a64} hash of its bytes
+     */
+    static HashUtf8Appendable toFnv1a64()
+    {
+        return new HashUtf8Appendable();
+    }
+
+    @Override
+    public Appendable append( CharSequence csq )
+        throws IOException
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        return append( seq, 0, seq.length() );
+    }
+
+    @Override
+    public Appendable append( CharSequence csq, int start, int end )
+        throws IOException
+    {
+        CharSequence seq = csq == null ? "null" : csq;
+        for ( int i = start; i < end; i++ )
+        {
+            char c = seq.charAt( i );
+            // ASCII is by far the most common output, so copy it straight across
+            if ( c < 0x80 && this.pendingHighSurrogate == 0 )
+            {
+                if ( !this.buffer.hasRemaining() )
+                {
+                    this.buffer = overflow( this.buffer, 1 );
+                }
+                this.buffer.put( (byte) c );
+            }
+            else
+            {
+                appendChar( c );
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public Appendable append( char c )
+        throws IOException
+    {
+        appendChar( c );
+        return this;
+    }
+
+    /**
+     * Writes any unpaired surrogate and completes the output, see {@link #complete()}
+     *
+     * @throws IOException if the underlying output throws an IOException
+     */
+    void finish()
+        throws IOException
+    {
+        if ( this.pendingHighSurrogate != 0 )
+        {
+            this.pendingHighSurrogate = 0;
+            ensureRemaining( 1 );
+            this.buffer.put( REPLACEMENT_BYTE );
+        }
+        complete();
+    }
+
+    /**
+     * Called when the current buffer cannot hold the next character
+     *
+     * @param full the current buffer
+     * @param needed the number of bytes that must fit
+     * @return a buffer with at least needed bytes remaining
+     * @throws IOException if the underlying output throws an IOException
+     */
+    protected abstract ByteBuffer overflow( ByteBuffer full, int needed )
+        throws IOException;
+
+    /**
+     * Called once all output has been written to the buffer
+     *
+     * @throws IOException if the underlying output throws an IOException
+     */
+    protected abstract void complete()
+        throws IOException;
+
+    private void appendChar( char c )
+        throws IOException
+    {
+        // the longest sequence is a replaced high surrogate followed by a 3 byte character
+        ensureRemaining( 4 );
+        ByteBuffer buf = this.buffer;
+
+        if ( this.pendingHighSurrogate != 0 )
+        {
+            char high = this.pendingHighSurrogate;
+            this.pendingHighSurrogate = 0;
+            if ( Character.isLowSurrogate( c ) )
+            {
+                int cp = Character.toCodePoint( high, c );
+                buf.put( (byte) ( 0xf0 | ( cp >> 18 ) ) );
+                buf.put( (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) ) );
+                buf.put( (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) ) );
+                buf.put( (byte) ( 0x80 | ( cp & 0x3f ) ) );
+                return;
+            }
+            buf.put( REPLACEMENT_BYTE );
+        }
+
+        if ( c < 0x80 )
+        {
+            buf.put( (byte) c );
+        }
+        else if ( c < 0x800 )
+        {
+            buf.put( (byte) ( 0xc0 | ( c >> 6 ) ) );
+            buf.put( (byte) ( 0x80 | ( c & 0x3f ) ) );
+        }
+        else if ( Character.isHighSurrogate( c ) )
+        {
+            this.pendingHighSurrogate = c;
+        }
+        else if ( Character.isLowSurrogate( c ) )
+        {
+            buf.put( REPLACEMENT_BYTE );
+        }
+        else
+        {
+            buf.put( (byte) ( 0xe0 | ( c >> 12 ) ) );
+            buf.put( (byte) ( 0x80 | ( ( c >> 6 ) & 0x3f ) ) );
+            buf.put( (byte) ( 0x80 | ( c & 0x3f ) ) );
+        }
+    }
+
+    private void ensureRemaining( int needed )
+        throws IOException
+    {
+        if ( this.buffer.remaining() < needed )
+        {
+            this.buffer = overflow( this.buffer, needed );
+        }
+    }
+
+    /**
+     * Collects bytes in a growing heap array
+     */
+    static final class ArrayUtf8Appendable
+        extends Utf8Appendable
+    {
+        ArrayUtf8Appendable( int initialCapacity )
+        {
+            super( ByteBuffer.allocate( Math.max( initialCapacity, 16 ) ) );
+        }
+
+        /**
+         * @return a copy of the bytes collected so far
+         */
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf( this.buffer.array(), this.buffer.position() );
+        }
+
+        @Override
+        protected ByteBuffer overflow( ByteBuffer full, int needed )
+        {
+            int minLength = full.position() + needed;
+            if ( minLength < 0 )
+            {
+                throw new OutOfMemoryError( "Encoded output is too large for a byte array" );
+            }
+            // double, but fall back to the exact size once doubling would overflow
+            int newLength = full.capacity() * 2;
+            ByteBuffer grown = ByteBuffer.allocate( newLength < minLength ? minLength : newLength );
+            grown.put( full.array(), 0, full.position() );
+            return grown;
+        }
+
+        @Override
+        protected void complete()
+        {
+            // bytes stay in the array
+        }
+    }
+
+    /**
+     * Writes bytes to an OutputStream whenever its buffer fills up, and on completion. The stream itself is not
+     * flushed.
+     */
+    static final class StreamUtf8Appendable
+        extends Utf8Appendable
+    {
+        private final OutputStream out;
+
+        StreamUtf8Appendable( OutputStream out )
+        {
+            super( ByteBuffer.allocate( DEFAULT_BUFFER_SIZE ) );
+            this.out = out;
+        }
+
+        @Override
+        protected ByteBuffer overflow( ByteBuffer full, int needed )
+            throws IOException
+        {
+            complete();
+            return full;
+        }
+
+        @Override
+        protected void complete()
+            throws IOException
+        {
+            if ( this.buffer.position() > 0 )
+            {
+                this.out.write( this.buffer.array(), 0, this.buffer.position() );
+                this.buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes bytes to a blocking channel whenever its direct buffer fills up, and on completion
+     */
+    static final class ChannelUtf8Appendable
+        extends Utf8Appendable
+    {
+        private final WritableByteChannel channel;
+
+        ChannelUtf8Appendable( WritableByteChannel channel, int bufferSize )
+        {
+            super( ByteBuffer.allocateDirect( Math.max( bufferSize, 16 ) ) );
+            this.channel = channel;
+        }
+
+        @Override
+        protected ByteBuffer overflow( ByteBuffer full, int needed )
+            throws IOException
+        {
+            complete();
+            return full;
+        }
+
+        @Override
+        protected void complete()
+            throws IOException
+        {
+            this.buffer.flip();
+            while ( this.buffer.hasRemaining() )
+            {
+                this.channel.write( this.buffer );
+            }
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Updates a MessageDigest with bytes whenever its buffer fills up, and on completion
+     */
+    static final class DigestUtf8Appendable
+        extends Utf8Appendable
+    {
+        private final MessageDigest digest;
+
+        DigestUtf8Appendable( MessageDigest digest )
+        {
+            super( ByteBuffer.allocate( DEFAULT_BUFFER_SIZE ) );
+            this.digest = digest;
+        }
+
+        @Override
+        protected ByteBuffer overflow( ByteBuffer full, int needed )
+        {
+            complete();
+            return full;
+        }
+
+        @Override
+        protected void complete()
+        {
+            this.digest.update( this.buffer.array(), 0, this.buffer.position() );
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Hashes bytes whenever its buffer fills up, and on completion
+     */
+    static final class HashUtf8Appendable
+        extends Utf8Appendable
+    {
+        private long hash = Fnv1a64.OFFSET_BASIS;
+
+        HashUtf8Appendable()
+        {
+            super( ByteBuffer.allocate( DEFAULT_BUFFER_SIZE ) );
+        }
+
+        /**
+         * @return the hash of every byte written up to the last {@link #finish()}
+         */
+        long hash()
+        {
+            return this.hash;
+        }
+
+        @Override
+        protected ByteBuffer overflow( ByteBuffer full, int needed )
+        {
+            complete();
+            return full;
+        }
+
+        @Override
+        protected void complete()
+        {
+            this.hash = Fnv1a64.update( this.hash, this.buffer.array(), 0, this.buffer.position() );
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Writes bytes into a chain of off-heap segments taken from a {@link DirectBufferPool}
+     */
+    static final class PooledUtf8Appendable
+        extends Utf8Appendable
+    {
+        private final DirectBufferPool pool;
+
+        private final List<ByteBuffer> filled = new ArrayList<ByteBuffer>();
+
+        PooledUtf8Appendable( DirectBufferPool pool )
+        {
+            super( pool.acquire() );
+            this.pool = pool;
+        }
+
+        /**
+         * @return the written segments, which the caller is now responsible for closing
+         */
+        PooledByteOutput toOutput()
+        {
+            return new PooledByteOutput( this.pool, this.filled );
+        }
+
+        /**
+         * Returns every segment taken so far to the pool, for when the output is abandoned before it is complete
+         */
+        void release()
+        {
+            for ( ByteBuffer segment : this.filled )
+            {
+                this.pool.release( segment );
+            }
+            this.filled.clear();
+            this.pool.release( this.buffer );
+            this.buffer = null;
+        }
+
+        @Override
+        protected ByteBuffer overflow( ByteBuffer full, int needed )
+        {
+            full.flip();
+            this.filled.add( full );
+            return this.pool.acquire();
+        }
+
+        @Override
+        protected void complete()
+        {
+            this.buffer.flip();
+            if ( this.buffer.hasRemaining() )
+            {
+                this.filled.add( this.buffer );
+            }
+            else
+            {
+                this.pool.release( this.buffer );
+            }
+            this.buffer = null;
+        }
+    }
+}
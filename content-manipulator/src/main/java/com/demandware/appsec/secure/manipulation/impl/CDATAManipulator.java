@@ -3,6 +3,7 @@ package com.demandware.appsec.secure.manipulation.impl;
 import java.io.IOException;
 
 import com.demandware.appsec.secure.manipulation.AbstractStringManipulator;
+import com.demandware.appsec.secure.manipulation.ChunkedManipulation;
 import com.demandware.appsec.secure.manipulation.IManipulateOption;
 
 /**
@@ -19,9 +20,9 @@ class CDATAManipulator
         CDATA;
     }
 
-    private static final Character CDATA_CONTROL_CHAR = ']';
+    private static final char CDATA_CONTROL_CHAR = ']';
 
-    private static final Character CDATA_CONTROL_FINISH = '>';
+    private static final char CDATA_CONTROL_FINISH = '>';
 
     private static final String CDATA_ENCODED_APPEND = "]]>]]<![CDATA[>";
 
@@ -44,9 +45,152 @@ class CDATAManipulator
         handleString( input, output, true );
     }
 
+    @Override
+    protected ChunkedManipulation newChunkedEncoder()
+    {
+        return new CDATAChunkedManipulation( false );
+    }
+
+    @Override
+    protected ChunkedManipulation newChunkedFilter()
+    {
+        return new CDATAChunkedManipulation( true );
+    }
+
+    /**
+     * Encoding at most turns each close CDATA string into five times its length, filtering only ever removes
+     */
+    @Override
+    protected int maxExpansion( boolean shouldFilter )
+    {
+        return shouldFilter ? 1 : CDATA_ENCODED_APPEND.length() / 3;
+    }
+
+    /**
+     * A cut must not come after a ], since it could be part of a close CDATA string, nor after a control character,
+     * since dropped control characters do not break up a close CDATA string and one may follow a ]; anywhere else
+     * nothing is held over from one part to the next. Surrogate pairs are kept together.
+     */
+    @Override
+    protected boolean canSplitAt( CharSequence input, int index )
+    {
+        char before = input.charAt( index - 1 );
+        return before != CDATA_CONTROL_CHAR && !isControlCharacter( before )
+            && !( Character.isHighSurrogate( before ) && Character.isLowSurrogate( input.charAt( index ) ) );
+    }
+
+    /**
+     * A close CDATA string counts from its first ], since filtering removes it whole. A control character after a ]
+     * is dropped without breaking up the run, so whether it is the first unsafe character depends on what follows.
+     */
+    @Override
+    protected int indexOfFirstUnsafe( CharSequence input )
+    {
+        if ( input == null )
+        {
+            return -1;
+        }
+        int length = input.length();
+        int brackets = 0;
+        // the indexes of the last two ] chars in the current run
+        int lastBracket = -1;
+        int secondLastBracket = -1;
+        // the index of the first control character dropped inside the current run, or -1
+        int firstControl = -1;
+        for ( int i = 0; i < length; i++ )
+        {
+            char ch = input.charAt( i );
+            if ( ch == CDATA_CONTROL_CHAR )
+            {
+                brackets++;
+                secondLastBracket = lastBracket;
+                lastBracket = i;
+            }
+            else if ( ch == CDATA_CONTROL_FINISH && brackets >= 2 )
+            {
+                return firstControl >= 0 ? Math.min( firstControl, secondLastBracket ) : secondLastBracket;
+            }
+            else if ( isControlCharacter( ch ) )
+            {
+                if ( brackets == 0 )
+                {
+                    return i;
+                }
+                if ( firstControl < 0 )
+                {
+                    firstControl = i;
+                }
+            }
+            else if ( firstControl >= 0 )
+            {
+                return firstControl;
+            }
+            else
+            {
+                brackets = 0;
+            }
+        }
+        return firstControl;
+    }
+
+    @Override
+    protected long encodedLength( CharSequence input )
+    {
+        return manipulatedLength( input, false );
+    }
+
+    @Override
+    protected long filteredLength( CharSequence input )
+    {
+        return manipulatedLength( input, true );
+    }
+
+    /**
+     * Works out the manipulated length from the number of control characters and close CDATA strings, counted the
+     * same way {@link CDATAChunkedManipulation} finds them
+     *
+     * @param input the sequence to examine
+     * @param shouldFilter true if filtering, false if encoding
+     * @return the length of the manipulated input, or 0 if the input is null
+     */
+    private static long manipulatedLength( CharSequence input, boolean shouldFilter )
+    {
+        if ( input == null )
+        {
+            return 0;
+        }
+        int length = input.length();
+        long total = length;
+        int brackets = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            char ch = input.charAt( i );
+            if ( ch == CDATA_CONTROL_CHAR )
+            {
+                brackets++;
+            }
+            else if ( ch == CDATA_CONTROL_FINISH && brackets >= 2 )
+            {
+                brackets = 0;
+                total += shouldFilter ? -3 : CDATA_ENCODED_APPEND.length() - 3;
+            }
+            else if ( isControlCharacter( ch ) )
+            {
+                // dropped without breaking up a run of ] chars
+                total--;
+            }
+            else
+            {
+                brackets = 0;
+            }
+        }
+        return total;
+    }
+
     /**
      * Examines all characters in the input string for bad CDATA characters and the close CDATA string. Encodes or
-     * removes the bad characters and replaces or removes the close CDATA strings
+     * removes the bad characters and replaces or removes the close CDATA strings. Runs of allowed characters are
+     * appended in bulk straight from the input, which is never copied.
      * 
      * @param input a string to encode/filter
      * @param output the output destination object 
@@ -56,80 +200,133 @@ class CDATAManipulator
     private void handleString( String input, Appendable output, boolean shouldFilter )
         throws IOException
     {
-        char[] inputChars = input.toCharArray();
-        int inputLength = inputChars.length;
-        // inputIter is the index of the character we are about to look at
-        for ( int inputIter = 0; inputIter < inputLength; inputIter++ )
+        CDATAChunkedManipulation manipulation = new CDATAChunkedManipulation( shouldFilter );
+        manipulation.manipulate( input, 0, input.length(), output );
+        manipulation.finish( output );
+    }
+
+    /**
+     * Control characters are always illegal
+     * 
+     * @param ch the character to check
+     * @return true if the character must be dropped
+     */
+    private static boolean isControlCharacter( char ch )
+    {
+        return ( ch <= 0x1f ) || // lower bounds of control characters except tab and newlines
+            ( ch >= 0x7f && ch <= 0x84 ) || // DEL through APC control characters,
+            ( ch >= 0x86 && ch <= 0x9f ) || // (still allows NEL character)
+            ( ch >= 0xfdd0 && ch <= 0xfddf ); // more control chars
+    }
+
+    /**
+     * Finds the next character that cannot be copied to the output unchanged
+     * 
+     * @param input the sequence to search
+     * @param from the index to start searching at
+     * @param end the index to stop searching at
+     * @return the index of the next ] or control character, or end if there is none
+     */
+    private static int indexOfSpecial( CharSequence input, int from, int end )
+    {
+        for ( int i = from; i < end; i++ )
+        {
+            char ch = input.charAt( i );
+            if ( ch == CDATA_CONTROL_CHAR || isControlCharacter( ch ) )
+            {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Encodes or filters CDATA content handed over in chunks. The only context CDATA needs is whether the input so
+     * far ends in "]]", so a close CDATA string split across chunks is still caught while memory stays constant
+     * however long the input is.
+     */
+    private static final class CDATAChunkedManipulation
+        extends ChunkedManipulation
+    {
+        private final boolean shouldFilter;
+
+        // the number of trailing ] chars held back, at most 2 since only those can still become part of a CDATA end
+        private int pendingBrackets;
+
+        CDATAChunkedManipulation( boolean shouldFilter )
         {
-            char ch = inputChars[inputIter];
+            this.shouldFilter = shouldFilter;
+        }
 
-            // we've hit a ']' so start looking for more
-            if ( ch == CDATA_CONTROL_CHAR )
+        @Override
+        public void manipulate( CharSequence input, int start, int end, Appendable output )
+            throws IOException
+        {
+            int i = start;
+            while ( i < end )
             {
-                // cdataIter controls the "buffer" size of ] characters, only 2 allowed
-                int cdataIter = 0;
-                char cdataCheck = ch;
-                // read all the ] chars
-                while ( cdataCheck == CDATA_CONTROL_CHAR )
+                if ( this.pendingBrackets == 0 )
                 {
-                    // check that we won't go out of bounds
-                    if ( inputLength <= ( inputIter + cdataIter ) )
+                    // nothing is held back, so everything up to the next ] or control character goes out as is
+                    int next = indexOfSpecial( input, i, end );
+                    if ( next > i )
+                    {
+                        output.append( input, i, next );
+                    }
+                    i = next;
+                    if ( i == end )
                     {
                         break;
                     }
+                }
 
-                    cdataCheck = inputChars[inputIter + cdataIter];
-
-                    if ( cdataIter > 2 )
+                char ch = input.charAt( i++ );
+                if ( ch == CDATA_CONTROL_CHAR )
+                {
+                    if ( this.pendingBrackets == 2 )
                     {
-                        // we've "buffered" 2 ] chars, so add a ] to the output and move the input iter up one
+                        // a third ] can no longer be part of a CDATA end, so let the oldest one go
                         output.append( CDATA_CONTROL_CHAR );
-                        inputIter++;
                     }
                     else
                     {
-                        // we don't yet have 2 "buffered" ] chars, so try for another
-                        cdataIter++;
+                        this.pendingBrackets++;
                     }
                 }
-
-                if ( cdataCheck == CDATA_CONTROL_FINISH && cdataIter > 2 )
+                else if ( ch == CDATA_CONTROL_FINISH && this.pendingBrackets == 2 )
                 {
                     // now we have an issue and need to fix it!
-
-                    if ( !shouldFilter )
+                    this.pendingBrackets = 0;
+                    if ( !this.shouldFilter )
                     {
                         // if we're encoding, append the encoded version of cdata end
                         output.append( CDATA_ENCODED_APPEND );
                     }
                     // otherwise, do nothing, which removes the cdata end
                 }
-                else
+                else if ( !isControlCharacter( ch ) )
                 {
-                    // we just had a bunch of ] chars in a row, no problem, play catch up with the main iterator
-                    for ( int k = 0; k < cdataIter; k++ )
-                    {
-                        output.append( inputChars[inputIter + k] );
-                    }
+                    flushBrackets( output );
+                    output.append( ch );
                 }
-                // update the iterator with the position of the cdata iterator
-                inputIter = inputIter + cdataIter - 1;
-
-            }
-            // Control characters are always illegal
-            else if ( ( ch <= 0x1f ) || // lower bounds of control characters except tab and newlines
-                ( ch >= 0x7f && ch <= 0x84 ) || // DEL through APC control characters,
-                ( ch >= 0x86 && ch <= 0x9f ) || // (still allows NEL character)
-                ( ch >= 0xfdd0 && ch <= 0xfddf ) ) // more control chars
-            {
-                output.append( "" );
+                // a dropped control character is transparent, so ]] and > around it still make a CDATA end
             }
-            // all other characters are allowed
-            else
+        }
+
+        @Override
+        public void finish( Appendable output )
+            throws IOException
+        {
+            flushBrackets( output );
+        }
+
+        private void flushBrackets( Appendable output )
+            throws IOException
+        {
+            for ( ; this.pendingBrackets > 0; this.pendingBrackets-- )
             {
-                output.append( ch );
+                output.append( CDATA_CONTROL_CHAR );
             }
-
         }
     }
 }
@@ -116,6 +116,22 @@ class HTMLManipulator
         return correctedCharacter;
     }
 
+    /**
+     * Everything above the C1 control characters, apart from the noncharacters, is only escaped in case the output
+     * charset cannot represent it
+     */
+    @Override
+    protected boolean isCharsetDependent( char c )
+    {
+        return c >= 0xa0 && !ManipulationUtils.isNoncharacter( c );
+    }
+
+    @Override
+    protected String getCharacterReference( int codePoint )
+    {
+        return "&#x" + Integer.toHexString( codePoint ) + ";";
+    }
+
     /**
      * Build a unmodifiable Map of entity Character to Name for faster lookup List taken from ESAPI HTMLEntityCodec (BSD
      * license)
@@ -155,6 +155,18 @@ public class ManipulationUtils
         return Integer.toHexString( c );
     }
 
+    /**
+     * Checks to see if a character is one of the Unicode noncharacters in the Basic Multilingual Plane, which are never
+     * meant to be exchanged and must not be written raw even where the output charset can represent them
+     * 
+     * @param c a character to check against
+     * @return true if the character is in U+FDD0 to U+FDDF or is U+FFFE or U+FFFF, false otherwise
+     */
+    public final static boolean isNoncharacter( char c )
+    {
+        return ( c >= 0xfdd0 && c <= 0xfddf ) || c == 0xfffe || c == 0xffff;
+    }
+
     private ManipulationUtils()
     {
     }
@@ -8,8 +8,8 @@
  */
 package com.demandware.appsec.secure.manipulation.impl;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.demandware.appsec.secure.manipulation.AbstractManipulator;
 
@@ -26,8 +26,9 @@ public class ManipulatorFactory
 {
     private static final ManipulatorFactory instance = new ManipulatorFactory();
 
+    // read from any number of threads at once, registration may happen at any time
     private final Map<IManipulationType, AbstractManipulator> manipulatorMap =
-        new HashMap<IManipulationType, AbstractManipulator>();
+        new ConcurrentHashMap<IManipulationType, AbstractManipulator>();
 
     private ManipulatorFactory()
     {
@@ -52,9 +53,10 @@ public class ManipulatorFactory
         for ( int i = 0; i < types.length; i++ )
         {
             IManipulationType type = types[i];
-            if ( type != null )
+            AbstractManipulator manipulator = type == null ? null : type.getManipulator();
+            if ( manipulator != null )
             {
-                instance.manipulatorMap.put( type, type.getManipulator() );
+                instance.manipulatorMap.put( type, manipulator );
             }
         }
     }
@@ -113,6 +113,22 @@ public class XMLManipulator
         return correctedCharacter;
     }
 
+    /**
+     * Everything above the C1 control characters, apart from the noncharacters, is only escaped in case the output
+     * charset cannot represent it
+     */
+    @Override
+    protected boolean isCharsetDependent( char c )
+    {
+        return c >= 0xa0 && !ManipulationUtils.isNoncharacter( c );
+    }
+
+    @Override
+    protected String getCharacterReference( int codePoint )
+    {
+        return "&#x" + Integer.toHexString( codePoint ) + ";";
+    }
+
     /**
      * Small unmodifiable map of entity mappings
      * 
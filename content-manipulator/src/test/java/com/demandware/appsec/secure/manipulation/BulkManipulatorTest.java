@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+public class BulkManipulatorTest
+{
+    private static final String[] PIECES = { "text ", "<", "]", "]]", "]]>", ">", "\u00e9", "\u20ac",
+        "\ud83d\ude00", "\u0001", "&", "\n" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that manipulating in tiny chunks gives the same bytes as manipulating the decoded file whole, including
+     * malformed UTF-8
+     */
+    @Test
+    public void testMatchesWholeFile()
+        throws IOException
+    {
+        Random random = new Random( 45 );
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 2000; i++ )
+        {
+            sb.append( PIECES[random.nextInt( PIECES.length )] );
+        }
+        byte[] bytes = sb.toString().getBytes( StandardCharsets.UTF_8 );
+        // a truncated sequence in the middle
+        bytes[bytes.length / 2] = (byte) 0xe2;
+        File input = this.folder.newFile( "in.txt" );
+        Files.write( input.toPath(), bytes );
+        String decoded = new String( bytes, StandardCharsets.UTF_8 );
+
+        File output = new File( this.folder.getRoot(), "out.txt" );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            AbstractManipulator manipulator = ManipulatorFactory.getManipulator( type );
+            for ( boolean shouldFilter : new boolean[] { false, true } )
+            {
+                long[] sizes = new BulkManipulator( manipulator, shouldFilter, 37, 3 ).process( input.toPath(),
+                    output.toPath() );
+                String expected =
+                    shouldFilter ? SecureFilter.filter( type, decoded ) : SecureEncoder.encode( type, decoded );
+                byte[] expectedBytes = expected.getBytes( StandardCharsets.UTF_8 );
+                assertArrayEquals( type + ( shouldFilter ? " filter" : " encode" ), expectedBytes,
+                    Files.readAllBytes( output.toPath() ) );
+                assertEquals( bytes.length, sizes[0] );
+                assertEquals( expectedBytes.length, sizes[1] );
+            }
+        }
+    }
+
+    /**
+     * Test that input with few or no places to cut cleanly is still cut into bounded chunks and gives the same bytes
+     * as manipulating the decoded file whole
+     */
+    @Test
+    public void testFewCleanCuts()
+        throws IOException
+    {
+        String[] pieces = { "\u00e9", "\u20ac", "\ud83d\ude00", "]", "]]", "\u0001", "\u00e9\u00e9\u00e9\u00e9", ">" };
+        Random random = new Random( 54 );
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 2000; i++ )
+        {
+            // only the last few hundred pieces have anywhere to cut cleanly
+            sb.append( pieces[random.nextInt( i < 1500 ? pieces.length - 1 : pieces.length )] );
+        }
+        File input = this.folder.newFile( "in.txt" );
+        Files.write( input.toPath(), sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+        File output = new File( this.folder.getRoot(), "out.txt" );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            AbstractManipulator manipulator = ManipulatorFactory.getManipulator( type );
+            for ( boolean shouldFilter : new boolean[] { false, true } )
+            {
+                new BulkManipulator( manipulator, shouldFilter, 37, 3 ).process( input.toPath(), output.toPath() );
+                String expected = shouldFilter ? SecureFilter.filter( type, sb.toString() )
+                    : SecureEncoder.encode( type, sb.toString() );
+                assertEquals( type + ( shouldFilter ? " filter" : " encode" ), expected,
+                    new String( Files.readAllBytes( output.toPath() ), StandardCharsets.UTF_8 ) );
+            }
+        }
+    }
+
+    @Test
+    public void testCommandLine()
+        throws IOException
+    {
+        File input = this.folder.newFile( "in.txt" );
+        Files.write( input.toPath(), "<a>".getBytes( StandardCharsets.UTF_8 ) );
+        File output = new File( this.folder.getRoot(), "out.txt" );
+
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = BulkManipulator.run( new String[] { "encode", "--type", "XML_CONTENT_MANIPULATOR", "--in",
+            input.getPath(), "--out", output.getPath(), "--threads", "2" }, new PrintStream( err ) );
+        assertEquals( 0, status );
+        assertEquals( "&lt;a&gt;", new String( Files.readAllBytes( output.toPath() ), StandardCharsets.UTF_8 ) );
+        assertTrue( err.toString().startsWith( "Encoded 3 bytes into 9 bytes" ) );
+
+        assertEquals( 2, BulkManipulator.run( new String[] { "encode", "--type", "NO_SUCH_TYPE", "--in",
+            input.getPath(), "--out", output.getPath() }, new PrintStream( err ) ) );
+        assertEquals( 2, BulkManipulator.run( new String[0], new PrintStream( err ) ) );
+        assertEquals( 1, BulkManipulator.run( new String[] { "filter", "--type", "XML_CONTENT_MANIPULATOR", "--in",
+            new File( this.folder.getRoot(), "missing.txt" ).getPath(), "--out", output.getPath() },
+            new PrintStream( err ) ) );
+    }
+}
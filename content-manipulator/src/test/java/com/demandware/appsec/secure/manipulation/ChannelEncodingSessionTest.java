@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class ChannelEncodingSessionTest
+{
+
+    /**
+     * Test that a session driven against a non-blocking pipe that keeps filling up writes exactly the encoded bytes
+     */
+    @Test
+    public void testPartialWrites()
+        throws IOException
+    {
+        Random random = new Random( 13 );
+        String[] pieces = { "text ", "<script>", "]]>", "]]", "&\"'", "\u00e9\u2022", "\ud83d\ude00", "\u0007" };
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 40000; i++ )
+        {
+            sb.append( pieces[random.nextInt( pieces.length )] );
+        }
+        String input = sb.toString();
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            Pipe pipe = Pipe.open();
+            pipe.sink().configureBlocking( false );
+            pipe.source().configureBlocking( false );
+
+            ChannelEncodingSession session = SecureEncoder.encodingSession( type, input, pipe.sink() );
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            ByteBuffer readBuffer = ByteBuffer.allocate( 4096 );
+            int partialWrites = 0;
+            while ( !session.write() )
+            {
+                partialWrites++;
+                // read only a little each time so the pipe keeps filling up
+                readBuffer.clear();
+                int read = pipe.source().read( readBuffer );
+                received.write( readBuffer.array(), 0, Math.max( read, 0 ) );
+            }
+            assertTrue( session.isComplete() );
+            pipe.sink().close();
+
+            int read;
+            do
+            {
+                readBuffer.clear();
+                read = pipe.source().read( readBuffer );
+                received.write( readBuffer.array(), 0, Math.max( read, 0 ) );
+            }
+            while ( read >= 0 );
+            pipe.source().close();
+
+            assertTrue( "expected the pipe to fill up for " + type, partialWrites > 0 );
+            assertArrayEquals( "session failed for " + type, SecureEncoder.encodeToUtf8( type, input ),
+                received.toByteArray() );
+        }
+    }
+
+    /**
+     * Test that a channel taking one byte per call still gets every byte
+     */
+    @Test
+    public void testOneByteAtATime()
+        throws IOException
+    {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        WritableByteChannel trickle = new WritableByteChannel()
+        {
+            boolean accept;
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+
+            @Override
+            public int write( ByteBuffer src )
+            {
+                // alternately accept one byte and nothing
+                this.accept = !this.accept;
+                if ( !this.accept || !src.hasRemaining() )
+                {
+                    return 0;
+                }
+                received.write( src.get() );
+                return 1;
+            }
+        };
+
+        String input = "a]]>b\ud83d\ude00<c>";
+        ChannelEncodingSession session =
+            SecureEncoder.encodingSession( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, input, trickle );
+        while ( !session.write() )
+        {
+            // keep going
+        }
+
+        assertArrayEquals( SecureEncoder.encodeToUtf8( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, input ),
+            received.toByteArray() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullChannel()
+    {
+        SecureEncoder.encodingSession( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "foo", null );
+    }
+}
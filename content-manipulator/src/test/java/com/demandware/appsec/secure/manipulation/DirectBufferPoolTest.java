@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class DirectBufferPoolTest
+{
+
+    /**
+     * Test that output spanning many small segments matches the heap encoding
+     */
+    @Test
+    public void testEncodeAcrossSegments()
+        throws IOException
+    {
+        DirectBufferPool pool = new DirectBufferPool( 16, 4, 8 );
+        String input = "<p class='x'>caf\u00e9 \ud83d\ude00 &amp; ]]> \u2022</p>";
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            PooledByteOutput output = SecureEncoder.encodeToUtf8( type, input, pool );
+            byte[] expected = SecureEncoder.encodeToUtf8( type, input );
+            assertEquals( expected.length, output.remaining() );
+            for ( ByteBuffer segment : output.getSegments() )
+            {
+                assertTrue( segment.isDirect() );
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            output.writeTo( Channels.newChannel( out ) );
+            output.close();
+            output.close();
+            assertArrayEquals( "encodeToUtf8 to pool failed for " + type, expected, out.toByteArray() );
+
+            output = SecureFilter.filterToUtf8( type, input, pool );
+            out = new ByteArrayOutputStream();
+            output.writeTo( Channels.newChannel( out ) );
+            output.close();
+            assertArrayEquals( "filterToUtf8 to pool failed for " + type,
+                SecureFilter.filter( type, input ).getBytes( StandardCharsets.UTF_8 ), out.toByteArray() );
+        }
+
+        assertNull( SecureEncoder.encodeToUtf8( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null, pool ) );
+    }
+
+    /**
+     * Test that released segments are handed out again and foreign buffers are ignored
+     */
+    @Test
+    public void testReuse()
+    {
+        DirectBufferPool pool = new DirectBufferPool( 32, 1, 1 );
+        ByteBuffer first = pool.acquire();
+        assertEquals( 32, first.capacity() );
+        first.put( (byte) 1 );
+        pool.release( first );
+        pool.release( ByteBuffer.allocate( 32 ) );
+
+        ByteBuffer second = pool.acquire();
+        assertSame( first, second );
+        assertEquals( 0, second.position() );
+        assertTrue( second.isDirect() );
+    }
+
+    /**
+     * Test that the segments already taken go back to the pool when encoding fails part way
+     */
+    @Test
+    public void testReleasedOnFailure()
+    {
+        // segments handed out and not yet returned, by identity since buffers compare by content
+        final Set<ByteBuffer> outstanding = Collections.newSetFromMap( new IdentityHashMap<ByteBuffer, Boolean>() );
+        DirectBufferPool pool = new DirectBufferPool( 16, 4, 64 )
+        {
+            @Override
+            public ByteBuffer acquire()
+            {
+                ByteBuffer segment = super.acquire();
+                outstanding.add( segment );
+                return segment;
+            }
+
+            @Override
+            public void release( ByteBuffer segment )
+            {
+                outstanding.remove( segment );
+                super.release( segment );
+            }
+        };
+        AbstractManipulator failing = new AbstractManipulator( null )
+        {
+            @Override
+            protected void encodeInternal( String input, Appendable output )
+                throws IOException
+            {
+                output.append( input );
+                throw new IllegalStateException( "failed part way" );
+            }
+
+            @Override
+            protected void filterInternal( String input, Appendable output )
+                throws IOException
+            {
+                encodeInternal( input, output );
+            }
+        };
+        String input = "a long enough input to fill several segments of sixteen bytes";
+
+        try
+        {
+            failing.encodeToUtf8( input, pool );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( outstanding.isEmpty() );
+        }
+        try
+        {
+            failing.filterToUtf8( input, pool );
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( outstanding.isEmpty() );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullPool()
+    {
+        SecureEncoder.encodeToUtf8( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "", (DirectBufferPool) null );
+    }
+}
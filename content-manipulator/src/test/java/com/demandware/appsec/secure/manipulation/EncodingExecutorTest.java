@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.EncodingExecutor.Task;
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class EncodingExecutorTest
+{
+    private static final String[] VALUES = { "plain", "<b>", "a & b", "]]>", "\u00e9", null, "", "'q'" };
+
+    @Test
+    public void testOrdered()
+    {
+        List<Task> tasks = randomTasks( 10000 );
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try
+        {
+            EncodingExecutor executor = new EncodingExecutor( pool );
+            List<String> results = executor.encode( tasks );
+            assertEquals( tasks.size(), results.size() );
+            for ( int i = 0; i < tasks.size(); i++ )
+            {
+                Task task = tasks.get( i );
+                String expected = SecureEncoder.encode( task.getType(), task.getValue() );
+                assertEquals( expected, results.get( i ) );
+                if ( task.getValue() != null && task.getValue().equals( expected ) )
+                {
+                    assertSame( task.getValue(), results.get( i ) );
+                }
+            }
+            assertEquals( results, executor.encode( tasks.stream() ) );
+
+            final List<String> delivered = new ArrayList<String>();
+            executor.encodeOrdered( tasks.spliterator(), new BiConsumer<Task, String>()
+            {
+                @Override
+                public void accept( Task task, String encoded )
+                {
+                    delivered.add( encoded );
+                }
+            } );
+            assertEquals( results, delivered );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test that ordered results are handed over a window at a time rather than after the whole input is encoded
+     */
+    @Test
+    public void testOrderedStreams()
+    {
+        final List<Task> tasks = randomTasks( 10000 );
+        final int[] taken = new int[1];
+        ForkJoinPool pool = new ForkJoinPool( 2 );
+        try
+        {
+            final List<String> delivered = new ArrayList<String>();
+            new EncodingExecutor( pool ).encodeOrdered( tasks.stream().peek( new Consumer<Task>()
+            {
+                @Override
+                public void accept( Task task )
+                {
+                    taken[0]++;
+                }
+            } ).spliterator(), new BiConsumer<Task, String>()
+            {
+                @Override
+                public void accept( Task task, String encoded )
+                {
+                    if ( delivered.isEmpty() )
+                    {
+                        assertTrue( taken[0] < tasks.size() );
+                    }
+                    delivered.add( encoded );
+                }
+            } );
+            assertEquals( new EncodingExecutor( pool ).encode( tasks ), delivered );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnordered()
+    {
+        List<Task> tasks = randomTasks( 10000 );
+        final Map<Task, String> delivered = new ConcurrentHashMap<Task, String>();
+        new EncodingExecutor().encodeUnordered( tasks.spliterator(), new BiConsumer<Task, String>()
+        {
+            @Override
+            public void accept( Task task, String encoded )
+            {
+                // the map does not take null values
+                delivered.put( task, encoded == null ? "null" : encoded );
+            }
+        } );
+        assertEquals( tasks.size(), delivered.size() );
+        for ( Task task : tasks )
+        {
+            String expected = SecureEncoder.encode( task.getType(), task.getValue() );
+            assertEquals( expected == null ? "null" : expected, delivered.get( task ) );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullTask()
+    {
+        List<Task> tasks = new ArrayList<Task>();
+        tasks.add( null );
+        new EncodingExecutor().encode( tasks );
+    }
+
+    private static List<Task> randomTasks( int count )
+    {
+        Random random = new Random( 43 );
+        DefaultManipulationType[] types = DefaultManipulationType.values();
+        List<Task> tasks = new ArrayList<Task>();
+        for ( int i = 0; i < count; i++ )
+        {
+            tasks.add( new Task( types[random.nextInt( types.length )], VALUES[random.nextInt( VALUES.length )] ) );
+        }
+        return tasks;
+    }
+}
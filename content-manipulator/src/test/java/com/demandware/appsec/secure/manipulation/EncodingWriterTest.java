@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class EncodingWriterTest
+{
+
+    /**
+     * Test that writing in random pieces through every write method matches encoding in one call
+     */
+    @Test
+    public void testChunkedWrites()
+        throws IOException
+    {
+        Random random = new Random( 7 );
+        StringBuilder sb = new StringBuilder();
+        String[] pieces = { "abc", "<script>", "]]>", "]", "]]", ">", "\"'", "\u00e9\u2022", "\ud83d\ude00", "\u0001" };
+        for ( int i = 0; i < 5000; i++ )
+        {
+            sb.append( pieces[random.nextInt( pieces.length )] );
+        }
+        String input = sb.toString();
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            StringWriter sw = new StringWriter();
+            Writer writer = SecureEncoder.wrap( type, sw );
+            int i = 0;
+            while ( i < input.length() )
+            {
+                int len = Math.min( random.nextInt( 5 ), input.length() - i );
+                switch ( random.nextInt( 4 ) )
+                {
+                    case 0:
+                        writer.write( input.charAt( i ) );
+                        len = 1;
+                        break;
+                    case 1:
+                        writer.write( input.toCharArray(), i, len );
+                        break;
+                    case 2:
+                        writer.write( input, i, len );
+                        break;
+                    default:
+                        writer.append( input, i, i + len );
+                        break;
+                }
+                i += len;
+            }
+            writer.close();
+
+            assertEquals( "EncodingWriter failed for " + type, SecureEncoder.encode( type, input ), sw.toString() );
+        }
+    }
+
+    /**
+     * Test that a CDATA end split between two writes is still encoded
+     */
+    @Test
+    public void testSplitCDATAEnd()
+        throws IOException
+    {
+        StringWriter sw = new StringWriter();
+        Writer writer = SecureEncoder.wrap( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, sw );
+        writer.write( "foo]]" );
+        writer.write( ">bar" );
+        writer.close();
+
+        assertEquals( "foo]]>]]<![CDATA[>bar", sw.toString() );
+    }
+
+    @Test( expected = IOException.class )
+    public void testWriteAfterClose()
+        throws IOException
+    {
+        Writer writer = SecureEncoder.wrap( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, new StringWriter() );
+        writer.close();
+        writer.write( "foo" );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullWriter()
+    {
+        SecureEncoder.wrap( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null );
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class Fnv1a64Test
+{
+    /**
+     * Test against the published FNV-1a test vectors
+     */
+    @Test
+    public void testKnownValues()
+    {
+        assertEquals( 0xcbf29ce484222325L, Fnv1a64.hash( "" ) );
+        assertEquals( 0xaf63dc4c8601ec8cL, Fnv1a64.hash( "a" ) );
+        assertEquals( 0x85944171f73967e8L, Fnv1a64.hash( "foobar" ) );
+    }
+
+    @Test
+    public void testCharsAreHashedAsUtf8()
+    {
+        String[] inputs = { "\u00e9t\u00e9", "\u20ac", "\ud83d\ude00", "lone \ud800 surrogate", "\udc00" };
+        for ( String input : inputs )
+        {
+            assertEquals( input, Fnv1a64.hash( input.getBytes( StandardCharsets.UTF_8 ) ), Fnv1a64.hash( input ) );
+        }
+    }
+
+    @Test
+    public void testUpdateInPieces()
+    {
+        byte[] bytes = "hash me in pieces".getBytes( StandardCharsets.UTF_8 );
+        long hash = Fnv1a64.update( Fnv1a64.OFFSET_BASIS, bytes, 0, 5 );
+        hash = Fnv1a64.update( hash, bytes, 5, bytes.length - 5 );
+        assertEquals( Fnv1a64.hash( bytes ), hash );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullChars()
+    {
+        Fnv1a64.hash( (CharSequence) null );
+    }
+}
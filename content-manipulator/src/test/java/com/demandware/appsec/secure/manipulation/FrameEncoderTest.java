@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+public class FrameEncoderTest
+{
+
+    private static String randomInput( Random random, int pieceCount )
+    {
+        String[] pieces =
+            { "text ", "<script>", "]]>", "]", "]]", "&\"'", "\u00e9\u2022", "\ud83d\ude00", "\u0007", "\ud800" };
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < pieceCount; i++ )
+        {
+            sb.append( pieces[random.nextInt( pieces.length )] );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Test that frames never exceed their size, join up to the whole encoded input, and end where the encoding of the
+     * input up to the reported position ends, which means no escape was cut
+     */
+    @Test
+    public void testCharFrames()
+    {
+        Random random = new Random( 17 );
+        String input = randomInput( random, 400 );
+        int[] sizes = { FrameEncoder.MINIMUM_FRAME_SIZE, 17, 31, 100, 8192 };
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            for ( int size : sizes )
+            {
+                FrameEncoder frames = SecureEncoder.frameEncoder( type, input );
+                StringBuilder joined = new StringBuilder();
+                while ( frames.hasNext() )
+                {
+                    String frame = frames.nextFrame( size );
+                    assertTrue( frame.length() > 0 && frame.length() <= size );
+                    joined.append( frame );
+                    if ( type != DefaultManipulationType.CDATA_CONTENT_MANIPULATOR )
+                    {
+                        // CDATA may hold back ']' that belong before the position
+                        assertEquals( SecureEncoder.encode( type, input.substring( 0, frames.getInputPosition() ) ),
+                            joined.toString() );
+                    }
+                }
+                assertEquals( "frames failed for " + type + " at " + size, SecureEncoder.encode( type, input ),
+                    joined.toString() );
+                assertEquals( input.length(), frames.getInputPosition() );
+            }
+        }
+    }
+
+    /**
+     * Test that UTF-8 frames never exceed their size and join up to the whole encoded input
+     */
+    @Test
+    public void testUtf8Frames()
+    {
+        Random random = new Random( 19 );
+        String input = randomInput( random, 2000 );
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            FrameEncoder frames = SecureEncoder.frameEncoder( type, input );
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            while ( frames.hasNext() )
+            {
+                int size = FrameEncoder.MINIMUM_FRAME_SIZE + random.nextInt( 20 );
+                byte[] frame = frames.nextUtf8Frame( size );
+                assertTrue( frame.length > 0 && frame.length <= size );
+                joined.write( frame, 0, frame.length );
+            }
+            assertArrayEquals( "frames failed for " + type, SecureEncoder.encodeToUtf8( type, input ),
+                joined.toByteArray() );
+        }
+    }
+
+    /**
+     * Test that a replaced CDATA end is never cut, even when it is the only thing left
+     */
+    @Test
+    public void testCDATAEndKeptWhole()
+    {
+        FrameEncoder frames = SecureEncoder.frameEncoder( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, "ab]]>" );
+        assertEquals( "ab", frames.nextFrame( FrameEncoder.MINIMUM_FRAME_SIZE ) );
+        assertEquals( 2, frames.getInputPosition() );
+        assertEquals( "]]>]]<![CDATA[>", frames.nextFrame( FrameEncoder.MINIMUM_FRAME_SIZE ) );
+        assertFalse( frames.hasNext() );
+    }
+
+    /**
+     * Test that a surrogate pair joined up by dropping a control character between its halves is counted as the four
+     * bytes it is written as, and is never cut between two frames
+     */
+    @Test
+    public void testJoinedSurrogatePair()
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 20; i++ )
+        {
+            sb.append( "\ud83d\n\ude00ab" );
+        }
+        String input = sb.toString();
+        DefaultManipulationType cdata = DefaultManipulationType.CDATA_CONTENT_MANIPULATOR;
+
+        for ( int size = FrameEncoder.MINIMUM_FRAME_SIZE; size < 24; size++ )
+        {
+            FrameEncoder frames = SecureEncoder.frameEncoder( cdata, input );
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            while ( frames.hasNext() )
+            {
+                byte[] frame = frames.nextUtf8Frame( size );
+                assertTrue( frame.length > 0 && frame.length <= size );
+                joined.write( frame, 0, frame.length );
+            }
+            assertArrayEquals( SecureEncoder.encodeToUtf8( cdata, input ), joined.toByteArray() );
+
+            frames = SecureEncoder.frameEncoder( cdata, input );
+            while ( frames.hasNext() )
+            {
+                String frame = frames.nextFrame( size );
+                assertFalse( Character.isHighSurrogate( frame.charAt( frame.length() - 1 ) ) );
+                assertFalse( Character.isLowSurrogate( frame.charAt( 0 ) ) );
+            }
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testBufferedRefused()
+    {
+        AbstractManipulator html =
+            ManipulatorFactory.getManipulator( DefaultManipulationType.HTML_CONTENT_MANIPULATOR );
+        new FrameEncoder( new ChunkedManipulation.Buffered( html, false ), "foo" );
+    }
+
+    @Test( expected = NoSuchElementException.class )
+    public void testNoFramesLeft()
+    {
+        FrameEncoder frames = SecureEncoder.frameEncoder( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "" );
+        assertFalse( frames.hasNext() );
+        frames.nextFrame( 100 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testFrameTooSmall()
+    {
+        SecureEncoder.frameEncoder( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "foo" ).nextFrame( 4 );
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class InPlaceManipulationTest
+{
+    private static final String PREFIX = "head<";
+
+    private static final String SUFFIX = ">tail";
+
+    @Test
+    public void testEncodeInPlace()
+    {
+        StringBuilder sb = new StringBuilder( "a<b>c" );
+        int end = SecureEncoder.encodeInPlace( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, sb, 1, 4 );
+        assertEquals( "a&lt;b&gt;c", sb.toString() );
+        assertEquals( 10, end );
+    }
+
+    @Test
+    public void testFilterInPlace()
+    {
+        StringBuilder sb = new StringBuilder( "a<b>c" );
+        int end = SecureFilter.filterInPlace( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, sb, 1, 4 );
+        assertEquals( "abc", sb.toString() );
+        assertEquals( 2, end );
+
+        char[] chars = "a<b>c".toCharArray();
+        end = SecureFilter.filterInPlace( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, chars, 0, 5 );
+        assertEquals( "abc", new String( chars, 0, end ) );
+        // the rest of the region is left as it was
+        assertEquals( "a<b>c".substring( 3 ), new String( chars, 3, 2 ) );
+    }
+
+    /**
+     * Test a region whose output expands first and then shrinks, so the output runs further ahead of the input
+     * midway than at the end
+     */
+    @Test
+    public void testExpandThenShrink()
+    {
+        String input = "]]>\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001\u0001x";
+        StringBuilder sb = new StringBuilder( PREFIX ).append( input ).append( SUFFIX );
+        int end = SecureEncoder.encodeInPlace( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, sb,
+            PREFIX.length(), PREFIX.length() + input.length() );
+        String expected = SecureEncoder.encode( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, input );
+        assertEquals( PREFIX + expected + SUFFIX, sb.toString() );
+        assertEquals( PREFIX.length() + expected.length(), end );
+    }
+
+    @Test
+    public void testEmptyRegion()
+    {
+        StringBuilder sb = new StringBuilder( "abc" );
+        assertEquals( 1, SecureEncoder.encodeInPlace( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, sb, 1, 1 ) );
+        assertEquals( "abc", sb.toString() );
+    }
+
+    @Test( expected = IndexOutOfBoundsException.class )
+    public void testRegionOutOfBounds()
+    {
+        SecureEncoder.encodeInPlace( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, new StringBuilder( "abc" ), 1,
+            4 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullBuilder()
+    {
+        SecureFilter.filterInPlace( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, (StringBuilder) null, 0, 0 );
+    }
+
+    /**
+     * Test that in place manipulation of random regions matches manipulating a copy, for every type
+     */
+    @Test
+    public void testMatchesCopy()
+    {
+        String alphabet = "ab <>&\"'/\\]]]>\u0000\u0001\u00e9\u2028\ud83d\ude00\ud800 -_.~%=\n";
+        Random random = new Random( 39 );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            for ( int run = 0; run < 50; run++ )
+            {
+                StringBuilder input = new StringBuilder();
+                int length = random.nextInt( 40 );
+                for ( int i = 0; i < length; i++ )
+                {
+                    input.append( alphabet.charAt( random.nextInt( alphabet.length() ) ) );
+                }
+                String region = input.toString();
+                int start = PREFIX.length();
+                int end = start + region.length();
+
+                StringBuilder encoded = new StringBuilder( PREFIX ).append( region ).append( SUFFIX );
+                String expected = SecureEncoder.encode( type, region );
+                assertEquals( start + expected.length(), SecureEncoder.encodeInPlace( type, encoded, start, end ) );
+                assertEquals( type.name(), PREFIX + expected + SUFFIX, encoded.toString() );
+
+                StringBuilder filtered = new StringBuilder( PREFIX ).append( region ).append( SUFFIX );
+                expected = SecureFilter.filter( type, region );
+                assertEquals( start + expected.length(), SecureFilter.filterInPlace( type, filtered, start, end ) );
+                assertEquals( type.name(), PREFIX + expected + SUFFIX, filtered.toString() );
+
+                char[] chars = ( PREFIX + region + SUFFIX ).toCharArray();
+                int filteredEnd = SecureFilter.filterInPlace( type, chars, start, end );
+                assertEquals( type.name(), PREFIX + expected, new String( chars, 0, filteredEnd ) );
+                assertEquals( SUFFIX, new String( chars, end, SUFFIX.length() ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+public class IncrementalEncodingTest
+{
+    private static final String[] PIECES = { "text", "<", "]", "]]", "]]>", ">", "\u00e9", "\ud83d\ude00", "\u0001",
+        "&", "\"", " " };
+
+    @Test
+    public void testEncodeMapped()
+    {
+        MappedEncoding mapped = SecureEncoder.encodeMapped( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "a<b" );
+        assertEquals( "a&lt;b", mapped.getEncoded() );
+        OffsetMap map = mapped.getOffsetMap();
+        assertEquals( 1, map.size() );
+        assertEquals( 0, map.toOutput( 0 ) );
+        assertEquals( 1, map.toOutput( 1 ) );
+        assertEquals( 5, map.toOutput( 2 ) );
+        assertEquals( 6, map.getOutputLength() );
+        assertEquals( 3, map.getInputLength() );
+    }
+
+    /**
+     * Test that every index where the input can be cut maps to the length of the encoded input up to it
+     */
+    @Test
+    public void testMapMatchesPrefixes()
+    {
+        Random random = new Random( 48 );
+        for ( int run = 0; run < 50; run++ )
+        {
+            String input = randomInput( random, random.nextInt( 15 ) );
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                AbstractManipulator manip = ManipulatorFactory.getManipulator( type );
+                MappedEncoding mapped = SecureEncoder.encodeMapped( type, input );
+                assertEquals( type.name(), SecureEncoder.encode( type, input ), mapped.getEncoded() );
+                for ( int i = 0; i <= input.length(); i++ )
+                {
+                    if ( i == 0 || i == input.length() || manip.canSplitAt( input, i ) )
+                    {
+                        assertEquals( type + " " + input + " at " + i,
+                            SecureEncoder.encode( type, input.substring( 0, i ) ).length(),
+                            mapped.getOffsetMap().toOutput( i ) );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test a chain of random edits, including ones that complete or break a close CDATA string at the edges
+     */
+    @Test
+    public void testReencode()
+    {
+        Random random = new Random( 84 );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            MappedEncoding mapped = SecureEncoder.encodeMapped( type, randomInput( random, 20 ) );
+            for ( int edit = 0; edit < 200; edit++ )
+            {
+                String input = mapped.getInput();
+                int start = random.nextInt( input.length() + 1 );
+                int end = start + random.nextInt( Math.min( input.length() - start, 5 ) + 1 );
+                String replacement = randomInput( random, random.nextInt( 3 ) );
+                mapped = SecureEncoder.reencode( type, mapped, start, end, replacement );
+
+                String expectedInput = input.substring( 0, start ) + replacement + input.substring( end );
+                MappedEncoding expected = SecureEncoder.encodeMapped( type, expectedInput );
+                assertEquals( type.name(), expectedInput, mapped.getInput() );
+                assertEquals( type + " " + expectedInput, expected.getEncoded(), mapped.getEncoded() );
+                assertEquals( type + " " + expectedInput, expected.getOffsetMap().size(),
+                    mapped.getOffsetMap().size() );
+                for ( int i = 0; i <= expectedInput.length(); i++ )
+                {
+                    assertEquals( expected.getOffsetMap().deltaAt( i ), mapped.getOffsetMap().deltaAt( i ) );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReencodeCDATAEdges()
+    {
+        DefaultManipulationType type = DefaultManipulationType.CDATA_CONTENT_MANIPULATOR;
+        MappedEncoding mapped = SecureEncoder.encodeMapped( type, "a]]b" );
+        mapped = SecureEncoder.reencode( type, mapped, 3, 4, ">" );
+        assertEquals( SecureEncoder.encode( type, "a]]>" ), mapped.getEncoded() );
+        mapped = SecureEncoder.reencode( type, mapped, 2, 2, "x" );
+        assertEquals( "a]x]>", mapped.getEncoded() );
+    }
+
+    @Test
+    public void testNullInput()
+    {
+        assertNull( SecureEncoder.encodeMapped( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testWrongType()
+    {
+        MappedEncoding mapped = SecureEncoder.encodeMapped( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "a" );
+        SecureEncoder.reencode( DefaultManipulationType.XML_CONTENT_MANIPULATOR, mapped, 0, 0, "b" );
+    }
+
+    @Test( expected = IndexOutOfBoundsException.class )
+    public void testRangeOutOfBounds()
+    {
+        MappedEncoding mapped = SecureEncoder.encodeMapped( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "abc" );
+        SecureEncoder.reencode( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, mapped, 2, 4, "" );
+    }
+
+    private static String randomInput( Random random, int pieces )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < pieces; i++ )
+        {
+            sb.append( PIECES[random.nextInt( PIECES.length )] );
+        }
+        return sb.toString();
+    }
+}
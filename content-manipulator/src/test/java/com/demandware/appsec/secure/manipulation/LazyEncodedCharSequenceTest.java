@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class LazyEncodedCharSequenceTest
+{
+    private static final DefaultManipulationType HTML = DefaultManipulationType.HTML_CONTENT_MANIPULATOR;
+
+    private static final String INPUT = "<b>\"bold\" & ]]></b>";
+
+    @Test
+    public void testWriteToDoesNotKeep()
+        throws IOException
+    {
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            LazyEncodedCharSequence lazy = SecureEncoder.lazy( type, INPUT );
+            assertFalse( lazy.isEncoded() );
+            StringBuilder sb = new StringBuilder();
+            lazy.writeTo( sb );
+            lazy.writeTo( sb );
+            String expected = SecureEncoder.encode( type, INPUT );
+            assertEquals( type.name(), expected + expected, sb.toString() );
+            assertFalse( lazy.isEncoded() );
+        }
+    }
+
+    @Test
+    public void testToStringKeeps()
+        throws IOException
+    {
+        LazyEncodedCharSequence lazy = SecureEncoder.lazy( HTML, INPUT );
+        String encoded = lazy.toString();
+        assertTrue( lazy.isEncoded() );
+        assertEquals( SecureEncoder.encode( HTML, INPUT ), encoded );
+        assertSame( encoded, lazy.toString() );
+
+        StringBuilder sb = new StringBuilder();
+        lazy.writeTo( sb );
+        assertEquals( encoded, sb.toString() );
+    }
+
+    @Test
+    public void testCharSequence()
+    {
+        LazyEncodedCharSequence lazy = SecureEncoder.lazy( HTML, "a<b" );
+        assertEquals( '&', lazy.charAt( 1 ) );
+        assertTrue( lazy.isEncoded() );
+        assertEquals( 6, lazy.length() );
+        assertEquals( "lt;", lazy.subSequence( 2, 5 ).toString() );
+    }
+
+    @Test
+    public void testSizeLimit()
+        throws IOException
+    {
+        SecureEncoder.setSizeLimit( HTML, new SizeLimit( SizeLimit.UNLIMITED, 10, SizeLimit.Unit.CHARS,
+            SizeLimit.Policy.TRUNCATE ) );
+        LazyEncodedCharSequence lazy;
+        String expected;
+        try
+        {
+            lazy = SecureEncoder.lazy( HTML, INPUT );
+            expected = SecureEncoder.encode( HTML, INPUT );
+        }
+        finally
+        {
+            SecureEncoder.setSizeLimit( HTML, null );
+        }
+
+        // the limit set when the value was created still applies
+        StringBuilder sb = new StringBuilder();
+        lazy.writeTo( sb );
+        assertEquals( expected, sb.toString() );
+        assertTrue( lazy.isEncoded() );
+        assertEquals( expected, lazy.toString() );
+    }
+
+    /**
+     * Test that the length is counted without encoding and kept values are not encoded again
+     */
+    @Test
+    public void testLengthDoesNotKeep()
+    {
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            LazyEncodedCharSequence lazy = SecureEncoder.lazy( type, INPUT );
+            assertEquals( type.name(), SecureEncoder.encode( type, INPUT ).length(), lazy.length() );
+            assertFalse( lazy.isEncoded() );
+        }
+    }
+
+    /**
+     * Test that a limit the input cannot reach still lets the value be written straight to the output
+     */
+    @Test
+    public void testSizeLimitOutOfReach()
+        throws IOException
+    {
+        SecureEncoder.setSizeLimit( HTML, new SizeLimit( SizeLimit.UNLIMITED, 1000, SizeLimit.Unit.UTF8_BYTES,
+            SizeLimit.Policy.THROW ) );
+        LazyEncodedCharSequence lazy;
+        try
+        {
+            lazy = SecureEncoder.lazy( HTML, INPUT );
+        }
+        finally
+        {
+            SecureEncoder.setSizeLimit( HTML, null );
+        }
+
+        StringBuilder sb = new StringBuilder();
+        lazy.writeTo( sb );
+        assertEquals( SecureEncoder.encode( HTML, INPUT ), sb.toString() );
+        assertFalse( lazy.isEncoded() );
+    }
+
+    @Test
+    public void testNullInput()
+    {
+        assertNull( SecureEncoder.lazy( HTML, null ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullOutput()
+        throws IOException
+    {
+        SecureEncoder.lazy( HTML, INPUT ).writeTo( null );
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Processor;
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Publisher;
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Subscriber;
+import com.demandware.appsec.secure.manipulation.ManipulationFlow.Subscription;
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class ManipulatingProcessorTest
+{
+
+    /**
+     * Publishes the items of a list as they are requested
+     */
+    static class ListPublisher<T>
+        implements Publisher<T>
+    {
+        final List<T> items;
+
+        long requested;
+
+        boolean cancelled;
+
+        int next;
+
+        ListPublisher( List<T> items )
+        {
+            this.items = items;
+        }
+
+        @Override
+        public void subscribe( final Subscriber<? super T> subscriber )
+        {
+            subscriber.onSubscribe( new Subscription()
+            {
+                @Override
+                public void request( long n )
+                {
+                    ListPublisher.this.requested += n;
+                    for ( long i = 0; i < n && !ListPublisher.this.cancelled; i++ )
+                    {
+                        if ( ListPublisher.this.next == ListPublisher.this.items.size() )
+                        {
+                            subscriber.onComplete();
+                            return;
+                        }
+                        subscriber.onNext( ListPublisher.this.items.get( ListPublisher.this.next++ ) );
+                    }
+                }
+
+                @Override
+                public void cancel()
+                {
+                    ListPublisher.this.cancelled = true;
+                }
+            } );
+        }
+    }
+
+    /**
+     * Collects everything it receives, asking for the given number of items at a time
+     */
+    static class CollectingSubscriber<T>
+        implements Subscriber<T>
+    {
+        final List<T> items = new ArrayList<T>();
+
+        final long step;
+
+        Subscription subscription;
+
+        boolean completed;
+
+        Throwable error;
+
+        CollectingSubscriber( long step )
+        {
+            this.step = step;
+        }
+
+        @Override
+        public void onSubscribe( Subscription s )
+        {
+            this.subscription = s;
+            if ( this.step > 0 )
+            {
+                s.request( this.step );
+            }
+        }
+
+        @Override
+        public void onNext( T item )
+        {
+            this.items.add( item );
+            if ( this.step > 0 && this.items.size() % this.step == 0 )
+            {
+                this.subscription.request( this.step );
+            }
+        }
+
+        @Override
+        public void onError( Throwable throwable )
+        {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete()
+        {
+            this.completed = true;
+        }
+    }
+
+    private static <T, R> CollectingSubscriber<R> run( Processor<T, R> processor, List<T> chunks, long step )
+    {
+        CollectingSubscriber<R> subscriber = new CollectingSubscriber<R>( step );
+        processor.subscribe( subscriber );
+        new ListPublisher<T>( chunks ).subscribe( processor );
+        return subscriber;
+    }
+
+    private static String randomInput( Random random, int pieceCount )
+    {
+        String[] pieces = { "text ", "<b>", "]]>", "]", "]]", ">", "&\"'", "\u00e9\u2022", "\ud83d\ude00", "\u0007" };
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < pieceCount; i++ )
+        {
+            sb.append( pieces[random.nextInt( pieces.length )] );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Test that character chunks split anywhere give the same output as manipulating the whole input
+     */
+    @Test
+    public void testCharSequenceStreams()
+    {
+        Random random = new Random( 3 );
+        String input = randomInput( random, 5000 );
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            List<CharSequence> chunks = new ArrayList<CharSequence>();
+            int i = 0;
+            while ( i < input.length() )
+            {
+                int end = Math.min( input.length(), i + random.nextInt( 40 ) );
+                chunks.add( input.substring( i, end ) );
+                i = end;
+            }
+
+            CollectingSubscriber<CharSequence> encoded =
+                run( SecureEncoder.encodingProcessor( type ), chunks, 1 + random.nextInt( 3 ) );
+            CollectingSubscriber<CharSequence> filtered =
+                run( SecureFilter.filteringProcessor( type ), chunks, 1 + random.nextInt( 3 ) );
+
+            assertTrue( encoded.completed );
+            assertTrue( filtered.completed );
+            assertEquals( "encodingProcessor failed for " + type, SecureEncoder.encode( type, input ),
+                concat( encoded.items ) );
+            assertEquals( "filteringProcessor failed for " + type, SecureFilter.filter( type, input ),
+                concat( filtered.items ) );
+        }
+    }
+
+    /**
+     * Test that UTF-8 chunks split anywhere, including inside a multi-byte sequence, give the same output as
+     * manipulating the whole input
+     */
+    @Test
+    public void testUtf8Streams()
+    {
+        Random random = new Random( 5 );
+        byte[] input = randomInput( random, 5000 ).getBytes( StandardCharsets.UTF_8 );
+        // a truncated sequence at the very end
+        input[input.length - 1] = (byte) 0xf0;
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+            int i = 0;
+            while ( i < input.length )
+            {
+                int end = Math.min( input.length, i + random.nextInt( 7 ) );
+                chunks.add( ByteBuffer.wrap( input, i, end - i ) );
+                i = end;
+            }
+
+            CollectingSubscriber<ByteBuffer> encoded = run( SecureEncoder.encodingUtf8Processor( type ), chunks, 2 );
+            CollectingSubscriber<ByteBuffer> filtered = run( SecureFilter.filteringUtf8Processor( type ), chunks, 2 );
+
+            assertTrue( encoded.completed );
+            assertArrayEquals( "encodingUtf8Processor failed for " + type, SecureEncoder.encodeUtf8( type, input ),
+                concatBytes( encoded.items ) );
+            assertArrayEquals( "filteringUtf8Processor failed for " + type, SecureFilter.filterUtf8( type, input ),
+                concatBytes( filtered.items ) );
+        }
+    }
+
+    /**
+     * Test that many small chunks are published as one batch
+     */
+    @Test
+    public void testBatching()
+    {
+        List<CharSequence> chunks = new ArrayList<CharSequence>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            chunks.add( "<" );
+        }
+        CollectingSubscriber<CharSequence> subscriber =
+            run( SecureEncoder.encodingProcessor( DefaultManipulationType.HTML_CONTENT_MANIPULATOR ), chunks, 1 );
+
+        assertEquals( 1, subscriber.items.size() );
+        assertEquals( 4000, subscriber.items.get( 0 ).length() );
+        assertTrue( subscriber.completed );
+    }
+
+    /**
+     * Test that a CDATA end split between two chunks is still encoded
+     */
+    @Test
+    public void testSplitCDATAEnd()
+    {
+        List<CharSequence> chunks = new ArrayList<CharSequence>();
+        chunks.add( "foo]]" );
+        chunks.add( ">bar" );
+        CollectingSubscriber<CharSequence> subscriber =
+            run( SecureEncoder.encodingProcessor( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR ), chunks, 1 );
+
+        assertEquals( "foo]]>]]<![CDATA[>bar", concat( subscriber.items ) );
+    }
+
+    /**
+     * Test that nothing is requested from upstream until downstream asks, and then only what is needed
+     */
+    @Test
+    public void testBackpressure()
+    {
+        StringBuilder big = new StringBuilder();
+        for ( int i = 0; i < ManipulatingProcessor.BATCH_SIZE; i++ )
+        {
+            big.append( 'a' );
+        }
+        List<CharSequence> chunks = new ArrayList<CharSequence>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            chunks.add( big );
+        }
+
+        Processor<CharSequence, CharSequence> processor =
+            SecureEncoder.encodingProcessor( DefaultManipulationType.HTML_CONTENT_MANIPULATOR );
+        CollectingSubscriber<CharSequence> subscriber = new CollectingSubscriber<CharSequence>( 0 );
+        processor.subscribe( subscriber );
+        ListPublisher<CharSequence> publisher = new ListPublisher<CharSequence>( chunks );
+        publisher.subscribe( processor );
+
+        assertEquals( 0, publisher.requested );
+        assertTrue( subscriber.items.isEmpty() );
+
+        subscriber.subscription.request( 2 );
+        assertEquals( 2, subscriber.items.size() );
+        assertEquals( 2, publisher.requested );
+        assertFalse( subscriber.completed );
+
+        subscriber.subscription.cancel();
+        assertTrue( publisher.cancelled );
+    }
+
+    /**
+     * Test that asking for zero items is an error
+     */
+    @Test
+    public void testInvalidRequest()
+    {
+        Processor<CharSequence, CharSequence> processor =
+            SecureEncoder.encodingProcessor( DefaultManipulationType.XML_CONTENT_MANIPULATOR );
+        CollectingSubscriber<CharSequence> subscriber = new CollectingSubscriber<CharSequence>( 0 );
+        processor.subscribe( subscriber );
+        ListPublisher<CharSequence> publisher = new ListPublisher<CharSequence>( new ArrayList<CharSequence>() );
+        publisher.subscribe( processor );
+
+        subscriber.subscription.request( 0 );
+        assertTrue( subscriber.error instanceof IllegalArgumentException );
+        assertTrue( publisher.cancelled );
+    }
+
+    /**
+     * Test that a second Subscriber is turned away
+     */
+    @Test
+    public void testSecondSubscriber()
+    {
+        Processor<CharSequence, CharSequence> processor =
+            SecureFilter.filteringProcessor( DefaultManipulationType.XML_CONTENT_MANIPULATOR );
+        processor.subscribe( new CollectingSubscriber<CharSequence>( 1 ) );
+        CollectingSubscriber<CharSequence> second = new CollectingSubscriber<CharSequence>( 1 );
+        processor.subscribe( second );
+
+        assertTrue( second.error instanceof IllegalStateException );
+    }
+
+    private static String concat( List<CharSequence> items )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( CharSequence item : items )
+        {
+            sb.append( item );
+        }
+        return sb.toString();
+    }
+
+    private static byte[] concatBytes( List<ByteBuffer> items )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( ByteBuffer item : items )
+        {
+            byte[] bytes = new byte[item.remaining()];
+            item.get( bytes );
+            out.write( bytes, 0, bytes.length );
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class ManipulatingReaderTest
+{
+
+    private static String readAll( Reader reader, Random random )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[64];
+        int read;
+        while ( ( read = reader.read( buf, 0, 1 + random.nextInt( buf.length ) ) ) != -1 )
+        {
+            sb.append( buf, 0, read );
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    /**
+     * Test that reading through the Readers in random amounts matches manipulating in one call, across many blocks
+     */
+    @Test
+    public void testReadAcrossBlocks()
+        throws IOException
+    {
+        Random random = new Random( 11 );
+        StringBuilder sb = new StringBuilder();
+        String[] pieces = { "text ", "<b>", "]]>", "]]", ">", "&", "\u00e9", "\ud83d\ude00", "\u0007" };
+        for ( int i = 0; i < 4000; i++ )
+        {
+            sb.append( pieces[random.nextInt( pieces.length )] );
+        }
+        String input = sb.toString();
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            assertEquals( "encodingReader failed for " + type, SecureEncoder.encode( type, input ),
+                readAll( SecureEncoder.encodingReader( type, new StringReader( input ) ), random ) );
+            assertEquals( "filteringReader failed for " + type, SecureFilter.filter( type, input ),
+                readAll( SecureFilter.filteringReader( type, new StringReader( input ) ), random ) );
+        }
+    }
+
+    /**
+     * Test that an empty source gives an empty result
+     */
+    @Test
+    public void testEmpty()
+        throws IOException
+    {
+        Reader reader = SecureEncoder.encodingReader( DefaultManipulationType.XML_CONTENT_MANIPULATOR,
+            new StringReader( "" ) );
+        assertEquals( -1, reader.read() );
+        assertEquals( -1, reader.read() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullReader()
+    {
+        SecureFilter.filteringReader( DefaultManipulationType.XML_CONTENT_MANIPULATOR, null );
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+public class ManipulationScanTest
+{
+    private static final String[] PIECES = { "text", "<", "]", "]]", "]]>", ">", "\u00e9", "\u0101",
+        "\ud83d\ude00", "\u0001", "\u0085", "\ufdd0", "&", "\"", " ", "-", "." };
+
+    /**
+     * Test that the scans agree with actually encoding and filtering, for every type
+     */
+    @Test
+    public void testMatchesManipulation()
+    {
+        Random random = new Random( 46 );
+        for ( int run = 0; run < 200; run++ )
+        {
+            String input = randomInput( random, random.nextInt( 20 ) );
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                String encoded = SecureEncoder.encode( type, input );
+                String filtered = SecureFilter.filter( type, input );
+                assertEquals( type + " " + input, !input.equals( encoded ), SecureEncoder.needsEncoding( type,
+                    input ) );
+                assertEquals( type + " " + input, !input.equals( filtered ), SecureFilter.needsFiltering( type,
+                    input ) );
+                assertEquals( type + " " + input, encoded.length(), SecureEncoder.encodedLength( type, input ) );
+                assertEquals( type + " " + input, filtered.length(), SecureFilter.filteredLength( type, input ) );
+            }
+        }
+    }
+
+    /**
+     * Test that encoding and filtering leave everything before the first unsafe character alone
+     */
+    @Test
+    public void testIndexOfFirstUnsafe()
+    {
+        Random random = new Random( 64 );
+        for ( int run = 0; run < 200; run++ )
+        {
+            String input = randomInput( random, random.nextInt( 20 ) );
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                int index = SecureEncoder.indexOfFirstUnsafe( type, input );
+                if ( index < 0 )
+                {
+                    assertEquals( type + " " + input, input, SecureEncoder.encode( type, input ) );
+                }
+                else
+                {
+                    String safe = input.substring( 0, index );
+                    assertEquals( type + " " + input, safe, SecureEncoder.encode( type, safe ) );
+                    assertEquals( type + " " + input, safe, SecureFilter.filter( type, input ).substring( 0,
+                        index ) );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCDATA()
+    {
+        DefaultManipulationType type = DefaultManipulationType.CDATA_CONTENT_MANIPULATOR;
+        assertEquals( -1, SecureEncoder.indexOfFirstUnsafe( type, "a]]b]>" ) );
+        assertEquals( 2, SecureEncoder.indexOfFirstUnsafe( type, "a]]]>" ) );
+        assertEquals( 1, SecureEncoder.indexOfFirstUnsafe( type, "a\u0001]]>" ) );
+        assertEquals( 1, SecureEncoder.indexOfFirstUnsafe( type, "a]]>]" ) );
+        assertEquals( "]]>]]<![CDATA[>".length(), SecureEncoder.encodedLength( type, "]]>" ) );
+        assertEquals( 1, SecureFilter.filteredLength( type, "]]]>" ) );
+        assertEquals( 0, SecureEncoder.indexOfFirstUnsafe( type, "]]\u0001>" ) );
+        assertEquals( 1, SecureEncoder.indexOfFirstUnsafe( type, "a]\u0001]>" ) );
+        assertEquals( 2, SecureEncoder.indexOfFirstUnsafe( type, "a]\u0001b" ) );
+        assertEquals( 1, SecureEncoder.indexOfFirstUnsafe( type, "]]\u0001]>" ) );
+        assertEquals( "]]>]]<![CDATA[>".length(), SecureEncoder.encodedLength( type, "]]\u0001>" ) );
+        assertEquals( 0, SecureFilter.filteredLength( type, "]\u0001]>" ) );
+    }
+
+    @Test
+    public void testNullInput()
+    {
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            assertFalse( SecureEncoder.needsEncoding( type, null ) );
+            assertFalse( SecureFilter.needsFiltering( type, null ) );
+            assertEquals( -1, SecureEncoder.indexOfFirstUnsafe( type, null ) );
+            assertEquals( 0, SecureEncoder.encodedLength( type, null ) );
+            assertEquals( 0, SecureFilter.filteredLength( type, null ) );
+        }
+    }
+
+    /**
+     * Test the fallback used by Manipulators that do not override the scans
+     */
+    @Test
+    public void testFallback()
+    {
+        final AbstractManipulator html =
+            ManipulatorFactory.getManipulator( DefaultManipulationType.HTML_CONTENT_MANIPULATOR );
+        AbstractManipulator fallback = new AbstractManipulator( null )
+        {
+            @Override
+            protected void encodeInternal( String input, Appendable output )
+                throws IOException
+            {
+                html.encodeInternal( input, output );
+            }
+
+            @Override
+            protected void filterInternal( String input, Appendable output )
+                throws IOException
+            {
+                html.filterInternal( input, output );
+            }
+
+            @Override
+            protected boolean canSplitAt( CharSequence input, int index )
+            {
+                return html.canSplitAt( input, index );
+            }
+
+            @Override
+            protected ChunkedManipulation newChunkedEncoder()
+            {
+                return html.newChunkedEncoder();
+            }
+        };
+
+        assertEquals( -1, fallback.indexOfFirstUnsafe( "plain text" ) );
+        assertEquals( 5, fallback.indexOfFirstUnsafe( "plain<text" ) );
+        assertEquals( 5, fallback.indexOfFirstUnsafe( "plain\u0001" ) );
+        assertTrue( fallback.needsEncoding( "a&b" ) );
+        assertEquals( html.encodedLength( "a<b&\u0101" ), fallback.encodedLength( "a<b&\u0101" ) );
+        assertEquals( 3, fallback.filteredLength( "a<b&c" ) );
+    }
+
+    /**
+     * Test that the fallback gives an index into the input, not into the output, when the output only happens to
+     * start the same way as the input
+     */
+    @Test
+    public void testFallbackMapsToInput()
+    {
+        AbstractManipulator doubling = new AbstractManipulator( null )
+        {
+            @Override
+            protected void encodeInternal( String input, Appendable output )
+                throws IOException
+            {
+                output.append( input.replace( "x", "xx" ) );
+            }
+
+            @Override
+            protected void filterInternal( String input, Appendable output )
+                throws IOException
+            {
+                output.append( input.replace( "x", "" ) );
+            }
+        };
+
+        assertEquals( -1, doubling.indexOfFirstUnsafe( "abc" ) );
+        // "xxy" encodes to "xxxxy", which agrees with the input for two characters although the first is unsafe
+        assertEquals( 0, doubling.indexOfFirstUnsafe( "xxy" ) );
+        // with nowhere to cut the input, nothing before the end is known to be safe
+        assertEquals( 0, doubling.indexOfFirstUnsafe( "abx" ) );
+    }
+
+    private static String randomInput( Random random, int pieces )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < pieces; i++ )
+        {
+            sb.append( PIECES[random.nextInt( PIECES.length )] );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class NumberEncoderTest
+{
+    private static final long[] LONGS = { 0, 1, -1, 9, 10, -10, 99, 100, 1234567890, Integer.MAX_VALUE,
+        Integer.MIN_VALUE, 999999999999999999L, 1000000000000000000L, Long.MAX_VALUE, Long.MIN_VALUE };
+
+    private static final double[] DOUBLES = { 0.0, -0.0, 1.5, -19.99, 1e21, 1.25e-7, Double.MAX_VALUE,
+        Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+    private static final String[] DECIMALS = { "0", "19.99", "-0.001", "1E+3", "-1.5E-10", "123456789012345678901234" };
+
+    @Test
+    public void testPlainDigits()
+    {
+        StringBuilder sb = new StringBuilder();
+        SecureEncoder.encodeNumber( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, -1234L, sb );
+        sb.append( ',' );
+        SecureEncoder.encodeNumber( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, 19.99, sb );
+        sb.append( ',' );
+        SecureEncoder.encodeNumber( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, new BigDecimal( "1E+3" ), sb );
+        assertEquals( "-1234,19.99,1E+3", sb.toString() );
+    }
+
+    /**
+     * Test that a context that escapes some of the characters of a number still escapes them
+     */
+    @Test
+    public void testEscapedCharacters()
+    {
+        StringBuilder sb = new StringBuilder();
+        SecureEncoder.encodeNumber( DefaultManipulationType.JSON_VALUE_MANIPULATOR, -19.99, sb );
+        assertEquals( "\\u002d19\\u002e99", sb.toString() );
+    }
+
+    /**
+     * Test that every number is encoded exactly as its String would be, in every context
+     */
+    @Test
+    public void testMatchesEncodedString()
+    {
+        Random random = new Random( 40 );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            for ( long value : LONGS )
+            {
+                assertLong( type, value );
+            }
+            for ( int i = 0; i < 100; i++ )
+            {
+                assertLong( type, random.nextLong() >> random.nextInt( 64 ) );
+            }
+            for ( double value : DOUBLES )
+            {
+                StringBuilder sb = new StringBuilder();
+                SecureEncoder.encodeNumber( type, value, sb );
+                assertEquals( type.name(), SecureEncoder.encode( type, String.valueOf( value ) ), sb.toString() );
+            }
+            for ( String value : DECIMALS )
+            {
+                StringBuilder sb = new StringBuilder();
+                SecureEncoder.encodeNumber( type, new BigDecimal( value ), sb );
+                assertEquals( type.name(), SecureEncoder.encode( type, value ), sb.toString() );
+            }
+        }
+    }
+
+    /**
+     * Test that a Manipulator that does not encode characters on their own gets the whole number to encode
+     */
+    @Test
+    public void testStringManipulator()
+        throws IOException
+    {
+        AbstractManipulator manipulator = new AbstractManipulator( null )
+        {
+            @Override
+            protected void encodeInternal( String input, Appendable output )
+                throws IOException
+            {
+                output.append( input.replace( "E+", "E%2B" ).replace( "12", "twelve" ) );
+            }
+
+            @Override
+            protected void filterInternal( String input, Appendable output )
+                throws IOException
+            {
+                encodeInternal( input, output );
+            }
+        };
+
+        StringBuilder sb = new StringBuilder();
+        manipulator.encodeNumber( -123L, sb );
+        sb.append( ',' );
+        manipulator.encodeNumber( 0.125, sb );
+        sb.append( ',' );
+        manipulator.encodeNumber( new BigDecimal( "1E+3" ), sb );
+        assertEquals( "-twelve3,0.twelve5,1E%2B3", sb.toString() );
+    }
+
+    @Test
+    public void testNullDecimal()
+    {
+        StringBuilder sb = new StringBuilder();
+        SecureEncoder.encodeNumber( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, (BigDecimal) null, sb );
+        assertEquals( "", sb.toString() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullOutput()
+    {
+        SecureEncoder.encodeNumber( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, 1L, null );
+    }
+
+    private static void assertLong( DefaultManipulationType type, long value )
+    {
+        StringBuilder sb = new StringBuilder();
+        SecureEncoder.encodeNumber( type, value, sb );
+        assertEquals( type.name(), SecureEncoder.encode( type, String.valueOf( value ) ), sb.toString() );
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+public class ParallelEncodingTest
+{
+    private static final String[] PIECES = { "text", "<", "]", "]]", "]]>", ">", "\u00e9", "\ud83d\ude00", "\u0001",
+        "&", "\"", " " };
+
+    /**
+     * Test that encoding in tiny chunks matches encoding whole for every type, including close CDATA strings that
+     * straddle chunks
+     */
+    @Test
+    public void testSmallChunks()
+    {
+        Random random = new Random( 42 );
+        for ( int run = 0; run < 100; run++ )
+        {
+            String input = randomInput( random, random.nextInt( 60 ) );
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                AbstractManipulator manipulator = ManipulatorFactory.getManipulator( type );
+                for ( int chunkSize = 1; chunkSize < 8; chunkSize++ )
+                {
+                    assertEquals( type + " in chunks of " + chunkSize, SecureEncoder.encode( type, input ),
+                        ParallelEncoding.encode( manipulator, input, 0, chunkSize ) );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLargeInput()
+    {
+        String input = randomInput( new Random( 7 ), 150000 );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            assertEquals( type.name(), SecureEncoder.encode( type, input ), SecureEncoder.encodeParallel( type, input,
+                0 ) );
+        }
+    }
+
+    /**
+     * Test that a CDATA input with nowhere to cut is encoded as one chunk
+     */
+    @Test
+    public void testNoCut()
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 100; i++ )
+        {
+            sb.append( ']' );
+        }
+        String input = sb.append( '>' ).toString();
+        assertEquals( SecureEncoder.encodeCDATAContent( input ), ParallelEncoding.encode(
+            ManipulatorFactory.getManipulator( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR ), input, 0, 3 ) );
+    }
+
+    @Test
+    public void testNull()
+    {
+        assertNull( SecureEncoder.encodeParallel( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNegativeThreshold()
+    {
+        SecureEncoder.encodeParallel( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "", -1 );
+    }
+
+    private static String randomInput( Random random, int pieces )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < pieces; i++ )
+        {
+            sb.append( PIECES[random.nextInt( PIECES.length )] );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class SecureCollectorsTest
+{
+    private static final DefaultManipulationType HTML = DefaultManipulationType.HTML_CONTENT_MANIPULATOR;
+
+    @Test
+    public void testJoining()
+    {
+        List<String> tags = Arrays.asList( "a<b", "c&d", "plain" );
+        assertEquals( "a&lt;bc&amp;dplain", tags.stream().collect( SecureCollectors.encodingJoining( HTML ) ) );
+        assertEquals( "a&lt;b<br>c&amp;d<br>plain",
+            tags.stream().collect( SecureCollectors.encodingJoining( HTML, "<br>" ) ) );
+        assertEquals( "<ul>a&lt;b, c&amp;d, plain</ul>",
+            tags.stream().collect( SecureCollectors.encodingJoining( HTML, ", ", "<ul>", "</ul>" ) ) );
+        assertEquals( "&lt;a&lt;b&gt;&lt;c&amp;d&gt;&lt;plain&gt;",
+            tags.stream().collect( SecureCollectors.encodingJoining( HTML, "><", "<", ">", true ) ) );
+    }
+
+    @Test
+    public void testEmptyAndNull()
+    {
+        assertEquals( "[]",
+            Stream.<String> empty().collect( SecureCollectors.encodingJoining( HTML, ",", "[", "]" ) ) );
+        assertEquals( "null,x", Stream.of( null, "x" ).collect( SecureCollectors.encodingJoining( HTML, "," ) ) );
+    }
+
+    /**
+     * Test that a parallel stream gives the same result as joining the encoded elements, including close CDATA
+     * strings and empty elements
+     */
+    @Test
+    public void testParallel()
+    {
+        List<String> values = new ArrayList<String>();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            values.add( i % 7 == 0 ? "" : i % 3 == 0 ? "]]>" + i : "<" + i + ">" );
+        }
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            StringBuilder expected = new StringBuilder( "(" );
+            for ( int i = 0; i < values.size(); i++ )
+            {
+                if ( i > 0 )
+                {
+                    expected.append( '|' );
+                }
+                expected.append( SecureEncoder.encode( type, values.get( i ) ) );
+            }
+            expected.append( ')' );
+            assertEquals( type.name(), expected.toString(),
+                values.parallelStream().collect( SecureCollectors.encodingJoining( type, "|", "(", ")" ) ) );
+        }
+        assertEquals( "", Collections.<String> emptyList().parallelStream().collect(
+            SecureCollectors.encodingJoining( HTML ) ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNullDelimiter()
+    {
+        SecureCollectors.encodingJoining( HTML, null );
+    }
+}
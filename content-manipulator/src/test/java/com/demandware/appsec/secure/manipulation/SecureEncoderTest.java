@@ -8,13 +8,24 @@
  */
 package com.demandware.appsec.secure.manipulation;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
+import java.io.ByteArrayOutputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
 import com.demandware.appsec.secure.manipulation.SecureEncoder;
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
 
 public class SecureEncoderTest
 {
@@ -203,4 +214,224 @@ public class SecureEncoderTest
 
     }
 
+    @Test
+    public void UTF8Test()
+    {
+        String input = "<a href='x'>]]>caf\u00e9 \u2022 \ud83d\ude00 \ud800 \u0001 \u0732</a>";
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            byte[] expected = SecureEncoder.encode( type, input ).getBytes( StandardCharsets.UTF_8 );
+            assertArrayEquals( "encodeToUtf8 failed for " + type, expected, SecureEncoder.encodeToUtf8( type, input ) );
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SecureEncoder.encodeToUtf8( type, input, out );
+            assertArrayEquals( "encode to OutputStream failed for " + type, expected, out.toByteArray() );
+        }
+
+        assertNull( SecureEncoder.encodeToUtf8( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null ) );
+    }
+
+    /**
+     * Fuzz UTF-8 transcoding with random valid and malformed input against encodeing the decoded String
+     */
+    @Test
+    public void UTF8TranscodeTest()
+    {
+        Random random = new Random( 42 );
+        String[] pieces = { "a", "Z9", " ", "<", "]]>", "]", "\u00e9", "\u2022", "\ud83d\ude00", "\u0001", "\"'" };
+
+        for ( int run = 0; run < 500; run++ )
+        {
+            // every so often, make the input long enough to cross transcoding chunk boundaries
+            byte[] input = new byte[run % 50 == 0 ? 10000 : random.nextInt( 64 )];
+            int i = 0;
+            while ( i < input.length )
+            {
+                if ( random.nextInt( 4 ) == 0 )
+                {
+                    // arbitrary bytes, usually malformed
+                    input[i++] = (byte) random.nextInt( 256 );
+                }
+                else
+                {
+                    byte[] piece = pieces[random.nextInt( pieces.length )].getBytes( StandardCharsets.UTF_8 );
+                    for ( int j = 0; j < piece.length && i < input.length; j++ )
+                    {
+                        input[i++] = piece[j];
+                    }
+                }
+            }
+
+            String decoded = new String( input, StandardCharsets.UTF_8 );
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                byte[] expected = SecureEncoder.encode( type, decoded ).getBytes( StandardCharsets.UTF_8 );
+                assertArrayEquals( "encodeUtf8 failed for " + type, expected, SecureEncoder.encodeUtf8( type, input ) );
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                SecureEncoder.encodeUtf8( type, ByteBuffer.wrap( input ), out );
+                assertArrayEquals( "encodeUtf8 to OutputStream failed for " + type, expected, out.toByteArray() );
+            }
+        }
+
+        assertNull( SecureEncoder.encodeUtf8( DefaultManipulationType.JSON_VALUE_MANIPULATOR, (byte[]) null ) );
+    }
+
+    /**
+     * Test that a batch matches encodeing each value, returns clean values as the same instance and keeps nulls
+     */
+    @Test
+    public void encodeAllTest()
+    {
+        String[] input = { "plain", "<b>", null, "", "a&b", "\u00e9]]>" };
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            String[] output = SecureEncoder.encodeAll( type, input );
+            assertEquals( input.length, output.length );
+            for ( int i = 0; i < input.length; i++ )
+            {
+                String expected = SecureEncoder.encode( type, input[i] );
+                assertEquals( "encodeAll failed for " + type, expected, output[i] );
+                if ( input[i] != null && input[i].equals( expected ) )
+                {
+                    assertSame( input[i], output[i] );
+                }
+            }
+            assertEquals( Arrays.asList( output ), SecureEncoder.encodeAll( type, Arrays.asList( input ) ) );
+
+            // the input array can take the output
+            String[] copy = input.clone();
+            SecureEncoder.encodeAll( type, copy, copy );
+            assertArrayEquals( output, copy );
+        }
+
+        assertNull( SecureEncoder.encodeAll( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, (String[]) null ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void encodeAllShortOutputTest()
+    {
+        SecureEncoder.encodeAll( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, new String[2], new String[1] );
+    }
+
+    @Test
+    public void encodeToDigestTest()
+        throws NoSuchAlgorithmException
+    {
+        // long enough to fill the digest buffer several times over
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 2000; i++ )
+        {
+            sb.append( "<p class=\"x\">\u00e9\ud83d\ude00]]>&" ).append( i );
+        }
+        String[] inputs = { "", "plain", "\ud800 lone surrogate", sb.toString() };
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            for ( String input : inputs )
+            {
+                MessageDigest expected = MessageDigest.getInstance( "SHA-256" );
+                expected.update( SecureEncoder.encode( type, input ).getBytes( StandardCharsets.UTF_8 ) );
+                MessageDigest actual = MessageDigest.getInstance( "SHA-256" );
+                SecureEncoder.encodeToDigest( type, input, actual );
+                assertArrayEquals( "encodeToDigest failed for " + type, expected.digest(), actual.digest() );
+
+                assertEquals( "encodedFnv1a64 failed for " + type, Fnv1a64.hash( SecureEncoder.encode( type, input ) ),
+                    SecureEncoder.encodedFnv1a64( type, input ) );
+            }
+        }
+
+        MessageDigest untouched = MessageDigest.getInstance( "SHA-256" );
+        SecureEncoder.encodeToDigest( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null, untouched );
+        assertArrayEquals( MessageDigest.getInstance( "SHA-256" ).digest(), untouched.digest() );
+        assertEquals( Fnv1a64.OFFSET_BASIS,
+            SecureEncoder.encodedFnv1a64( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null ) );
+    }
+
+    @Test
+    public void encodeToDigestSizeLimitTest()
+        throws NoSuchAlgorithmException
+    {
+        DefaultManipulationType type = DefaultManipulationType.HTML_CONTENT_MANIPULATOR;
+        SecureEncoder.setSizeLimit( type, new SizeLimit( SizeLimit.UNLIMITED, 10, SizeLimit.Unit.CHARS,
+            SizeLimit.Policy.TRUNCATE ) );
+        try
+        {
+            String input = "<<<<<<<<<<";
+            MessageDigest expected = MessageDigest.getInstance( "MD5" );
+            expected.update( SecureEncoder.encode( type, input ).getBytes( StandardCharsets.UTF_8 ) );
+            MessageDigest actual = MessageDigest.getInstance( "MD5" );
+            SecureEncoder.encodeToDigest( type, input, actual );
+            assertArrayEquals( expected.digest(), actual.digest() );
+            assertEquals( Fnv1a64.hash( SecureEncoder.encode( type, input ) ),
+                SecureEncoder.encodedFnv1a64( type, input ) );
+        }
+        finally
+        {
+            SecureEncoder.setSizeLimit( type, null );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void encodeToDigestNullDigestTest()
+    {
+        SecureEncoder.encodeToDigest( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "a", null );
+    }
+
+    @Test
+    public void encodeWithInsertionsTest()
+    {
+        StringBuilder sb = new StringBuilder();
+        SecureEncoder.encodeWithInsertions( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "a<b", new int[] { 1, 2 },
+            new CharSequence[] { "<mark>", "</mark>" }, sb );
+        assertEquals( "a<mark>&lt;</mark>b", sb.toString() );
+
+        // the same as encoding the pieces and joining them, also where a piece ends in a CDATA ]
+        String input = "x]]>y<\"&\u00e9\ud83d\ude00]]]>";
+        Random random = new Random( 49 );
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            for ( int run = 0; run < 20; run++ )
+            {
+                int[] offsets = new int[random.nextInt( 4 )];
+                CharSequence[] inserts = new CharSequence[offsets.length];
+                for ( int i = 0; i < offsets.length; i++ )
+                {
+                    offsets[i] = random.nextInt( input.length() + 1 );
+                    inserts[i] = "<" + i + ">";
+                }
+                Arrays.sort( offsets );
+
+                StringBuilder expected = new StringBuilder();
+                int start = 0;
+                for ( int i = 0; i < offsets.length; i++ )
+                {
+                    expected.append( SecureEncoder.encode( type, input.substring( start, offsets[i] ) ) );
+                    expected.append( inserts[i] );
+                    start = offsets[i];
+                }
+                expected.append( SecureEncoder.encode( type, input.substring( start ) ) );
+
+                sb.setLength( 0 );
+                SecureEncoder.encodeWithInsertions( type, input, offsets, inserts, sb );
+                assertEquals( "encodeWithInsertions failed for " + type, expected.toString(), sb.toString() );
+            }
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void encodeWithInsertionsUnorderedTest()
+    {
+        SecureEncoder.encodeWithInsertions( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "abc", new int[] { 2, 1 },
+            new CharSequence[] { "<", ">" }, new StringBuilder() );
+    }
+
+    @Test( expected = IndexOutOfBoundsException.class )
+    public void encodeWithInsertionsOutOfBoundsTest()
+    {
+        SecureEncoder.encodeWithInsertions( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, "abc", new int[] { 4 },
+            new CharSequence[] { "<" }, new StringBuilder() );
+    }
+
 }
@@ -8,13 +8,22 @@
  */
 package com.demandware.appsec.secure.manipulation;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
+import java.io.ByteArrayOutputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
 import com.demandware.appsec.secure.manipulation.SecureFilter;
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
 
 public class SecureFilterTest
 {
@@ -196,4 +205,106 @@ public class SecureFilterTest
         SecureFilter.filterUriComponentStrict( URI, sw );
         assertEquals( "filterUriComponentStrict failed", uriStrict, sw.toString() );
     }
+
+    @Test
+    public void UTF8Test()
+    {
+        String input = "<a href='x'>]]>caf\u00e9 \u2022 \ud83d\ude00 \ud800 \u0001 \u0732</a>";
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            byte[] expected = SecureFilter.filter( type, input ).getBytes( StandardCharsets.UTF_8 );
+            assertArrayEquals( "filterToUtf8 failed for " + type, expected, SecureFilter.filterToUtf8( type, input ) );
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SecureFilter.filterToUtf8( type, input, out );
+            assertArrayEquals( "filter to OutputStream failed for " + type, expected, out.toByteArray() );
+        }
+
+        assertNull( SecureFilter.filterToUtf8( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null ) );
+    }
+
+    /**
+     * Fuzz UTF-8 transcoding with random valid and malformed input against filtering the decoded String
+     */
+    @Test
+    public void UTF8TranscodeTest()
+    {
+        Random random = new Random( 42 );
+        String[] pieces = { "a", "Z9", " ", "<", "]]>", "]", "\u00e9", "\u2022", "\ud83d\ude00", "\u0001", "\"'" };
+
+        for ( int run = 0; run < 500; run++ )
+        {
+            // every so often, make the input long enough to cross transcoding chunk boundaries
+            byte[] input = new byte[run % 50 == 0 ? 10000 : random.nextInt( 64 )];
+            int i = 0;
+            while ( i < input.length )
+            {
+                if ( random.nextInt( 4 ) == 0 )
+                {
+                    // arbitrary bytes, usually malformed
+                    input[i++] = (byte) random.nextInt( 256 );
+                }
+                else
+                {
+                    byte[] piece = pieces[random.nextInt( pieces.length )].getBytes( StandardCharsets.UTF_8 );
+                    for ( int j = 0; j < piece.length && i < input.length; j++ )
+                    {
+                        input[i++] = piece[j];
+                    }
+                }
+            }
+
+            String decoded = new String( input, StandardCharsets.UTF_8 );
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                byte[] expected = SecureFilter.filter( type, decoded ).getBytes( StandardCharsets.UTF_8 );
+                assertArrayEquals( "filterUtf8 failed for " + type, expected, SecureFilter.filterUtf8( type, input ) );
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                SecureFilter.filterUtf8( type, ByteBuffer.wrap( input ), out );
+                assertArrayEquals( "filterUtf8 to OutputStream failed for " + type, expected, out.toByteArray() );
+            }
+        }
+
+        assertNull( SecureFilter.filterUtf8( DefaultManipulationType.JSON_VALUE_MANIPULATOR, (byte[]) null ) );
+    }
+
+    /**
+     * Test that a batch matches filtering each value, returns clean values as the same instance and keeps nulls
+     */
+    @Test
+    public void filterAllTest()
+    {
+        String[] input = { "plain", "<b>", null, "", "a&b", "\u00e9]]>" };
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            String[] output = SecureFilter.filterAll( type, input );
+            assertEquals( input.length, output.length );
+            for ( int i = 0; i < input.length; i++ )
+            {
+                String expected = SecureFilter.filter( type, input[i] );
+                assertEquals( "filterAll failed for " + type, expected, output[i] );
+                if ( input[i] != null && input[i].equals( expected ) )
+                {
+                    assertSame( input[i], output[i] );
+                }
+            }
+            assertEquals( Arrays.asList( output ), SecureFilter.filterAll( type, Arrays.asList( input ) ) );
+
+            // the input array can take the output
+            String[] copy = input.clone();
+            SecureFilter.filterAll( type, copy, copy );
+            assertArrayEquals( output, copy );
+        }
+
+        assertNull( SecureFilter.filterAll( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, (String[]) null ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void filterAllShortOutputTest()
+    {
+        SecureFilter.filterAll( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, new String[2], new String[1] );
+    }
+
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+
+public class SegmentedCharSequenceTest
+{
+
+    /**
+     * Test that content appended in every way across many small segments reads back the same through every accessor
+     */
+    @Test
+    public void testAcrossSegments()
+        throws IOException
+    {
+        Random random = new Random( 23 );
+        SegmentedCharSequence segmented = new SegmentedCharSequence( 7 );
+        StringBuilder expected = new StringBuilder();
+        for ( int i = 0; i < 500; i++ )
+        {
+            String piece = Integer.toString( random.nextInt( 100000 ) );
+            switch ( random.nextInt( 4 ) )
+            {
+                case 0:
+                    segmented.append( piece.charAt( 0 ) );
+                    expected.append( piece.charAt( 0 ) );
+                    break;
+                case 1:
+                    segmented.append( piece );
+                    expected.append( piece );
+                    break;
+                case 2:
+                    segmented.append( CharBuffer.wrap( "[" + piece + "]" ), 1, piece.length() + 1 );
+                    expected.append( piece );
+                    break;
+                default:
+                    segmented.append( new StringBuilder( piece ), 0, piece.length() );
+                    expected.append( piece );
+                    break;
+            }
+        }
+
+        assertEquals( expected.length(), segmented.length() );
+        assertEquals( expected.toString(), segmented.toString() );
+        for ( int i = 0; i < expected.length(); i++ )
+        {
+            assertEquals( expected.charAt( i ), segmented.charAt( i ) );
+        }
+        assertEquals( expected.substring( 5, 40 ), segmented.subSequence( 5, 40 ).toString() );
+
+        StringWriter sw = new StringWriter();
+        segmented.writeTo( sw );
+        assertEquals( expected.toString(), sw.toString() );
+
+        Reader reader = segmented.reader();
+        StringBuilder read = new StringBuilder();
+        char[] buf = new char[5];
+        int count;
+        while ( ( count = reader.read( buf, 0, buf.length ) ) != -1 )
+        {
+            read.append( buf, 0, count );
+        }
+        assertEquals( expected.toString(), read.toString() );
+    }
+
+    /**
+     * Test that segmented encoding matches encoding to a String
+     */
+    @Test
+    public void testEncodeSegmented()
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            sb.append( "<a href=\"x\">]]>\u00e9\ud83d\ude00</a>" );
+        }
+        String input = sb.toString();
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            assertEquals( "encodeSegmented failed for " + type, SecureEncoder.encode( type, input ),
+                SecureEncoder.encodeSegmented( type, input ).toString() );
+        }
+        assertNull( SecureEncoder.encodeSegmented( DefaultManipulationType.HTML_CONTENT_MANIPULATOR, null ) );
+    }
+
+    @Test( expected = IndexOutOfBoundsException.class )
+    public void testCharAtOutOfBounds()
+    {
+        SegmentedCharSequence segmented = new SegmentedCharSequence( 4 );
+        segmented.append( "abcd" );
+        segmented.charAt( 4 );
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.demandware.appsec.secure.manipulation.SizeLimit.Policy;
+import com.demandware.appsec.secure.manipulation.SizeLimit.Unit;
+import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
+import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
+
+public class SizeLimitTest
+{
+    private static final DefaultManipulationType HTML = DefaultManipulationType.HTML_CONTENT_MANIPULATOR;
+
+    @Test
+    public void testTruncateOutput()
+    {
+        SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, 10, Unit.CHARS, Policy.TRUNCATE );
+        assertEquals( "&lt;&lt;", SecureEncoder.encodeLimited( HTML, "<<<<<<<<", limit ) );
+        assertEquals( "&lt;&lt;", SecureEncoder.encodeLimited( HTML, "<<", limit ) );
+    }
+
+    @Test
+    public void testTruncateWithEllipsis()
+    {
+        SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, 10, Unit.CHARS, Policy.TRUNCATE_WITH_ELLIPSIS );
+        assertEquals( "&lt;...", SecureEncoder.encodeLimited( HTML, "<<<<<<<<", limit ) );
+        // fits without an ellipsis, even though it would not fit alongside one
+        assertEquals( "&lt;&lt;", SecureEncoder.encodeLimited( HTML, "<<", limit ) );
+        assertEquals( "abcdefg...", SecureFilter.filterLimited( HTML, "ab<c>defghijk", limit ) );
+    }
+
+    @Test( expected = SizeLimitExceededException.class )
+    public void testThrowOnOutput()
+    {
+        SecureEncoder.encodeLimited( HTML, "<<<",
+            new SizeLimit( SizeLimit.UNLIMITED, 10, Unit.CHARS, Policy.THROW ) );
+    }
+
+    @Test( expected = SizeLimitExceededException.class )
+    public void testThrowOnInput()
+    {
+        SecureEncoder.encodeLimited( HTML, "abcd", new SizeLimit( 3, SizeLimit.UNLIMITED, Unit.CHARS, Policy.THROW ) );
+    }
+
+    /**
+     * Test that truncated input is never cut through a surrogate pair and gets an ellipsis
+     */
+    @Test
+    public void testTruncateInput()
+    {
+        String input = "ab\ud83d\ude00cd";
+        assertEquals( "ab", SecureEncoder.encodeLimited( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, input,
+            new SizeLimit( 3, SizeLimit.UNLIMITED, Unit.CHARS, Policy.TRUNCATE ) ) );
+        assertEquals( "ab\ud83d\ude00...", SecureEncoder.encodeLimited(
+            DefaultManipulationType.CDATA_CONTENT_MANIPULATOR, input,
+            new SizeLimit( 4, SizeLimit.UNLIMITED, Unit.CHARS, Policy.TRUNCATE_WITH_ELLIPSIS ) ) );
+    }
+
+    @Test
+    public void testUtf8Bytes()
+    {
+        SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, 5, Unit.UTF8_BYTES, Policy.TRUNCATE );
+        assertEquals( "\u00e9\u00e9", SecureEncoder.encodeLimited( DefaultManipulationType.CDATA_CONTENT_MANIPULATOR,
+            "\u00e9\u00e9\u00e9", limit ) );
+    }
+
+    /**
+     * Test that a surrogate pair joined up by dropping a control character between its halves is counted as the four
+     * bytes it is written as and is never cut
+     */
+    @Test
+    public void testUtf8BytesJoinedSurrogatePair()
+    {
+        DefaultManipulationType cdata = DefaultManipulationType.CDATA_CONTENT_MANIPULATOR;
+        String input = "\ud83d\n\ude00\ud83d\n\ude00\ud83d\n\ude00";
+        String full = SecureEncoder.encode( cdata, input );
+        for ( int max = 0; max < 16; max++ )
+        {
+            SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, max, Unit.UTF8_BYTES, Policy.TRUNCATE );
+            String limited = SecureEncoder.encodeLimited( cdata, input, limit );
+            assertTrue( limited.getBytes( StandardCharsets.UTF_8 ).length <= max );
+            assertEquals( full.substring( 0, max / 4 * 2 ), limited );
+        }
+    }
+
+    /**
+     * Test that truncated output is always a prefix of the full output made of whole escapes, within the limit
+     */
+    @Test
+    public void testNeverCutsEscapes()
+    {
+        Random random = new Random( 29 );
+        String[] pieces = { "a", "<", "]]>", "\u00e9", "\ud83d\ude00", "\"", "\u0007", " " };
+        for ( int run = 0; run < 300; run++ )
+        {
+            StringBuilder sb = new StringBuilder();
+            for ( int i = 0; i < 20; i++ )
+            {
+                sb.append( pieces[random.nextInt( pieces.length )] );
+            }
+            String input = sb.toString();
+            SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, random.nextInt( 60 ), Unit.CHARS, Policy.TRUNCATE );
+
+            for ( DefaultManipulationType type : DefaultManipulationType.values() )
+            {
+                String full = SecureEncoder.encode( type, input );
+                String limited = SecureEncoder.encodeLimited( type, input, limit );
+                assertTrue( limited.length() <= limit.getMaxOutput() );
+                assertTrue( full.startsWith( limited ) );
+                if ( type != DefaultManipulationType.CDATA_CONTENT_MANIPULATOR )
+                {
+                    // the output of some prefix of the input, so no escape was cut
+                    boolean matched = false;
+                    for ( int end = 0; end <= input.length() && !matched; end++ )
+                    {
+                        matched = SecureEncoder.encode( type, input.substring( 0, end ) ).equals( limited );
+                    }
+                    assertTrue( "cut an escape for " + type + ": " + limited, matched );
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that no character, nor a close CDATA string, grows by more than the expansion a Manipulator reports
+     */
+    @Test
+    public void testMaxExpansionIsABound()
+    {
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            AbstractManipulator manipulator = ManipulatorFactory.getManipulator( type );
+            int encodeExpansion = manipulator.maxExpansion( false );
+            int filterExpansion = manipulator.maxExpansion( true );
+            assertTrue( encodeExpansion > 0 && filterExpansion > 0 );
+            for ( int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++ )
+            {
+                String input = String.valueOf( (char) c );
+                assertTrue( manipulator.encodedLength( input ) <= encodeExpansion );
+                assertTrue( manipulator.filteredLength( input ) <= filterExpansion );
+            }
+            String input = "]]>]]]>";
+            assertTrue( manipulator.encodedLength( input ) <= (long) input.length() * encodeExpansion );
+        }
+    }
+
+    /**
+     * Test that input whose largest possible output fits is manipulated in one go, and that anything bigger still
+     * goes through the measured path
+     */
+    @Test
+    public void testFitsWhole()
+    {
+        AbstractManipulator manipulator = new AbstractManipulator( null )
+        {
+            @Override
+            protected void encodeInternal( String input, Appendable output )
+                throws IOException
+            {
+                output.append( input.toUpperCase() );
+            }
+
+            @Override
+            protected void filterInternal( String input, Appendable output )
+                throws IOException
+            {
+                output.append( input.toLowerCase() );
+            }
+
+            @Override
+            protected int maxExpansion( boolean shouldFilter )
+            {
+                return 2;
+            }
+        };
+        SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, 12, Unit.UTF8_BYTES, Policy.THROW );
+        assertEquals( "AB", manipulator.encodeLimited( "ab", limit ) );
+        assertEquals( "ab", manipulator.filterLimited( "AB", limit ) );
+        // three characters could take 18 bytes, so the output is measured and still fits
+        assertEquals( "ABC", manipulator.encodeLimited( "abc", limit ) );
+
+        for ( DefaultManipulationType type : DefaultManipulationType.values() )
+        {
+            String input = "<a href=\"]]>\u00e9\ud83d\ude00\u0007\">";
+            SizeLimit generous = new SizeLimit( SizeLimit.UNLIMITED, 1000, Unit.UTF8_BYTES, Policy.THROW );
+            assertEquals( SecureEncoder.encode( type, input ), SecureEncoder.encodeLimited( type, input, generous ) );
+            assertEquals( SecureFilter.filter( type, input ), SecureFilter.filterLimited( type, input, generous ) );
+        }
+    }
+
+    /**
+     * Test that a limit set for a type applies to the plain methods and shortcuts for that type only
+     */
+    @Test
+    public void testPerTypeLimit()
+    {
+        SizeLimit limit = new SizeLimit( SizeLimit.UNLIMITED, 8, Unit.CHARS, Policy.TRUNCATE );
+        SecureEncoder.setSizeLimit( HTML, limit );
+        try
+        {
+            assertEquals( limit, SecureEncoder.getSizeLimit( HTML ) );
+            assertEquals( "&lt;&lt;", SecureEncoder.encodeHtmlContent( "<<<<" ) );
+            StringWriter sw = new StringWriter();
+            SecureEncoder.encode( HTML, "<<<<", sw );
+            assertEquals( "&lt;&lt;", sw.toString() );
+            assertEquals( "&lt;&lt;&lt;&lt;", SecureEncoder.encodeXmlContent( "<<<<" ) );
+            assertNull( SecureFilter.getSizeLimit( HTML ) );
+        }
+        finally
+        {
+            SecureEncoder.setSizeLimit( HTML, null );
+        }
+        assertEquals( "&lt;&lt;&lt;&lt;", SecureEncoder.encodeHtmlContent( "<<<<" ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testNegativeLimit()
+    {
+        new SizeLimit( -1, 10, Unit.CHARS, Policy.THROW );
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Demandware Inc. Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.demandware.appsec.secure.manipulation;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class Utf8AppendableTest
+{
+
+    /**
+     * Test that every char, including unpaired surrogates, matches the JDK's own UTF-8 encoding
+     */
+    @Test
+    public void testAllCharacters()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i <= Character.MAX_VALUE; i++ )
+        {
+            sb.append( (char) i );
+        }
+        sb.append( "\ud83d\ude00\ude00\ud83d" );
+        String input = sb.toString();
+
+        Utf8Appendable.ArrayUtf8Appendable utf8 = Utf8Appendable.toByteArray( 0 );
+        utf8.append( input );
+        utf8.finish();
+        assertArrayEquals( input.getBytes( StandardCharsets.UTF_8 ), utf8.toByteArray() );
+    }
+
+    /**
+     * Test that a surrogate pair split across appends and buffer flushes is still joined
+     */
+    @Test
+    public void testSplitSurrogateToStream()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 8191; i++ )
+        {
+            sb.append( 'a' );
+        }
+        String expected = sb.toString() + "\ud83d\ude00!";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Appendable utf8 = Utf8Appendable.toStream( out );
+        utf8.append( sb );
+        utf8.append( '\ud83d' );
+        utf8.append( "\ude00!", 0, 2 );
+        utf8.finish();
+        assertArrayEquals( expected.getBytes( StandardCharsets.UTF_8 ), out.toByteArray() );
+    }
+}
@@ -3,12 +3,15 @@ package com.demandware.appsec.secure.manipulation.impl;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.demandware.appsec.secure.manipulation.ChunkedManipulation;
+import com.demandware.appsec.secure.manipulation.SecureEncoder;
 import com.demandware.appsec.secure.manipulation.SecureFilter;
 
 public class CDATAManipulatorTest
@@ -66,6 +69,12 @@ public class CDATAManipulatorTest
         cases.add( new Pair( "<\"&\'>", "<\"&\'>" ) );
         cases.add( new Pair( "\u2022", "\u2022" ) );
         cases.add( new Pair( "\u0001", "" ) );
+        cases.add( new Pair( "]\u0001", "]" ) );
+        cases.add( new Pair( "]]\u0001>", "" ) );
+        cases.add( new Pair( "]\u0001]>", "" ) );
+        cases.add( new Pair( "x]]\ufdd0>y", "xy" ) );
+        cases.add( new Pair( "]]]\u0001\u0002>", "]" ) );
+        cases.add( new Pair( "]\u0001x]>", "]x]>" ) );
         cases.add( new Pair(
             "Invalid expand parameter 'pri<>'c]]><x:script xmlns:x=\"http://www.w3.org/1999/xhtml\">alert('xss')</x:script>es' found.",
             "Invalid expand parameter 'pri<>'c<x:script xmlns:x=\"http://www.w3.org/1999/xhtml\">alert('xss')</x:script>es' found." ) );
@@ -76,4 +85,102 @@ public class CDATAManipulatorTest
         }
     }
 
+    /**
+     * Test that a dropped control character inside a close CDATA string cannot be used to smuggle one through
+     */
+    @Test
+    public void testControlCharacterInCDATAEnd()
+    {
+        assertEquals( "]]>]]<![CDATA[>", SecureEncoder.encodeCDATAContent( "]]\u0001>" ) );
+        assertEquals( "]]>]]<![CDATA[>", SecureEncoder.encodeCDATAContent( "]\u0001]>" ) );
+        assertEquals( "]]>]]<![CDATA[>", SecureEncoder.encodeCDATAContent( "]\u0001\u007f]\u0002>" ) );
+        assertEquals( "x]]>]]<![CDATA[>y", SecureEncoder.encodeCDATAContent( "x]]\ufdd0>y" ) );
+    }
+
+    /**
+     * Test that a CDATA end is caught wherever the input is split, one chunk per character included
+     */
+    @Test
+    public void testChunkedSplits()
+        throws IOException
+    {
+        String[] inputs =
+            { "a]]>b", "]]]>]", "]]>]]", "]]]]]]]]]]", "] ]>", "]\u0001]>", "]]\u0001>", "x]]\ufdd0>y", "x]]" };
+        for ( String input : inputs )
+        {
+            String encoded = SecureEncoder.encodeCDATAContent( input );
+            String filtered = SecureFilter.filterCDATAContent( input );
+            for ( int split = 0; split <= input.length(); split++ )
+            {
+                assertEquals( encoded, splitAt( this.cdata.newChunkedEncoder(), input, split ) );
+                assertEquals( filtered, splitAt( this.cdata.newChunkedFilter(), input, split ) );
+            }
+            assertEquals( encoded, perCharacter( this.cdata.newChunkedEncoder(), input ) );
+            assertEquals( filtered, perCharacter( this.cdata.newChunkedFilter(), input ) );
+        }
+    }
+
+    /**
+     * Test that runs of allowed characters reach the output in single appends rather than a character at a time
+     */
+    @Test
+    public void testBulkAppends()
+        throws IOException
+    {
+        final List<String> appends = new ArrayList<String>();
+        Appendable recorder = new Appendable()
+        {
+            @Override
+            public Appendable append( CharSequence csq )
+            {
+                appends.add( csq.toString() );
+                return this;
+            }
+
+            @Override
+            public Appendable append( CharSequence csq, int start, int end )
+            {
+                appends.add( csq.subSequence( start, end ).toString() );
+                return this;
+            }
+
+            @Override
+            public Appendable append( char c )
+            {
+                appends.add( String.valueOf( c ) );
+                return this;
+            }
+        };
+
+        this.cdata.encodeInternal( "<payload>text</payload>\u0001<more/>]]>tail", recorder );
+
+        List<String> expected = new ArrayList<String>();
+        expected.add( "<payload>text</payload>" );
+        expected.add( "<more/>" );
+        expected.add( "]]>]]<![CDATA[>" );
+        expected.add( "tail" );
+        assertEquals( expected, appends );
+    }
+
+    private static String splitAt( ChunkedManipulation manipulation, String input, int split )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        manipulation.manipulate( input, 0, split, sb );
+        manipulation.manipulate( input, split, input.length(), sb );
+        manipulation.finish( sb );
+        return sb.toString();
+    }
+
+    private static String perCharacter( ChunkedManipulation manipulation, String input )
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < input.length(); i++ )
+        {
+            manipulation.manipulate( input, i, i + 1, sb );
+        }
+        manipulation.finish( sb );
+        return sb.toString();
+    }
 }
@@ -8,15 +8,19 @@
  */
 package com.demandware.appsec.secure.manipulation.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.demandware.appsec.secure.manipulation.SecureEncoder;
 import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
 import com.demandware.appsec.secure.manipulation.impl.HTMLManipulator;
 import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
@@ -120,4 +124,46 @@ public class HTMLManipulatorTest
 
     }
 
+    /**
+     * Test that encoding for a charset only escapes what the charset cannot represent
+     */
+    @Test
+    public void testEncodeForCharset()
+    {
+        String input = "<caf\u00e9 \u2022 \ud83d\ude00 \u0085>";
+        DefaultManipulationType type = DefaultManipulationType.HTML_CONTENT_MANIPULATOR;
+
+        assertEquals( "&lt;caf\u00e9 \u2022 \ud83d\ude00 &#xfffd;&gt;",
+            SecureEncoder.encodeForCharset( type, input, StandardCharsets.UTF_8 ) );
+        assertEquals( "&lt;caf\u00e9 &bull; &#x1f600; &#xfffd;&gt;",
+            SecureEncoder.encodeForCharset( type, input, StandardCharsets.ISO_8859_1 ) );
+        assertEquals( "&lt;caf&eacute; &bull; &#x1f600; &#xfffd;&gt;",
+            SecureEncoder.encodeForCharset( type, input, StandardCharsets.US_ASCII ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SecureEncoder.encodeForCharset( type, input, StandardCharsets.ISO_8859_1, out );
+        assertArrayEquals( "&lt;caf\u00e9 &bull; &#x1f600; &#xfffd;&gt;".getBytes( StandardCharsets.ISO_8859_1 ),
+            out.toByteArray() );
+
+        out = new ByteArrayOutputStream();
+        SecureEncoder.encodeForCharset( type, input, StandardCharsets.UTF_8, out );
+        assertArrayEquals( "&lt;caf\u00e9 \u2022 \ud83d\ude00 &#xfffd;&gt;".getBytes( StandardCharsets.UTF_8 ),
+            out.toByteArray() );
+
+        // a lone surrogate can never be written raw
+        assertEquals( "&#xd800;", SecureEncoder.encodeForCharset( type, "\ud800", StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Test that noncharacters are escaped in content even when the charset could represent them
+     */
+    @Test
+    public void testEncodeNoncharactersForCharset()
+    {
+        DefaultManipulationType type = DefaultManipulationType.HTML_CONTENT_MANIPULATOR;
+        assertEquals( "a&#xfffe;b", SecureEncoder.encodeForCharset( type, "a\ufffeb", StandardCharsets.UTF_8 ) );
+        assertEquals( "&#xffff;&#xfdd0;&#xfddf;\ufdef",
+            SecureEncoder.encodeForCharset( type, "\uffff\ufdd0\ufddf\ufdef", StandardCharsets.UTF_8 ) );
+    }
+
 }
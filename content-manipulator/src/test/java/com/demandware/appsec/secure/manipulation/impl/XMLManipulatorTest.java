@@ -8,15 +8,19 @@
  */
 package com.demandware.appsec.secure.manipulation.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.demandware.appsec.secure.manipulation.SecureEncoder;
 import com.demandware.appsec.secure.manipulation.impl.DefaultManipulationType;
 import com.demandware.appsec.secure.manipulation.impl.ManipulatorFactory;
 import com.demandware.appsec.secure.manipulation.impl.XMLManipulator;
@@ -124,4 +128,25 @@ public class XMLManipulatorTest
 
     }
 
+    /**
+     * Test that encoding for a charset only escapes what the charset cannot represent
+     */
+    @Test
+    public void testEncodeForCharset()
+    {
+        String input = "<caf\u00e9 \ud83d\ude00\u0080\ufdd0>";
+        DefaultManipulationType type = DefaultManipulationType.XML_CONTENT_MANIPULATOR;
+
+        assertEquals( "&lt;caf\u00e9 \ud83d\ude00&gt;",
+            SecureEncoder.encodeForCharset( type, input, StandardCharsets.UTF_8 ) );
+        assertEquals( "&lt;caf\u00e9 &#x1f600;&gt;",
+            SecureEncoder.encodeForCharset( type, input, StandardCharsets.ISO_8859_1 ) );
+        assertEquals( "&lt;caf&#xe9; &#x1f600;&gt;",
+            SecureEncoder.encodeForCharset( type, input, StandardCharsets.US_ASCII ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SecureEncoder.encodeForCharset( type, input, StandardCharsets.US_ASCII, out );
+        assertArrayEquals( "&lt;caf&#xe9; &#x1f600;&gt;".getBytes( StandardCharsets.US_ASCII ), out.toByteArray() );
+    }
+
 }